@@ -2,9 +2,6 @@ package edu.grinnell.csc207.blockchains;
 
 import java.nio.ByteBuffer;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
 import java.util.Random;
 
 /**
@@ -13,71 +10,23 @@ import java.util.Random;
  * @author Samuel A. Rebelsky
  */
 public class Block {
-  // +-----------+---------------------------------------------------
-  // | Constants |
-  // +-----------+
-
-  /**
-   * Are we observing what's happening?
-   */
-  static final boolean VERBOSE = false;
-
   // +---------------+-----------------------------------------------
   // | Static fields |
   // +---------------+
 
   /**
-   * The message digest used to compute hashes.
-   */
-  static MessageDigest md = null;
-
-  /**
-   * The byte buffer used for ints.
-   */
-  static ByteBuffer intBuffer = ByteBuffer.allocate(Integer.BYTES);
-
-  /**
-   * The byte buffer used for longs.
+   * The engine used to compute hashes when none is specified. On CPUs
+   * with SHA extensions, the JVM's built-in SHA-256 is several times
+   * faster than our pure-Java engine, even though its hashers must
+   * digest the whole prefix for each attempt.
    */
-  static ByteBuffer longBuffer = ByteBuffer.allocate(Long.BYTES);
+  static final HashEngine ENGINE = new JcaHashEngine();
 
   /**
    * A random number generator for finding nonces.
    */
   static Random rand = new Random();
 
-  // +----------------+----------------------------------------------
-  // | Static methods |
-  // +----------------+
-
-  /**
-   * Convert an integer into its bytes.
-   *
-   * @param i
-   *   The integer to convert.
-   *
-   * @return
-   *   The bytes of that integer.
-   */
-  static byte[] intToBytes(int i) {
-    intBuffer.clear();
-    return intBuffer.putInt(i).array();
-  } // intToBytes(int)
-
-  /**
-   * Convert a long into its bytes.
-   *
-   * @param l
-   *   The long to convert.
-   *
-   * @return
-   *   The bytes in that long.
-   */
-  static byte[] longToBytes(long l) {
-    longBuffer.clear();
-    return longBuffer.putLong(l).array();
-  } // longToBytes()
-
   // +--------+------------------------------------------------------
   // | Fields |
   // +--------+
@@ -132,6 +81,47 @@ public class Block {
     this.mine(check);
   } // Block(int, Transaction, Hash, HashValidator)
 
+  /**
+   * Create a new block from the specified block number, transaction, and
+   * previous hash, mining with several threads to choose a nonce that
+   * meets the requirements of the validator.
+   *
+   * @param number
+   *   The number of the block.
+   * @param trans
+   *   The transaction for the block.
+   * @param ph
+   *   The hash of the previous block.
+   * @param check
+   *   The validator used to check the block.
+   * @param threads
+   *   The number of threads to use when searching for a nonce.
+   */
+  public Block(int number, Transaction trans, Hash ph, HashValidator check,
+      int threads) {
+    this.num = number;
+    this.transaction = trans;
+    this.prevHash = ph;
+    this.mine(check, threads);
+  } // Block(int, Transaction, Hash, HashValidator, int)
+
+  /**
+   * Create a new block that has not yet been mined. The caller is
+   * responsible for setting the nonce and hash.
+   *
+   * @param number
+   *   The number of the block.
+   * @param trans
+   *   The transaction for the block.
+   * @param ph
+   *   The hash of the previous block.
+   */
+  Block(int number, Transaction trans, Hash ph) {
+    this.num = number;
+    this.transaction = trans;
+    this.prevHash = ph;
+  } // Block(int, Transaction, Hash)
+
   /**
    * Create a new block, computing the hash for the block.
    *
@@ -152,6 +142,31 @@ public class Block {
     this.computeHash();
   } // Block(int, Transaction, Hash, long)
 
+  /**
+   * Create a block whose hash we already know, as when we read it back
+   * from a log. The caller is responsible for making sure that the hash
+   * is right (or for checking it).
+   *
+   * @param number
+   *   The number of the block.
+   * @param trans
+   *   The transaction for the block.
+   * @param ph
+   *   The hash of the previous block.
+   * @param theNonce
+   *   The nonce of the block.
+   * @param theHash
+   *   The hash of the block.
+   */
+  Block(int number, Transaction trans, Hash ph, long theNonce,
+      Hash theHash) {
+    this.num = number;
+    this.transaction = trans;
+    this.prevHash = ph;
+    this.nonce = theNonce;
+    this.hash = theHash;
+  } // Block(int, Transaction, Hash, long, Hash)
+
   // +---------+-----------------------------------------------------
   // | Helpers |
   // +---------+
@@ -161,44 +176,52 @@ public class Block {
    * stored in the block.
    */
   void computeHash() {
-    // Make sure that we have a message digest.
-    if (null == md) {
-      try {
-        md = MessageDigest.getInstance("sha-256");
-      } catch (NoSuchAlgorithmException e) {
-        throw new RuntimeException("Cannot load hash algorithm");
-      } // try/catch
-    } // if
-
-    md.update(intToBytes(this.num));
-    md.update(this.transaction.getSource().getBytes());
-    md.update(this.transaction.getTarget().getBytes());
-    md.update(intToBytes(this.transaction.getAmount()));
-    md.update(this.prevHash.getBytes());
-    md.update(longToBytes(this.nonce));
-    this.hash = new Hash(md.digest());
+    this.hash = new Hash(ENGINE.hash(this.prefixBytes(), this.nonce));
   } // computeHash()
 
+  /**
+   * Get the bytes that precede the nonce when we compute the hash of
+   * the block. Since only the nonce changes while mining, the miner
+   * can digest these bytes once and reuse the result.
+   *
+   * @return the number, source, target, amount, and previous hash of
+   *   the block, as bytes.
+   */
+  byte[] prefixBytes() {
+    byte[] source = this.transaction.getSource().getBytes();
+    byte[] target = this.transaction.getTarget().getBytes();
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + source.length
+        + target.length + Integer.BYTES + this.prevHash.length());
+    buffer.putInt(this.num);
+    buffer.put(source);
+    buffer.put(target);
+    buffer.putInt(this.transaction.getAmount());
+    this.prevHash.writeTo(buffer);
+    return buffer.array();
+  } // prefixBytes()
+
   /**
    * Mine for a matching hash.
+   *
+   * @param check
+   *   The validator used to check the block.
    */
   void mine(HashValidator check) {
-    long count = 0;
-    long startTime = System.currentTimeMillis();
-
-    do {
-      // The real work
-      this.nonce = rand.nextLong();
-      this.computeHash();
-      // Observations
-      ++count;
-      if (VERBOSE && (0 == (count % 100000))) {
-        System.err.printf("Generated %d nonces in %d milliseconds.\n",
-            count, System.currentTimeMillis() - startTime);
-      } // if
-    } while (!check.isValid(this.hash));
+    this.mine(check, 1);
   } // mine(HashValidator)
 
+  /**
+   * Mine for a matching hash using several threads.
+   *
+   * @param check
+   *   The validator used to check the block.
+   * @param threads
+   *   The number of threads to use.
+   */
+  void mine(HashValidator check, int threads) {
+    new Miner(check, threads, ENGINE, null).mine(this);
+  } // mine(HashValidator, int)
+
   // +---------+-----------------------------------------------------
   // | Methods |
   // +---------+
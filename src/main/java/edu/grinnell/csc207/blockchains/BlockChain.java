@@ -1,40 +1,135 @@
 package edu.grinnell.csc207.blockchains;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.UncheckedIOException;
+
+import java.nio.file.Path;
+
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * A full blockchain.
  *
+ * Any number of threads may read the chain while one thread at a time
+ * changes it. Changes (append, removeLast, and the bookkeeping in check)
+ * synchronize on the chain. Readers never wait for them: the blocks are
+ * published as an immutable store, so getSize, getHash, getBlock, and
+ * the iterators work from whatever store was current when they started,
+ * and they always see a consistent prefix of the chain. Balances and
+ * users come from the ledger, which readers consult optimistically,
+ * trying again under a read lock only if a change raced with them.
+ *
  * @author Your Name Here
  */
 public class BlockChain implements Iterable<Transaction> {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * How often, in blocks, we save the ledger next to the log.
+   */
+  static final int CHECKPOINT_INTERVAL = 1024;
+
+  /**
+   * The most threads that background checks use, all together.
+   */
+  static final int BACKGROUND_THREADS =
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+  // +---------------+-----------------------------------------------
+  // | Static fields |
+  // +---------------+
+
+  /**
+   * The threads that run background checks for every chain (or null,
+   * until the first such check).
+   */
+  static ForkJoinPool background;
+
   // +--------+------------------------------------------------------
   // | Fields |
   // +--------+
 
   /**
-   * The number of blocks in the chain.
+   * The blocks in the chain.
+   */
+  volatile BlockStore store;
+
+  /**
+   * Guards the ledger and the indexes. The thread that changes the
+   * chain holds the write lock while it updates them.
+   */
+  StampedLock lock;
+
+  /**
+   * The accounts of everyone who has appeared in a transaction, with
+   * balances kept up to date as blocks are appended and removed.
+   * Loading a log may replace the ledger, so lock-free readers read
+   * the field once, after they take their stamp.
+   */
+  volatile Ledger ledger;
+
+  /**
+   * Indexes of the blocks by hash and by user, or null if nobody has
+   * needed them yet.
+   */
+  volatile BlockIndex index;
+
+  /**
+   * The number of blocks that check() has verified. Blocks never change
+   * once they are in the chain, so check() can start here.
    */
-  int size;
+  int verified;
 
   /**
-   * The front of the chain.
+   * The balances that check() computed for the verified blocks. These
+   * differ slightly from the ledger, since check() never charges the
+   * empty source.
    */
-  Node front;
+  Ledger audited;
 
   /**
-   * The back of the chain.
+   * The log that records the blocks, or null if we keep none.
    */
-  Node back;
+  BlockLog log;
+
+  /**
+   * The saved ledgers for the log, or null if we keep no log.
+   */
+  LedgerCheckpoints checkpoints;
+
+  /**
+   * How often, in blocks, we save the ledger. Each save writes the
+   * whole ledger while the appending thread holds the chain, so a
+   * shorter interval makes other writers wait more often.
+   */
+  int checkpointInterval;
 
   /**
    * The validator.
    */
   HashValidator validator;
 
+  /**
+   * The number of threads used when mining.
+   */
+  int threads;
+
+  /**
+   * The engine used to compute hashes.
+   */
+  HashEngine engine;
+
+  /**
+   * Where we record what happens to the chain.
+   */
+  ChainMetrics metrics;
+
   // +--------------+------------------------------------------------
   // | Constructors |
   // +--------------+
@@ -46,16 +141,72 @@ public class BlockChain implements Iterable<Transaction> {
    *   The validator used to check elements.
    */
   public BlockChain(HashValidator check) {
+    this(check, 1);
+  } // BlockChain(HashValidator)
+
+  /**
+   * Create a new blockchain using a validator to check elements and
+   * a particular number of threads when mining.
+   *
+   * @param check
+   *   The validator used to check elements.
+   * @param numThreads
+   *   The number of threads used to mine new blocks.
+   */
+  public BlockChain(HashValidator check, int numThreads) {
+    this(check, numThreads, Block.ENGINE);
+  } // BlockChain(HashValidator, int)
+
+  /**
+   * Create a new blockchain using a validator to check elements,
+   * a particular number of threads when mining, and a particular
+   * engine to compute hashes when mining and checking.
+   *
+   * @param check
+   *   The validator used to check elements.
+   * @param numThreads
+   *   The number of threads used to mine new blocks.
+   * @param hashEngine
+   *   The engine used to compute hashes.
+   */
+  public BlockChain(HashValidator check, int numThreads,
+      HashEngine hashEngine) {
+    this(check, numThreads, hashEngine, new ChainMetrics());
+  } // BlockChain(HashValidator, int, HashEngine)
+
+  /**
+   * Create a new blockchain using a validator to check elements,
+   * a particular number of threads when mining, a particular engine
+   * to compute hashes when mining and checking, and a particular
+   * set of metrics to record what happens.
+   *
+   * @param check
+   *   The validator used to check elements.
+   * @param numThreads
+   *   The number of threads used to mine new blocks.
+   * @param hashEngine
+   *   The engine used to compute hashes.
+   * @param chainMetrics
+   *   Where to record what happens to the chain.
+   */
+  public BlockChain(HashValidator check, int numThreads,
+      HashEngine hashEngine, ChainMetrics chainMetrics) {
     this.validator = check;
+    this.threads = numThreads;
+    this.engine = hashEngine;
+    this.metrics = chainMetrics;
     Block b = 
         new Block(0, 
             new Transaction("", "", 0), 
-            new Hash(new byte[] {}), 
-            validator);
-    this.front = new Node(b);
-    this.back = this.front;
-    this.size = 1;
-  } // BlockChain(HashValidator)
+            new Hash(new byte[] {}));
+    this.newMiner().mine(b);
+    this.store = new SegmentedBlockStore().add(b);
+    this.lock = new StampedLock();
+    this.ledger = new Ledger();
+    this.verified = 0;
+    this.audited = new Ledger();
+    this.checkpointInterval = CHECKPOINT_INTERVAL;
+  } // BlockChain(HashValidator, int, HashEngine, ChainMetrics)
 
   // +---------+-----------------------------------------------------
   // | Helpers |
@@ -73,6 +224,523 @@ public class BlockChain implements Iterable<Transaction> {
     throw new Exception(message);
   } // fail(String)
 
+  /**
+   * Make sure that a block may follow another.
+   *
+   * @param prev
+   *   The block before.
+   * @param block
+   *   The block.
+   *
+   * @throws IllegalArgumentException if (a) the hash is not valid, (b)
+   *   the hash is not appropriate for the contents, or (c) the previous
+   *   hash is incorrect.
+   */
+  void checkAppend(Block prev, Block block) {
+    Hash hash = block.getHash();
+    if (!validator.isValid(hash)) {
+      metrics.rejections.increment();
+      throw new IllegalArgumentException("Invalid hash in appended block: " 
+          + hash);
+    }  // if
+    Hash expected = correctHash(block);
+    if (!expected.equals(hash)) {
+      throw new IllegalArgumentException("Incorrect hash in appended block: " 
+          + hash + " (expected " + expected + ")");
+    } // if
+    if (!prev.getHash().equals(block.getPrevHash())) {
+      throw new IllegalArgumentException("Invalid prevHash in appended block "
+          + block.getPrevHash());
+    } // if
+  } // checkAppend(Block, Block)
+
+  /**
+   * Add a block to the end of the chain, without recording how long
+   * it takes.
+   *
+   * @param block
+   *   The block to add to the end of the chain.
+   */
+  synchronized void appendBlock(Block block) {
+    this.checkAppend(this.store.last(), block);
+    if (this.log != null) {
+      // Write the block before we lock out readers, who need not wait
+      // for the log. A mapped store reads the block back from there.
+      this.log.addRecord(block);
+    } // if
+    this.addBlock(block);
+    if (this.log != null) {
+      // Commit only once the chain has the block, so that a failed
+      // commit cannot leave the block in the log but not the chain.
+      this.log.changed();
+    } // if
+    if ((this.checkpoints != null)
+        && (this.store.size() % this.checkpointInterval == 0)) {
+      // Save the ledger, making sure that the blocks it covers are on
+      // the disk first.
+      this.log.commit();
+      this.checkpoints.save(this.store.size(), block.getHash(), this.ledger);
+    } // if
+  } // appendBlock(Block)
+
+  /**
+   * Add a block that we have already checked (or that we trust) to the
+   * end of the chain, updating the balances and indexes.
+   *
+   * @param block
+   *   The block to add to the end of the chain.
+   */
+  void addBlock(Block block) {
+    long stamp = this.lock.writeLock();
+    try {
+      this.store = this.store.add(block);
+      this.updateBalances(block.getTransaction(), 1);
+      if (this.index != null) {
+        this.indexBlock(this.index, block);
+      } // if
+    } finally {
+      this.lock.unlockWrite(stamp);
+    } // try/finally
+  } // addBlock(Block)
+
+  /**
+   * Add a block at the end of the chain to the indexes.
+   *
+   * @param blockIndex
+   *   The indexes.
+   * @param block
+   *   The block.
+   */
+  void indexBlock(BlockIndex blockIndex, Block block) {
+    Transaction t = block.getTransaction();
+    blockIndex.add(block, this.ledger.find(t.getSource()),
+        this.ledger.find(t.getTarget()));
+  } // indexBlock(BlockIndex, Block)
+
+  /**
+   * Find the height of the block with a particular hash in a chain
+   * that keeps its blocks in a mapped log, using the log's table of
+   * hashes. We use this instead of the indexes in memory, which would
+   * grow with the chain.
+   *
+   * @param hash
+   *   The hash of the block.
+   *
+   * @return the height of the block, or -1 if there is none.
+   */
+  int lookUp(Hash hash) {
+    while (true) {
+      try {
+        return ((MappedBlockStore) this.store).heightOf(hash);
+      } catch (IllegalStateException e) {
+        // The chain removed a block as we looked, so start again.
+      } // try/catch
+    } // while
+  } // lookUp(Hash)
+
+  /**
+   * Find the blocks whose transactions involve a user in a chain that
+   * keeps its blocks in a mapped log, using the log's lists of records
+   * for each user, as lookUp(Hash) does.
+   *
+   * @param user
+   *   The user.
+   *
+   * @return the heights of the blocks, in increasing order.
+   */
+  int[] lookUp(String user) {
+    while (true) {
+      try {
+        return ((MappedBlockStore) this.store).history(user);
+      } catch (IllegalStateException e) {
+        // The chain removed a block as we looked, so start again.
+      } // try/catch
+    } // while
+  } // lookUp(String)
+
+  /**
+   * Get the indexes, building them if we have not yet done so.
+   *
+   * @return the indexes (or null, if the chain keeps its blocks in a
+   *   mapped log and so keeps no indexes).
+   */
+  BlockIndex index() {
+    BlockIndex result = this.index;
+    if (result != null) {
+      return result;
+    } // if
+    synchronized (this) {
+      if (this.store instanceof MappedBlockStore) {
+        return null;
+      } else if (this.index == null) {
+        BlockStore blocks = this.store;
+        result = new BlockIndex();
+        result.add(blocks.get(0), -1, -1);
+        for (int height = 1; height < blocks.size(); height++) {
+          this.indexBlock(result, blocks.get(height));
+        } // for
+        this.index = result;
+      } // if
+      return this.index;
+    } // synchronized
+  } // index()
+
+  /**
+   * Apply a transaction to the balances, or undo it. A transaction
+   * takes the amount from the source and, if the target is someone
+   * else, gives it to the target; that's what replaying the chain has
+   * always done.
+   *
+   * @param t
+   *   The transaction.
+   * @param direction
+   *   1 to apply the transaction or -1 to undo it.
+   */
+  void updateBalances(Transaction t, int direction) {
+    int amount = direction * t.getAmount();
+    int source = this.ledger.intern(t.getSource());
+    int target = this.ledger.intern(t.getTarget());
+    this.ledger.adjust(source, -amount);
+    if (target != source) {
+      this.ledger.adjust(target, amount);
+    } // if
+    this.ledger.receive(target, direction);
+  } // updateBalances(Transaction, int)
+
+  /**
+   * Record a verified transaction in a set of audited balances, or undo
+   * it.
+   *
+   * @param balances
+   *   The audited balances.
+   * @param t
+   *   The transaction.
+   * @param direction
+   *   1 to record the transaction or -1 to undo it.
+   */
+  static void audit(Ledger balances, Transaction t, int direction) {
+    int amount = direction * t.getAmount();
+    if (!"".equals(t.getSource())) {
+      balances.adjust(balances.find(t.getSource()), -amount);
+    } // if
+    int target = balances.intern(t.getTarget());
+    balances.adjust(target, amount);
+    balances.receive(target, direction);
+  } // audit(Ledger, Transaction, int)
+
+  /**
+   * Check the initial block.
+   *
+   * @param blocks
+   *   The blocks of the chain.
+   *
+   * @throws Exception
+   *   If the initial block is wrong.
+   */
+  void checkInitial(BlockStore blocks) throws Exception {
+    Transaction t = blocks.get(0).getTransaction();
+    if (!"".equals(t.getSource())) {
+      fail(String.format("Initial block has invalid source: \"%s\"",
+          t.getSource()));
+    } // if
+    if (!"".equals(t.getTarget())) {
+      fail(String.format("Initial block has invalid target: \"%s\"",
+          t.getTarget()));
+    } // if
+    if (0 != t.getAmount()) {
+      fail(String.format("Initial block has invalid amount: %d", 
+          t.getAmount()));
+    } // if
+  } // checkInitial(BlockStore)
+
+  /**
+   * Report what is wrong with the hashes of a block that failed the
+   * proof-of-work check.
+   *
+   * @param prev
+   *   The block before.
+   * @param block
+   *   The block.
+   *
+   * @throws Exception
+   *   If the hashes are wrong (which they should be).
+   */
+  void checkProof(Block prev, Block block) throws Exception {
+    Hash hash = block.getHash();
+    int num = block.getNum();
+
+    // Make sure the hash is valid.
+    if (!validator.isValid(hash)) {
+      metrics.rejections.increment();
+      fail(String.format("Invalid hash in block %d: $s" ,
+          num, hash.toString()));
+    }  // if
+
+    // Make sure the hash is correct.
+    Hash expected = correctHash(block);
+    if (!expected.equals(hash)) {
+      fail(String.format(
+          "Incorrect hash in block %d: %s (expected %s)",
+          num, hash.toString(), expected.toString()));
+    } // if
+
+    // Make sure the previous hash is correct.
+    if (!prev.getHash().equals(block.getPrevHash())) {
+      fail(String.format(
+          "Invalid prevHash in block %d: %s (expected %s)",
+          num, block.getPrevHash(), prev.getHash()));
+    } // if
+  } // checkProof(Block, Block)
+
+  /**
+   * Check the transaction in a block against the audited balances of
+   * the blocks before it.
+   *
+   * @param block
+   *   The block.
+   * @param balances
+   *   The audited balances.
+   *
+   * @throws Exception
+   *   If the transaction is not legal.
+   */
+  void checkTransaction(Block block, Ledger balances) throws Exception {
+    Transaction t = block.getTransaction();
+    int num = block.getNum();
+
+    // Check for valid source.
+    String source = t.getSource();
+    int sourceId = "".equals(source) ? -1 : balances.find(source);
+    if (!"".equals(source) && ((sourceId < 0)
+        || !balances.isUser(sourceId))) {
+      fail(String.format("Unknown source in block %d: \"%s\"", num, source));
+    } // if
+
+    // Check for valid target.
+    String target = t.getTarget();
+    if ("".equals(target)) {
+      fail(String.format("Invalid target in block %d: empty string", num));
+    } // if
+
+    // Check for valid amount.
+    int amount = t.getAmount();
+    if (amount < 0) {
+      fail(String.format("Negative amount in block %d: %d", num, amount));
+    } // if (amount < 0)
+    if ((sourceId >= 0) && (amount > balances.balance(sourceId))) {
+      fail(String.format("Insufficient balance for %s in block %d:"
+          + " Has %d, needs %d",
+          source, num, balances.balance(sourceId), amount));
+    } // if
+  } // checkTransaction(Block, Ledger)
+
+  /**
+   * Check every block in a set of blocks, from the initial block on.
+   * This is check() for blocks that are not (or no longer) the chain's
+   * own, such as those in a snapshot.
+   *
+   * @param blocks
+   *   The blocks to check.
+   *
+   * @return the audited balances after those blocks.
+   *
+   * @throws Exception
+   *   If things are wrong at any block.
+   */
+  Ledger checkBlocks(BlockStore blocks) throws Exception {
+    this.checkInitial(blocks);
+    Ledger balances = new Ledger();
+    int firstBad = new ProofCheck(this, blocks, 1, blocks.size()).invoke();
+    for (int height = 1; height < blocks.size(); height++) {
+      Block block = blocks.get(height);
+      if (height == firstBad) {
+        this.checkProof(blocks.get(height - 1), block);
+        firstBad = new ProofCheck(this, blocks, height + 1, blocks.size())
+            .invoke();
+      } // if
+      this.checkTransaction(block, balances);
+      audit(balances, block.getTransaction(), 1);
+    } // for
+    return balances;
+  } // checkBlocks(BlockStore)
+
+  /**
+   * Check the blocks that have not yet been verified, without
+   * recording how long it takes. Each block that passes moves the
+   * watermark up, so the next check starts after it.
+   *
+   * We first check the proof of work for all of the new blocks in
+   * parallel, which finds the first block (if any) whose hashes are
+   * wrong. The balances must be replayed in order, so we then go through
+   * the blocks one by one, checking each transaction and, at that first
+   * bad block, reporting what is wrong with its hashes. Hence we report
+   * the same problem that a sequential check would.
+   *
+   * @throws Exception
+   *   If things are wrong at any block.
+   */
+  synchronized void checkBlocks() throws Exception {
+    BlockStore blocks = this.store;
+    if (this.verified == 0) {
+      this.checkInitial(blocks);
+      this.verified = 1;
+    } // if
+
+    int firstBad =
+        new ProofCheck(this, blocks, this.verified, blocks.size()).invoke();
+    while (this.verified < blocks.size()) {
+      Block block = blocks.get(this.verified);
+      if (this.verified == firstBad) {
+        this.checkProof(blocks.get(this.verified - 1), block);
+        // It passed this time, so keep looking.
+        firstBad = new ProofCheck(this, blocks, firstBad + 1, blocks.size())
+            .invoke();
+      } // if
+      this.checkTransaction(block, this.audited);
+      audit(this.audited, block.getTransaction(), 1);
+
+      // Note that the block is verified.
+      this.verified++;
+    } // while
+  } // checkBlocks()
+
+  /**
+   * Replace the blocks of a chain that has only its initial block with
+   * those in a log. Normally, we check each block as append() does.
+   * If we trust the log, we take the stored hashes as they are and
+   * only make sure that the blocks are numbered and linked correctly,
+   * which takes no hashing at all. We also start from the latest saved
+   * ledger that still matches the log, so we need only replay the
+   * blocks after it. If the log is mapped, its saved index tells us
+   * where those blocks are, so we need not read the blocks before it
+   * at all.
+   *
+   * @param source
+   *   The log, which must not be empty.
+   * @param trusted
+   *   Whether to trust the hashes in the log.
+   *
+   * @throws IllegalArgumentException
+   *   If some block in the log is not valid.
+   */
+  void load(BlockLog source, boolean trusted) {
+    Block initial = source.get(0);
+    Hash hash = initial.getHash();
+    if (!trusted
+        && (!validator.isValid(hash) || !correctHash(initial).equals(hash))) {
+      throw new IllegalArgumentException("Invalid initial block in log: "
+          + hash);
+    } // if
+
+    // Find the latest saved ledger that matches the log.
+    int from = 1;
+    Ledger saved = null;
+    if (trusted) {
+      for (int height : this.checkpoints.heights()) {
+        if ((height >= 1) && (height <= source.size())) {
+          saved = this.checkpoints.load(height,
+              source.get(height - 1).getHash());
+          if (saved != null) {
+            from = height;
+            break;
+          } // if
+        } // if
+      } // for
+    } // if
+
+    boolean mapped = source.isMapped();
+    int start = mapped ? from : 1;
+    long stamp = this.lock.writeLock();
+    try {
+      if (!mapped) {
+        this.store = new SegmentedBlockStore().add(initial);
+      } // if
+      this.index = null;
+      this.verified = 0;
+      this.audited = new Ledger();
+      if (saved != null) {
+        this.ledger = saved;
+      } // if
+      Block prev = source.get(start - 1);
+      for (int height = start; height < source.size(); height++) {
+        Block block = source.get(height);
+        if (!trusted) {
+          this.checkAppend(prev, block);
+        } else if ((block.getNum() != height)
+            || !block.getPrevHash().equals(prev.getHash())) {
+          throw new IllegalArgumentException("Block " + height
+              + " in log does not follow the block before");
+        } // if/else
+        if (!mapped) {
+          this.store = this.store.add(block);
+        } // if
+        if (height >= from) {
+          this.updateBalances(block.getTransaction(), 1);
+        } // if
+        prev = block;
+      } // for
+      if (mapped) {
+        this.store = new MappedBlockStore(source);
+      } // if
+    } finally {
+      this.lock.unlockWrite(stamp);
+    } // try/finally
+  } // load(BlockLog, boolean)
+
+  /**
+   * Note that a check of some blocks passed, so that check() can
+   * start after them, as long as they are still in the chain.
+   *
+   * @param blocks
+   *   The blocks we checked.
+   * @param balances
+   *   The audited balances after those blocks.
+   */
+  synchronized void checked(BlockStore blocks, Ledger balances) {
+    int height = blocks.size();
+    BlockStore current = this.store;
+    if ((height > this.verified) && (height <= current.size())
+        && current.get(height - 1).getHash()
+            .equals(blocks.last().getHash())) {
+      this.verified = height;
+      this.audited = balances;
+    } // if
+  } // checked(BlockStore, Ledger)
+
+  /**
+   * Create an unmined block that would follow the current last block.
+   *
+   * @param t
+   *   The transaction that goes in the block.
+   *
+   * @return the block.
+   */
+  Block nextBlock(Transaction t) {
+    BlockStore blocks = this.store;
+    return new Block(blocks.size(), t, blocks.last().getHash());
+  } // nextBlock(Transaction)
+
+  /**
+   * Create a miner that mines blocks for this chain.
+   *
+   * @return a new miner.
+   */
+  Miner newMiner() {
+    return new Miner(validator, threads, engine, metrics);
+  } // newMiner()
+
+  /**
+   * Compute the hash that a block should have, given its contents.
+   *
+   * @param block
+   *   The block whose hash we want.
+   *
+   * @return the correct hash for the block.
+   */
+  Hash correctHash(Block block) {
+    return new Hash(engine.hash(block.prefixBytes(), block.getNonce()));
+  } // correctHash(Block)
+
   // +---------+-----------------------------------------------------
   // | Methods |
   // +---------+
@@ -87,16 +755,99 @@ public class BlockChain implements Iterable<Transaction> {
    * @return a new block with correct number, hashes, and such.
    */
   public Block mine(Transaction t) {
-    return new Block(this.size, t, this.back.block.getHash(), validator);
+    Block block = this.nextBlock(t);
+    this.newMiner().mine(block);
+    return block;
   } // mine(Transaction)
 
+  /**
+   * Mine for a new valid block for the end of the chain, searching the
+   * nonces in order and saving how far we got in a checkpoint file.
+   * If mining stops early (say, because the program is killed), mining
+   * the same transaction on the same chain with the same checkpoint
+   * file continues where it stopped.
+   *
+   * @param t
+   *   The transaction that goes in the block.
+   * @param checkpoint
+   *   The checkpoint file. It need not exist, and it is removed once
+   *   we find a block.
+   *
+   * @return a new block with correct number, hashes, and such.
+   */
+  public Block mine(Transaction t, Path checkpoint) {
+    Block block = this.nextBlock(t);
+    this.newMiner().resumable(checkpoint).mine(block);
+    return block;
+  } // mine(Transaction, Path)
+
+  /**
+   * Start mining a new block for the end of the chain in the background.
+   * The block is based on the chain as it is now, so it can only be
+   * appended if nothing else is appended or removed in the meantime.
+   *
+   * @param t
+   *   The transaction that goes in the block.
+   *
+   * @return a task that eventually gives a new block with correct
+   *   number, hashes, and such.
+   */
+  public MiningTask mineAsync(Transaction t) {
+    return new MiningTask(this.nextBlock(t), this.newMiner());
+  } // mineAsync(Transaction)
+
+  /**
+   * Start mining a new block for the end of the chain in the background,
+   * searching the nonces in order and saving how far we got in a
+   * checkpoint file. Cancelling the task also saves the checkpoint.
+   *
+   * @param t
+   *   The transaction that goes in the block.
+   * @param checkpoint
+   *   The checkpoint file. It need not exist, and it is removed once
+   *   we find a block.
+   *
+   * @return a task that eventually gives a new block with correct
+   *   number, hashes, and such.
+   */
+  public MiningTask mineAsync(Transaction t, Path checkpoint) {
+    return new MiningTask(this.nextBlock(t),
+        this.newMiner().resumable(checkpoint));
+  } // mineAsync(Transaction, Path)
+
+  /**
+   * Start mining a new block for the end of the chain in the background,
+   * giving up if mining takes too long.
+   *
+   * @param t
+   *   The transaction that goes in the block.
+   * @param timeout
+   *   How long to mine before giving up.
+   * @param unit
+   *   The units of timeout.
+   *
+   * @return a task that eventually gives a new block or times out.
+   */
+  public MiningTask mineAsync(Transaction t, long timeout, TimeUnit unit) {
+    return this.mineAsync(t).orTimeout(timeout, unit);
+  } // mineAsync(Transaction, long, TimeUnit)
+
+  /**
+   * Get the metrics that record what happens to the chain.
+   *
+   * @return the metrics.
+   */
+  public ChainMetrics getMetrics() {
+    return this.metrics;
+  } // getMetrics()
+
   /**
    * Get the number of blocks curently in the chain.
    *
    * @return the number of blocks in the chain, including the initial block.
    */
   public int getSize() {
-    return this.size;
+    return this.store.size();
   } // getSize()
 
   /**
@@ -108,26 +859,17 @@ public class BlockChain implements Iterable<Transaction> {
    * @throws IllegalArgumentException if (a) the hash is not valid, (b)
    *   the hash is not appropriate for the contents, or (c) the previous
    *   hash is incorrect.
+   * @throws UncheckedIOException if the chain keeps a log and cannot
+   *   commit it. The block is in the chain and the log nonetheless, and
+   *   the next commit tries again.
    */
   public void append(Block block) {
-    Hash hash = block.getHash();
-    if (!validator.isValid(hash)) {
-      throw new IllegalArgumentException("Invalid hash in appended block: " 
-          + hash);
-    }  // if
-    Block alt = new Block(block.getNum(), block.getTransaction(),
-        block.getPrevHash(), block.getNonce());
-    if (!alt.getHash().equals(hash)) {
-      throw new IllegalArgumentException("Incorrect hash in appended block: " 
-          + hash + " (expected " + alt.getHash() + ")");
-    } // if
-    if (!this.back.block.getHash().equals(block.getPrevHash())) {
-      throw new IllegalArgumentException("Invalid prevHash in appended block "
-          + block.getPrevHash());
-    } // if
-    this.back.next = new Node(block);
-    this.back = this.back.next;
-    this.size++;
+    long startTime = System.nanoTime();
+    try {
+      this.appendBlock(block);
+    } finally {
+      metrics.appending.record(System.nanoTime() - startTime);
+    } // try/finally
   } // append()
 
   /**
@@ -136,18 +878,58 @@ public class BlockChain implements Iterable<Transaction> {
    * @return false if the chain has only one block (in which case it's
    *   not removed) or true otherwise (in which case the last block
    *   is removed).
+   *
+   * @throws UncheckedIOException if the chain keeps a log and cannot
+   *   change or commit it. If the log could not be changed, neither is
+   *   the chain; if the change could not be committed, the block is
+   *   gone from both, and the next commit tries again.
    */
-  public boolean removeLast() {
-    if (this.front == this.back) {
+  public synchronized boolean removeLast() {
+    if (this.store.size() == 1) {
       return false;
     } else {
-      Node current = this.front;
-      while (current.next != this.back) {
-        current = current.next;
-      } // while
-      this.back = current;
-      this.back.next = null;
-      this.size--;
+      Block block = this.store.last();
+      Transaction t = block.getTransaction();
+      boolean mapped = (this.log != null) && this.log.isMapped();
+      if ((this.log != null) && !mapped) {
+        this.log.removeRecord();
+      } // if
+      long stamp = this.lock.writeLock();
+      try {
+        this.store = this.store.removeLast();
+        if (this.index != null) {
+          this.index.removeLast(block, this.ledger.find(t.getSource()),
+              this.ledger.find(t.getTarget()));
+        } // if
+        this.updateBalances(t, -1);
+      } finally {
+        this.lock.unlockWrite(stamp);
+      } // try/finally
+      if (mapped) {
+        // Readers of the old store may still want the block, so we only
+        // take it out of the log once the chain no longer has it.
+        try {
+          this.log.removeRecord();
+        } catch (UncheckedIOException e) {
+          this.addBlock(block);
+          throw e;
+        } // try/catch
+      } // if
+      if (this.verified > this.store.size()) {
+        // The block was verified, so take it out of the audit.
+        audit(this.audited, block.getTransaction(), -1);
+        this.verified = this.store.size();
+      } // if
+      if ((this.checkpoints != null)
+          && (this.store.size() % this.checkpointInterval
+              == this.checkpointInterval - 1)) {
+        // We removed the block below a saved ledger, which no longer
+        // applies. The ones before it still do.
+        this.checkpoints.discard(this.store.size() + 1);
+      } // if
+      if (this.log != null) {
+        this.log.changed();
+      } // if
       return true;
     } // if/else
   } // removeLast()
@@ -158,9 +940,208 @@ public class BlockChain implements Iterable<Transaction> {
    * @return the hash of the last sblock in the chain.
    */
   public Hash getHash() {
-    return this.back.block.getHash();
+    return this.store.last().getHash();
   } // getHash()
 
+  /**
+   * Get the block at a particular height.
+   *
+   * @param height
+   *   The height of the block; the initial block is at height 0.
+   *
+   * @return the block.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If the chain has no block at that height.
+   */
+  public Block getBlock(int height) {
+    return this.store.get(height);
+  } // getBlock(int)
+
+  /**
+   * Find the height of the block with a particular hash. The first
+   * call builds an index of all the blocks; later calls take constant
+   * time. If the chain keeps its blocks in a mapped log, though, we
+   * keep no index in memory and instead use the log's table of hashes,
+   * which takes about as long.
+   *
+   * @param hash
+   *   The hash of the block.
+   *
+   * @return the height of the block, or -1 if no block in the chain has
+   *   that hash.
+   */
+  public int heightOf(Hash hash) {
+    BlockIndex blockIndex = this.index();
+    if (blockIndex == null) {
+      return this.lookUp(hash);
+    } // if
+    long stamp = this.lock.readLock();
+    try {
+      return blockIndex.height(hash);
+    } finally {
+      this.lock.unlockRead(stamp);
+    } // try/finally
+  } // heightOf(Hash)
+
+  /**
+   * Find the blocks whose transactions involve a user, as source or
+   * target. The first call builds an index of all the blocks; later
+   * calls take time proportional to the number of blocks found. As with
+   * heightOf(Hash), a chain in a mapped log uses the log's index
+   * instead, which takes about as long.
+   *
+   * @param user
+   *   The user.
+   *
+   * @return the heights of the blocks, in increasing order.
+   */
+  public int[] history(String user) {
+    BlockIndex blockIndex = this.index();
+    if (blockIndex == null) {
+      return this.lookUp(user);
+    } // if
+    long stamp = this.lock.readLock();
+    try {
+      return blockIndex.postings(this.ledger.find(user));
+    } finally {
+      this.lock.unlockRead(stamp);
+    } // try/finally
+  } // history(String)
+
+  /**
+   * Keep a log of the chain, so that it outlives the program. If the
+   * log is empty, we write the blocks already in the chain to it.
+   * Otherwise, the chain must have only its initial block, and we
+   * replace that block with the blocks in the log, checking each one as
+   * append() does. From then on, every block that we append or remove
+   * goes into the log as well. The caller remains responsible for
+   * closing the log.
+   *
+   * If the log is mapped (see BlockLog.mapped()), the chain keeps its
+   * blocks only in the log from then on, reading them back as they are
+   * needed, so the chain can grow beyond memory. Snapshots and
+   * iterators can then no longer get blocks that have since been
+   * removed; they throw IllegalStateException instead.
+   *
+   * @param theLog
+   *   The log.
+   *
+   * @throws IllegalStateException
+   *   If the log is not empty and neither is the chain.
+   * @throws IllegalArgumentException
+   *   If some block in the log is not valid.
+   */
+  public void attach(BlockLog theLog) {
+    this.attach(theLog, false);
+  } // attach(BlockLog)
+
+  /**
+   * Keep a log of the chain, as attach(BlockLog) does, but, if we load
+   * blocks from the log, optionally trust the hashes it holds. That
+   * makes starting from a log of our own much faster, since we need not
+   * hash every block again. The blocks still count as unverified, so
+   * the first check() (or verifyInBackground()) checks them all.
+   *
+   * @param theLog
+   *   The log.
+   * @param trusted
+   *   Whether to trust the hashes in the log.
+   *
+   * @throws IllegalStateException
+   *   If the log is not empty and neither is the chain.
+   * @throws IllegalArgumentException
+   *   If some block in the log is not valid (or, for a trusted log, if
+   *   the blocks are not linked correctly).
+   */
+  public synchronized void attach(BlockLog theLog, boolean trusted) {
+    if (theLog.size() == 0) {
+      BlockStore blocks = this.store;
+      for (int height = 0; height < blocks.size(); height++) {
+        theLog.append(blocks.get(height));
+      } // for
+      theLog.commit();
+      if (theLog.isMapped()) {
+        long stamp = this.lock.writeLock();
+        try {
+          this.store = new MappedBlockStore(theLog);
+          this.index = null;
+        } finally {
+          this.lock.unlockWrite(stamp);
+        } // try/finally
+      } // if
+      this.checkpoints = new LedgerCheckpoints(theLog.file);
+    } else if (this.store.size() > 1) {
+      throw new IllegalStateException(
+          "Cannot load a log into a chain that already has blocks");
+    } else {
+      this.checkpoints = new LedgerCheckpoints(theLog.file);
+      this.load(theLog, trusted);
+    } // if/else
+    this.log = theLog;
+  } // attach(BlockLog, boolean)
+
+  /**
+   * Get the threads that run background checks, starting them if we
+   * have not yet done so.
+   *
+   * @return the pool of threads.
+   */
+  static synchronized ForkJoinPool background() {
+    if (background == null) {
+      background = new ForkJoinPool(BACKGROUND_THREADS);
+    } // if
+    return background;
+  } // background()
+
+  /**
+   * Check the whole chain, as it is now, in the background. The work
+   * happens on a small pool of threads, shared by every chain, so that
+   * it leaves most of the cores to mining, and it does not stop anyone
+   * from reading or changing the chain in the meantime. If the check
+   * passes, later calls to check() need not repeat it.
+   *
+   * @return a future that completes when the check is done, normally
+   *   if the blocks check out and exceptionally (with the exception
+   *   check() would throw) if not.
+   */
+  public CompletableFuture<Void> verifyInBackground() {
+    BlockStore blocks = this.store;
+    CompletableFuture<Void> result = new CompletableFuture<Void>();
+    background().execute(() -> {
+      long startTime = System.nanoTime();
+      try {
+        this.checked(blocks, this.checkBlocks(blocks));
+        result.complete(null);
+      } catch (Exception e) {
+        result.completeExceptionally(e);
+      } finally {
+        metrics.checking.record(System.nanoTime() - startTime);
+      } // try/finally
+    });
+    return result;
+  } // verifyInBackground()
+
+  /**
+   * Take a read-only snapshot of the chain as it is now. The snapshot
+   * shares its blocks and balances with the chain, so this takes
+   * constant time, and it does not change as the chain does.
+   *
+   * We only hold the write lock while we copy the fields, so taking a
+   * snapshot never waits for a writer that is checking a block. (Sharing
+   * the ledger marks it as shared, so an optimistic read will not do.)
+   *
+   * @return the snapshot.
+   */
+  public ChainSnapshot snapshot() {
+    long stamp = this.lock.writeLock();
+    try {
+      return new ChainSnapshot(this, this.store, this.ledger.snapshot());
+    } finally {
+      this.lock.unlockWrite(stamp);
+    } // try/finally
+  } // snapshot()
+
   /**
    * Determine if the blockchain is correct in that (a) the balances are
    * legal/correct at every step, (b) that every block has a correct
@@ -184,130 +1165,105 @@ public class BlockChain implements Iterable<Transaction> {
    * previous hash field, (c) that every block has a hash that is correct
    * for its contents, and (d) that every block has a valid hash.
    *
+   * Blocks cannot change once they are in the chain, so we only verify
+   * the blocks appended since the last successful check. Use checkAll()
+   * to verify everything again.
+   *
    * @throws Exception
    *   If things are wrong at any block.
    */
   public void check() throws Exception {
-    Iterator<Block> blocks = this.blocks();
-
-    // Grab the first block and check it out.
-    Block prev = blocks.next();      // Get the first block.
-    Transaction t = prev.getTransaction();
-    if (!"".equals(t.getSource())) {
-      fail(String.format("Initial block has invalid source: \"%s\"",
-          t.getSource()));
-    } // if
-    if (!"".equals(t.getTarget())) {
-      fail(String.format("Initial block has invalid target: \"%s\"",
-          t.getTarget()));
-    } // if
-    if (0 != t.getAmount()) {
-      fail(String.format("Initial block has invalid amount: %d", 
-          t.getAmount()));
-    } // if
-
-    HashMap<String,Integer> balances = new HashMap<String,Integer>(); 
-    while (blocks.hasNext()) {
-      // Gather basic information.
-      Block block = blocks.next();
-      Hash hash = block.getHash();
-      int num = block.getNum();
-
-      // Make sure the hash is valid.
-      if (!validator.isValid(hash)) {
-        fail(String.format("Invalid hash in block %d: $s" ,
-            num, hash.toString()));
-      }  // if
-
-      // Make sure the hash is correct.
-      Block alt = new Block(block.getNum(), block.getTransaction(),
-          block.getPrevHash(), block.getNonce());
-      if (!alt.getHash().equals(hash)) {
-        fail(String.format("Incorrect hash in block %d: %s (expected %s)",
-            num, hash.toString(), alt.getHash().toString()));
-      } // if
-    
-      // Make sure the previous hash is correct.
-      if (!prev.getHash().equals(block.getPrevHash())) {
-        fail(String.format("Invalid prevHash in block %d: %s (expected %s)",
-            num, block.getPrevHash(), prev.getHash()));
-      } // if
-
-      // Prepare to check the transaction.
-      t = block.getTransaction();
-
-      // Check for valid source.
-      String source = t.getSource();
-      if (!"".equals(source) && !balances.containsKey(source)) {
-        fail(String.format("Unknown source in block %d: \"%s\"", num, source));
-      } // if
-
-      // Check for valid target.
-      String target = t.getTarget();
-      if ("".equals(target)) {
-        fail(String.format("Invalid target in block %d: empty string", num));
-      } // if
-
-      // Check for valid amount.
-      int amount = t.getAmount();
-      if (amount < 0) {
-        fail(String.format("Negative amount in block %d: %d", num, amount));
-      } // if (amount < 0)
-      if ((!"".equals(source)) && (amount > balances.get(source))) {
-        fail(String.format("Insufficient balance for %s in block %d:"
-            + " Has %d, needs %d",
-            source, num, balances.get(source), amount));
-      } // if
-
-      // Update the balances
-      if (!"".equals(source)) {
-        balances.put(source, balances.get(source) - amount);
-      } // if
-      if (!balances.containsKey(target)) {
-        balances.put(target, amount);
-      } else {
-        balances.put(target, balances.get(target) + amount);
-      } // if/else
-
-      // Update the previous block
-      prev = block;
-    } // while
+    long startTime = System.nanoTime();
+    try {
+      this.checkBlocks();
+    } finally {
+      metrics.checking.record(System.nanoTime() - startTime);
+    } // try/finally
   } // check()
 
+  /**
+   * Verify the whole blockchain from the initial block, as check() does
+   * the first time. This is for audits that do not trust anything
+   * verified earlier.
+   *
+   * @throws Exception
+   *   If things are wrong at any block.
+   */
+  public synchronized void checkAll() throws Exception {
+    this.verified = 0;
+    this.audited = new Ledger();
+    this.check();
+  } // checkAll()
+
   /**
    * Return an iterator of all the people who participated in the
-   * system.
+   * system, that is, everyone who has received something, in the order
+   * they first did. The iterator walks the ledger's list of users, so
+   * it never looks at the blocks.
    *
    * @return an iterator of all the people in the system.
    */
   public Iterator<String> users() {
     return new Iterator<String>() {
-      HashSet<String> returned = new HashSet<String>();
-      Node current = BlockChain.this.front;
-      {
-        current = current.next;
-      } // current
+      int current = 0;
+
       public boolean hasNext() {
-        return current != null;
+        return this.current < BlockChain.this.ledger.userCount();
       } // hasNext()
 
       public String next() {
-        String user = current.block.getTransaction().getTarget();
-        returned.add(user);
-        String nextUser = "";
-        do {
-          current = current.next;
-          if (current != null) {
-            nextUser = current.block.getTransaction().getTarget();
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        } // if
+        StampedLock lock = BlockChain.this.lock;
+        long stamp = lock.tryOptimisticRead();
+        try {
+          Ledger ledger = BlockChain.this.ledger;
+          String name = ledger.name(ledger.user(this.current));
+          if (lock.validate(stamp)) {
+            this.current++;
+            return name;
           } // if
-        } while ((current != null) && (returned.contains(nextUser)));
-        return user;
+        } catch (RuntimeException e) {
+          // A change got in the way; try again under the lock.
+        } // try/catch
+        stamp = lock.readLock();
+        try {
+          Ledger ledger = BlockChain.this.ledger;
+          if (this.current >= ledger.userCount()) {
+            throw new NoSuchElementException();
+          } // if
+          return ledger.name(ledger.user(this.current++));
+        } finally {
+          lock.unlockRead(stamp);
+        } // try/finally
       } // next()
     };
   } // users()
 
   /**
-   * Find one user's balance.
+   * Determine how many people have participated in the system, that is,
+   * how many users() returns.
+   *
+   * @return the number of users.
+   */
+  public int userCount() {
+    long stamp = this.lock.tryOptimisticRead();
+    int result = this.ledger.userCount();
+    if (!this.lock.validate(stamp)) {
+      stamp = this.lock.readLock();
+      try {
+        result = this.ledger.userCount();
+      } finally {
+        this.lock.unlockRead(stamp);
+      } // try/finally
+    } // if
+    return result;
+  } // userCount()
+
+  /**
+   * Find one user's balance. The chain keeps every balance up to date
+   * as blocks come and go, so this takes constant time.
    *
    * @param user
    *   The user whose balance we want to find.
@@ -315,15 +1271,25 @@ public class BlockChain implements Iterable<Transaction> {
    * @return that user's balance (or 0, if the user is not in the system).
    */
   public int balance(String user) {
-    int balance = 0;
-    for (Transaction t : this) {
-      if (user.equals(t.getSource())) {
-        balance -= t.getAmount();
-      } else if (user.equals(t.getTarget())) {
-        balance += t.getAmount();
-      } // if/else
-    } // for
-    return balance;
+    long stamp = this.lock.tryOptimisticRead();
+    try {
+      Ledger accounts = this.ledger;
+      int id = accounts.find(user);
+      long result = (id < 0) ? 0 : accounts.balance(id);
+      if (this.lock.validate(stamp)) {
+        return (int) result;
+      } // if
+    } catch (RuntimeException e) {
+      // A change got in the way; try again under the lock.
+    } // try/catch
+    stamp = this.lock.readLock();
+    try {
+      Ledger accounts = this.ledger;
+      int id = accounts.find(user);
+      return (id < 0) ? 0 : (int) accounts.balance(id);
+    } finally {
+      this.lock.unlockRead(stamp);
+    } // try/finally
   } // balance(String)
 
   /**
@@ -332,17 +1298,19 @@ public class BlockChain implements Iterable<Transaction> {
    * @return an iterator for all the blocks in the chain.
    */
   public Iterator<Block> blocks() {
+    BlockStore blocks = this.store;
     return new Iterator<Block>() {
-      Node current = BlockChain.this.front;
+      int current = 0;
 
       public boolean hasNext() {
-        return this.current != null;
+        return this.current < blocks.size();
       } // hasNext()
 
       public Block next() {
-        Block block = this.current.block;
-        current = this.current.next;
-        return block;
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        } // if
+        return blocks.get(this.current++);
       } // next()
     };
   } // blocks()
@@ -369,49 +1337,3 @@ public class BlockChain implements Iterable<Transaction> {
   } // iterator()
 
 } // class BlockChain
-
-/**
- * Nodes in the BlockChain.
- */
-class Node {
-  // +--------+------------------------------------------------------
-  // | Fields |
-  // +--------+
-
-  /**
-   * The block.
-   */
-  Block block;
-
-  /**
-   * The next node.
-   */
-  Node next;
-
-  // +--------------+------------------------------------------------
-  // | Constructors |
-  // +--------------+
-  
-  /**
-   * Create a node given both block and next.
-   *
-   * @param b
-   *   The block.
-   * @param n
-   *   The next node.
-   */
-  Node(Block b, Node n) {
-    this.block = b;
-    this.next = n;
-  } // Node(Block, Node)
-
-  /**
-   * Create a node given just the block.
-   *
-   * @param b
-   *   The block.
-   */
-  Node(Block b) {
-    this(b, null);
-  } // Node(Block)
-} // class Node
@@ -0,0 +1,557 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A compact binary form for blocks and transactions.
+ *
+ * Block numbers and name references are unsigned varints (seven bits
+ * per byte, low bits first, with the high bit set on every byte but the
+ * last), and amounts are zigzag varints, so small values take one byte.
+ * 32-byte hashes are written as they are, with no length; hashes of
+ * other lengths (such as the empty previous hash of an initial block)
+ * are marked in a flags byte and carry a varint length. The nonce takes
+ * eight bytes, since nonces are essentially random.
+ *
+ * User names come from a dictionary that the encoder and decoder build
+ * as they go. The first time a name appears, we give it the next id and
+ * write the id along with the name itself; after that, we write just
+ * the id. So a codec must decode blocks in the order another codec
+ * encoded them, although a codec that has already seen a block can
+ * decode it again at any time. forget() drops the names learned from
+ * the last few blocks, for when those blocks are removed, and
+ * dictionary() and loadDictionary() save the names and restore them,
+ * so that a codec can pick up where another left off.
+ *
+ * One thread at a time may encode blocks or learn names. Other threads
+ * may decode blocks that the codec has already seen in the meantime,
+ * as long as they pass learn = false.
+ *
+ * A typical block takes under 90 bytes, a third of its toString().
+ *
+ * @author agent
+ */
+public class BlockCodec {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The flag for a previous hash that is not 32 bytes.
+   */
+  static final int ODD_PREV = 1;
+
+  /**
+   * The flag for a hash that is not 32 bytes.
+   */
+  static final int ODD_HASH = 2;
+
+  /**
+   * The most bytes in a varint for an int.
+   */
+  static final int MAX_VARINT = 5;
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The id of each name.
+   */
+  HashMap<String, Integer> ids;
+
+  /**
+   * The name of each id. We replace the array, rather than change it,
+   * when it fills.
+   */
+  volatile String[] names;
+
+  /**
+   * The number of names.
+   */
+  volatile int size;
+
+  /**
+   * Where we encode blocks.
+   */
+  ByteBuffer scratch;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a codec with an empty dictionary.
+   */
+  public BlockCodec() {
+    this.ids = new HashMap<String, Integer>();
+    this.names = new String[16];
+    this.size = 0;
+    this.scratch = ByteBuffer.allocate(256);
+  } // BlockCodec()
+
+  // +----------------+----------------------------------------------
+  // | Varint helpers |
+  // +----------------+
+
+  /**
+   * Write an unsigned varint.
+   *
+   * @param buffer
+   *   Where to write it.
+   * @param value
+   *   The value, treated as unsigned.
+   */
+  static void putVarint(ByteBuffer buffer, int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    } // while
+    buffer.put((byte) value);
+  } // putVarint(ByteBuffer, int)
+
+  /**
+   * Read an unsigned varint.
+   *
+   * @param buffer
+   *   Where to read it.
+   *
+   * @return the value.
+   *
+   * @throws IllegalArgumentException
+   *   If the varint is too long.
+   */
+  static int getVarint(ByteBuffer buffer) {
+    int result = 0;
+    for (int shift = 0; shift < 7 * MAX_VARINT; shift += 7) {
+      byte b = buffer.get();
+      result |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return result;
+      } // if
+    } // for
+    throw new IllegalArgumentException("Varint too long");
+  } // getVarint(ByteBuffer)
+
+  /**
+   * Write a signed varint, zigzag-encoded so that small negative values
+   * are short, too.
+   *
+   * @param buffer
+   *   Where to write it.
+   * @param value
+   *   The value.
+   */
+  static void putSignedVarint(ByteBuffer buffer, int value) {
+    putVarint(buffer, (value << 1) ^ (value >> 31));
+  } // putSignedVarint(ByteBuffer, int)
+
+  /**
+   * Read a signed varint.
+   *
+   * @param buffer
+   *   Where to read it.
+   *
+   * @return the value.
+   */
+  static int getSignedVarint(ByteBuffer buffer) {
+    int zigzag = getVarint(buffer);
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  } // getSignedVarint(ByteBuffer)
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Write a name, adding it to the dictionary if it is new.
+   *
+   * @param buffer
+   *   Where to write it.
+   * @param name
+   *   The name.
+   */
+  void putName(ByteBuffer buffer, String name) {
+    Integer id = this.ids.get(name);
+    if (id != null) {
+      putVarint(buffer, id << 1);
+    } else {
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      putVarint(buffer, (this.size << 1) | 1);
+      putVarint(buffer, bytes.length);
+      buffer.put(bytes);
+      this.learn(name);
+    } // if/else
+  } // putName(ByteBuffer, String)
+
+  /**
+   * Read a name. We only build a string for a name we have not seen
+   * before.
+   *
+   * @param buffer
+   *   Where to read it.
+   * @param learn
+   *   Whether we may add a new name to the dictionary.
+   *
+   * @return the name.
+   *
+   * @throws IllegalArgumentException
+   *   If the name refers to an id that we do not know (or may not
+   *   learn).
+   */
+  String getName(ByteBuffer buffer, boolean learn) {
+    int ref = getVarint(buffer);
+    int id = ref >>> 1;
+    if ((ref & 1) == 0) {
+      if (id >= this.size) {
+        throw new IllegalArgumentException("Unknown name id " + id);
+      } // if
+      return this.names[id];
+    } // if
+    int length = getVarint(buffer);
+    if ((length < 0) || (length > buffer.remaining())) {
+      throw new IllegalArgumentException("Truncated name");
+    } else if (id < this.size) {
+      // We have seen this block before, so we already know the name.
+      buffer.position(buffer.position() + length);
+      return this.names[id];
+    } else if ((id > this.size) || !learn) {
+      throw new IllegalArgumentException("Name id " + id + " out of order");
+    } // if/else
+    String name;
+    if (buffer.hasArray()) {
+      name = new String(buffer.array(),
+          buffer.arrayOffset() + buffer.position(), length,
+          StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      name = new String(bytes, StandardCharsets.UTF_8);
+    } // if/else
+    this.learn(name);
+    return name;
+  } // getName(ByteBuffer, boolean)
+
+  /**
+   * Add a name to the dictionary.
+   *
+   * @param name
+   *   The name.
+   */
+  void learn(String name) {
+    int id = this.size;
+    if (id == this.names.length) {
+      this.names = Arrays.copyOf(this.names, 2 * id);
+    } // if
+    this.names[id] = name;
+    this.ids.put(name, id);
+    this.size = id + 1;
+  } // learn(String)
+
+  /**
+   * Write a hash, with its length only if that is not 32 bytes (in
+   * which case the flags say so).
+   *
+   * @param buffer
+   *   Where to write it.
+   * @param hash
+   *   The hash.
+   */
+  static void putHash(ByteBuffer buffer, Hash hash) {
+    if (!hash.isCompact()) {
+      putVarint(buffer, hash.length());
+    } // if
+    hash.writeTo(buffer);
+  } // putHash(ByteBuffer, Hash)
+
+  /**
+   * Read a hash.
+   *
+   * @param buffer
+   *   Where to read it.
+   * @param compact
+   *   Whether the hash is 32 bytes long.
+   *
+   * @return the hash.
+   *
+   * @throws IllegalArgumentException
+   *   If the hash has a bad length or runs past the end of the buffer.
+   */
+  static Hash getHash(ByteBuffer buffer, boolean compact) {
+    if (compact) {
+      return new Hash(buffer.getLong(), buffer.getLong(), buffer.getLong(),
+          buffer.getLong());
+    } // if
+    int length = getVarint(buffer);
+    if ((length < 0) || (length > buffer.remaining())) {
+      throw new IllegalArgumentException("Truncated hash");
+    } // if
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new Hash(bytes);
+  } // getHash(ByteBuffer, boolean)
+
+  /**
+   * Find the most bytes we might need to encode a block.
+   *
+   * @param block
+   *   The block.
+   *
+   * @return the number of bytes.
+   */
+  static int maxSize(Block block) {
+    Transaction t = block.getTransaction();
+    return 3 * (t.getSource().length() + t.getTarget().length())
+        + 7 * MAX_VARINT + 1 + block.getPrevHash().length() + Long.BYTES
+        + block.getHash().length();
+  } // maxSize(Block)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Determine how many names are in the dictionary.
+   *
+   * @return the number of names.
+   */
+  public int names() {
+    return this.size;
+  } // names()
+
+  /**
+   * Drop names from the end of the dictionary, as when the blocks that
+   * introduced them are removed.
+   *
+   * @param count
+   *   The number of names to keep.
+   */
+  public void forget(int count) {
+    for (int id = this.size - 1; id >= count; id--) {
+      this.size = id;
+      this.ids.remove(this.names[id]);
+      this.names[id] = null;
+    } // for
+  } // forget(int)
+
+  /**
+   * Save the dictionary: the number of names, and then the length and
+   * bytes of each name in order of id.
+   *
+   * @return the saved dictionary.
+   */
+  public byte[] dictionary() {
+    byte[][] bytes = new byte[this.size][];
+    int total = MAX_VARINT;
+    for (int id = 0; id < this.size; id++) {
+      bytes[id] = this.names[id].getBytes(StandardCharsets.UTF_8);
+      total += MAX_VARINT + bytes[id].length;
+    } // for
+    ByteBuffer buffer = ByteBuffer.allocate(total);
+    putVarint(buffer, this.size);
+    for (byte[] name : bytes) {
+      putVarint(buffer, name.length);
+      buffer.put(name);
+    } // for
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  } // dictionary()
+
+  /**
+   * Learn the names in a saved dictionary, which must be empty.
+   *
+   * @param buffer
+   *   Where to read the dictionary, which must fill the buffer.
+   *
+   * @throws IllegalArgumentException
+   *   If the bytes are not a dictionary, in which case we learn
+   *   nothing.
+   */
+  public void loadDictionary(ByteBuffer buffer) {
+    if (this.size != 0) {
+      throw new IllegalStateException("Dictionary is not empty");
+    } // if
+    try {
+      int count = getVarint(buffer);
+      if ((count < 0) || (count > buffer.remaining())) {
+        throw new IllegalArgumentException("Bad name count " + count);
+      } // if
+      String[] loaded = new String[count];
+      for (int id = 0; id < count; id++) {
+        int length = getVarint(buffer);
+        if ((length < 0) || (length > buffer.remaining())) {
+          throw new IllegalArgumentException("Truncated name");
+        } // if
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        loaded[id] = new String(bytes, StandardCharsets.UTF_8);
+      } // for
+      if (buffer.hasRemaining()) {
+        throw new IllegalArgumentException("Extra bytes after names");
+      } // if
+      for (String name : loaded) {
+        this.learn(name);
+      } // for
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated dictionary");
+    } // try/catch
+  } // loadDictionary(ByteBuffer)
+
+  /**
+   * Write a transaction.
+   *
+   * @param buffer
+   *   Where to write it, which must have enough room.
+   * @param t
+   *   The transaction.
+   */
+  public void putTransaction(ByteBuffer buffer, Transaction t) {
+    this.putName(buffer, t.getSource());
+    this.putName(buffer, t.getTarget());
+    putSignedVarint(buffer, t.getAmount());
+  } // putTransaction(ByteBuffer, Transaction)
+
+  /**
+   * Read a transaction.
+   *
+   * @param buffer
+   *   Where to read it.
+   *
+   * @return the transaction.
+   *
+   * @throws IllegalArgumentException
+   *   If the bytes are not a transaction.
+   */
+  public Transaction getTransaction(ByteBuffer buffer) {
+    return this.getTransaction(buffer, true);
+  } // getTransaction(ByteBuffer)
+
+  /**
+   * Read a transaction, perhaps without learning new names.
+   *
+   * @param buffer
+   *   Where to read it.
+   * @param learn
+   *   Whether we may add new names to the dictionary.
+   *
+   * @return the transaction.
+   *
+   * @throws IllegalArgumentException
+   *   If the bytes are not a transaction.
+   */
+  Transaction getTransaction(ByteBuffer buffer, boolean learn) {
+    try {
+      String source = this.getName(buffer, learn);
+      String target = this.getName(buffer, learn);
+      return new Transaction(source, target, getSignedVarint(buffer));
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated transaction");
+    } // try/catch
+  } // getTransaction(ByteBuffer, boolean)
+
+  /**
+   * Write a block.
+   *
+   * @param buffer
+   *   Where to write it, which must have room for maxSize(block) bytes.
+   * @param block
+   *   The block.
+   */
+  public void putBlock(ByteBuffer buffer, Block block) {
+    Hash prev = block.getPrevHash();
+    Hash hash = block.getHash();
+    putVarint(buffer, block.getNum());
+    this.putTransaction(buffer, block.getTransaction());
+    buffer.put((byte) ((prev.isCompact() ? 0 : ODD_PREV)
+        | (hash.isCompact() ? 0 : ODD_HASH)));
+    putHash(buffer, prev);
+    buffer.putLong(block.getNonce());
+    putHash(buffer, hash);
+  } // putBlock(ByteBuffer, Block)
+
+  /**
+   * Encode a block.
+   *
+   * @param block
+   *   The block.
+   *
+   * @return the encoded block.
+   */
+  public byte[] encode(Block block) {
+    int max = maxSize(block);
+    if (this.scratch.capacity() < max) {
+      this.scratch = ByteBuffer.allocate(Math.max(max,
+          2 * this.scratch.capacity()));
+    } // if
+    this.scratch.clear();
+    this.putBlock(this.scratch, block);
+    return Arrays.copyOf(this.scratch.array(), this.scratch.position());
+  } // encode(Block)
+
+  /**
+   * Read a block, directly from the buffer.
+   *
+   * @param buffer
+   *   Where to read it.
+   *
+   * @return the block.
+   *
+   * @throws IllegalArgumentException
+   *   If the bytes are not a block.
+   */
+  public Block getBlock(ByteBuffer buffer) {
+    return this.getBlock(buffer, true);
+  } // getBlock(ByteBuffer)
+
+  /**
+   * Read a block, perhaps without learning new names, as when another
+   * thread may be using the codec.
+   *
+   * @param buffer
+   *   Where to read it.
+   * @param learn
+   *   Whether we may add new names to the dictionary.
+   *
+   * @return the block.
+   *
+   * @throws IllegalArgumentException
+   *   If the bytes are not a block (or, if we may not learn, if they
+   *   name someone we do not know).
+   */
+  Block getBlock(ByteBuffer buffer, boolean learn) {
+    try {
+      int num = getVarint(buffer);
+      Transaction t = this.getTransaction(buffer, learn);
+      int flags = buffer.get();
+      if ((flags & ~(ODD_PREV | ODD_HASH)) != 0) {
+        throw new IllegalArgumentException("Unknown flags " + flags);
+      } // if
+      Hash prev = getHash(buffer, (flags & ODD_PREV) == 0);
+      long nonce = buffer.getLong();
+      Hash hash = getHash(buffer, (flags & ODD_HASH) == 0);
+      return new Block(num, t, prev, nonce, hash);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Truncated block");
+    } // try/catch
+  } // getBlock(ByteBuffer, boolean)
+
+  /**
+   * Decode a block.
+   *
+   * @param bytes
+   *   The encoded block.
+   *
+   * @return the block.
+   *
+   * @throws IllegalArgumentException
+   *   If the bytes are not a block.
+   */
+  public Block decode(byte[] bytes) {
+    return this.getBlock(ByteBuffer.wrap(bytes));
+  } // decode(byte[])
+} // class BlockCodec
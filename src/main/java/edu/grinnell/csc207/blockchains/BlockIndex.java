@@ -0,0 +1,150 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Indexes for the blocks of a chain: the height of each block by hash,
+ * and, for each account in the chain's ledger, the heights of the
+ * blocks whose transactions mention it. The chain keeps the indexes up
+ * to date as blocks come and go.
+ *
+ * Each account's postings are an int array in increasing order of
+ * height. Blocks are only added and removed at the end of the chain,
+ * so postings are only added and removed at the ends of those arrays.
+ *
+ * @author agent
+ */
+class BlockIndex {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The height of each block, by hash.
+   */
+  HashMap<Hash, Integer> heights;
+
+  /**
+   * The postings for each account, by ledger id.
+   */
+  int[][] postings;
+
+  /**
+   * The number of postings for each account, by ledger id.
+   */
+  int[] counts;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create empty indexes.
+   */
+  BlockIndex() {
+    this.heights = new HashMap<Hash, Integer>();
+    this.postings = new int[16][];
+    this.counts = new int[16];
+  } // BlockIndex()
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Add a posting for an account.
+   *
+   * @param id
+   *   The ledger id of the account.
+   * @param height
+   *   The height of the block.
+   */
+  void post(int id, int height) {
+    if (id >= this.postings.length) {
+      int capacity = Math.max(2 * this.postings.length, id + 1);
+      this.postings = Arrays.copyOf(this.postings, capacity);
+      this.counts = Arrays.copyOf(this.counts, capacity);
+    } // if
+    if (this.postings[id] == null) {
+      this.postings[id] = new int[4];
+    } else if (this.counts[id] == this.postings[id].length) {
+      this.postings[id] = Arrays.copyOf(this.postings[id],
+          2 * this.counts[id]);
+    } // if/else
+    this.postings[id][this.counts[id]++] = height;
+  } // post(int, int)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Add a block to the indexes.
+   *
+   * @param block
+   *   The block.
+   * @param source
+   *   The ledger id of the source of its transaction, or -1 if the
+   *   transaction should not be posted (as for the initial block).
+   * @param target
+   *   The ledger id of the target of its transaction.
+   */
+  void add(Block block, int source, int target) {
+    this.heights.put(block.getHash(), block.getNum());
+    if (source >= 0) {
+      this.post(source, block.getNum());
+      if (target != source) {
+        this.post(target, block.getNum());
+      } // if
+    } // if
+  } // add(Block, int, int)
+
+  /**
+   * Remove the last block from the indexes.
+   *
+   * @param block
+   *   The block.
+   * @param source
+   *   The ledger id of the source of its transaction.
+   * @param target
+   *   The ledger id of the target of its transaction.
+   */
+  void removeLast(Block block, int source, int target) {
+    this.heights.remove(block.getHash());
+    this.counts[source]--;
+    if (target != source) {
+      this.counts[target]--;
+    } // if
+  } // removeLast(Block, int, int)
+
+  /**
+   * Find the height of a block.
+   *
+   * @param hash
+   *   The hash of the block.
+   *
+   * @return the height, or -1 if no block has that hash.
+   */
+  int height(Hash hash) {
+    Integer height = this.heights.get(hash);
+    return (height == null) ? -1 : height;
+  } // height(Hash)
+
+  /**
+   * Get the postings for an account.
+   *
+   * @param id
+   *   The ledger id of the account, or -1 for none.
+   *
+   * @return a new array of the heights of the blocks that mention the
+   *   account, in increasing order.
+   */
+  int[] postings(int id) {
+    if ((id < 0) || (id >= this.postings.length)
+        || (this.postings[id] == null)) {
+      return new int[0];
+    } // if
+    return Arrays.copyOf(this.postings[id], this.counts[id]);
+  } // postings(int)
+} // class BlockIndex
@@ -0,0 +1,1815 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only file of blocks, so that a chain can outlive the
+ * program that built it.
+ *
+ * The file starts with a short header that identifies it. After that,
+ * each block is one record: the length of the body, the body (the block
+ * in the form BlockCodec gives it), and a checksum of the body. Since
+ * the codec writes each user name in full only the first time it
+ * appears, we read all the records when we open the log. Removing
+ * the last block truncates the file at the start of its record and
+ * makes the codec forget the names that the record introduced.
+ *
+ * Forcing every record to the disk as it is written would limit us to
+ * a few hundred blocks a second, so we commit in groups. Records wait
+ * in a buffer until batch changes have accumulated, the oldest of them
+ * has waited the maximum delay, or someone calls commit(), and then we
+ * write them with one call and force them with another. (A timer
+ * commits the changes that are still waiting when the delay runs out,
+ * so a quiet log does not hold them forever.) A crash can lose the
+ * changes since the last commit, but never corrupts the ones before:
+ * when we open a log, we drop any partial or damaged record at the
+ * end.
+ *
+ * A log normally keeps every block it reads in memory. For chains too
+ * big for that, mapped() opens a log that keeps nothing in memory per
+ * block. Instead, the offset of each record goes in a fixed-width index
+ * in a second, memory-mapped file (next to the log, with ".index" added
+ * to its name), and we decode blocks from a memory-mapped view of the
+ * log only when someone asks for them, keeping the most recently used
+ * ones in a cache of bounded size. Closing such a log saves the codec's
+ * dictionary and a footer at the end of the index file. The footer
+ * records how many entries are good, how far into the log they reach,
+ * the checksum of the last record, and a checksum of the entries,
+ * the dictionary and itself. When we next open the log, if the footer
+ * checks out (and the last record is still the one it describes), we
+ * keep the index and dictionary and read only the records after it.
+ * Otherwise, we rebuild the index from the whole log. Since a crash
+ * may leave the index half changed, we wipe the footer once we have
+ * read it, and only write a new one when we close the log.
+ *
+ * A mapped log can also find blocks by hash and by user without
+ * reading them all. A HeightTable, in a third file (with ".hashes"
+ * added to the name of the log), gives the heights of the blocks by
+ * hash. For users, each index entry notes the names (as the codec
+ * numbers them) of the source and target of the record's transaction,
+ * and, for each, the height of the last record before it that
+ * mentioned that name. Along with the height of the last record that
+ * mentions each name, which we save with the dictionary, that links
+ * the records for each user into a list, most recent first. The
+ * footer's checksum covers the table and those heights too. All of
+ * this has its own lock (the table), so that lookups, like reads,
+ * never wait for a commit.
+ *
+ * Only one thread should change a log at a time. In a mapped log, any
+ * number of threads may read blocks while it does, without waiting for
+ * it (or for its commits): they read the mapped files directly and make
+ * sure afterwards that the block they read was not removed meanwhile.
+ * For the same reason, removing a block from a mapped log marks the end
+ * of the log rather than truncating the file, since another thread may
+ * still be reading the mapped bytes; closing the log truncates it.
+ *
+ * @author agent
+ */
+public class BlockLog implements AutoCloseable {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The number of changes we commit together unless told otherwise.
+   */
+  public static final int DEFAULT_BATCH = 64;
+
+  /**
+   * The most milliseconds that a change waits for its commit unless
+   * told otherwise.
+   */
+  public static final long DEFAULT_DELAY = 1000;
+
+  /**
+   * The most bytes we expect in the body of a record. Anything longer
+   * is damage.
+   */
+  static final int MAX_BODY = 1 << 20;
+
+  /**
+   * The bytes in a record other than the body: its length and checksum.
+   */
+  static final int OVERHEAD = 2 * Integer.BYTES;
+
+  /**
+   * The number of bytes we read at a time when we open a log.
+   */
+  static final int READ_SIZE = 1 << 16;
+
+  /**
+   * The first bytes of every log ("BLOG" followed by a version).
+   */
+  static final long MAGIC = 0x424c4f4700000001L;
+
+  /**
+   * The number of bytes in the header.
+   */
+  static final int HEADER = Long.BYTES;
+
+  /**
+   * The log (base 2) of the number of bytes of the log we map at once.
+   */
+  static final int REGION_BITS = 26;
+
+  /**
+   * Extracts the position within a mapped region from a position in the
+   * log.
+   */
+  static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+  /**
+   * The number of bytes in each entry of the index: the offset of the
+   * record, the number of names the codec knew before it, the number
+   * of removals before it was appended, the key for its hash, the
+   * names of its source and target, and the last records before it
+   * that mention them.
+   */
+  static final int ENTRY_SIZE = 40;
+
+  /**
+   * Where, in an entry, the number of names the codec knew goes.
+   */
+  static final int NAMES_AT = 8;
+
+  /**
+   * Where, in an entry, the number of removals goes.
+   */
+  static final int EPOCH_AT = 12;
+
+  /**
+   * Where, in an entry, the key for the hash goes.
+   */
+  static final int KEY_AT = 16;
+
+  /**
+   * Where, in an entry, the name of the source goes.
+   */
+  static final int SOURCE_AT = 24;
+
+  /**
+   * Where, in an entry, the name of the target goes.
+   */
+  static final int TARGET_AT = 28;
+
+  /**
+   * Where, in an entry, the last record to mention the source goes.
+   */
+  static final int PREV_SOURCE_AT = 32;
+
+  /**
+   * Where, in an entry, the last record to mention the target goes.
+   */
+  static final int PREV_TARGET_AT = 36;
+
+  /**
+   * The log (base 2) of the number of index entries we map at once.
+   */
+  static final int ENTRY_BITS = 16;
+
+  /**
+   * Extracts the position within a mapped region from an entry number.
+   */
+  static final int ENTRY_MASK = (1 << ENTRY_BITS) - 1;
+
+  /**
+   * The first bytes of the footer of an index file ("BLIX" followed by
+   * a version).
+   */
+  static final long INDEX_MAGIC = 0x424c495800000001L;
+
+  /**
+   * The number of bytes in the footer of an index file: the magic
+   * number, the number of entries, the number of removals, where the
+   * last entry ends in the log, the checksum of the last record, the
+   * length of the dictionary, the number of names whose last records
+   * follow it, and the checksum of it all.
+   */
+  static final int FOOTER = 2 * Long.BYTES + 6 * Integer.BYTES;
+
+  /**
+   * The number of blocks that mapped logs cache unless told otherwise.
+   */
+  public static final int DEFAULT_CACHE = 1024;
+
+  // +---------------+-----------------------------------------------
+  // | Static fields |
+  // +---------------+
+
+  /**
+   * Commits the changes that have waited too long, for every log.
+   */
+  static final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor((task) -> {
+        Thread thread = new Thread(task, "block-log-timer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The file.
+   */
+  Path file;
+
+  /**
+   * The open file.
+   */
+  FileChannel channel;
+
+  /**
+   * The number of changes we commit together.
+   */
+  int batch;
+
+  /**
+   * The records that we have not yet written to the file.
+   */
+  ByteBuffer pending;
+
+  /**
+   * The number of changes since the last commit.
+   */
+  int uncommitted;
+
+  /**
+   * The most nanoseconds that a change waits for its commit.
+   */
+  long delay;
+
+  /**
+   * When (in the terms of System.nanoTime()) the oldest uncommitted
+   * change happened.
+   */
+  long oldest;
+
+  /**
+   * Whether the timer will look at this log.
+   */
+  boolean timed;
+
+  /**
+   * The number of bytes written to the file (so, not counting pending).
+   */
+  volatile long written;
+
+  /**
+   * Where each record starts, unless we keep an index file.
+   */
+  long[] offsets;
+
+  /**
+   * The number of names the codec knew before each record, unless we
+   * keep an index file.
+   */
+  int[] names;
+
+  /**
+   * The open index file, or null if we keep no index file.
+   */
+  FileChannel indexChannel;
+
+  /**
+   * The mapped regions of the index file.
+   */
+  volatile MappedByteBuffer[] entries;
+
+  /**
+   * The mapped regions of the log, for a log with an index file. We
+   * replace the array, rather than change it, when we map more.
+   */
+  volatile MappedByteBuffer[] regions;
+
+  /**
+   * The number of bytes of the log that the regions cover.
+   */
+  long mapped;
+
+  /**
+   * The blocks we decoded most recently, for a log with an index file,
+   * keyed by key(). Guarded by its own lock, so that readers never wait
+   * for a commit.
+   */
+  Map<Long, Block> cache;
+
+  /**
+   * The heights of the blocks by hash, for a log with an index file.
+   * Its lock guards the lookups: the table, the names and last records
+   * in the index, lastRecords, and the codec's ids.
+   */
+  HeightTable table;
+
+  /**
+   * The last record that mentions each name, by the codec's id for
+   * the name, or 0 for none, for a log with an index file. (The
+   * initial block mentions nobody.)
+   */
+  int[] lastRecords;
+
+  /**
+   * The number of blocks removed since we opened the log.
+   */
+  volatile int removals;
+
+  /**
+   * The number of records.
+   */
+  volatile int size;
+
+  /**
+   * Encodes and decodes the bodies.
+   */
+  BlockCodec codec;
+
+  /**
+   * The blocks we decoded when we opened the log.
+   */
+  Block[] recovered;
+
+  /**
+   * The number of those blocks that are still in the log.
+   */
+  int cached;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Open a log, creating the file if it does not exist, and committing
+   * changes in groups of DEFAULT_BATCH (or once the oldest has waited
+   * DEFAULT_DELAY milliseconds).
+   *
+   * @param file
+   *   The file that holds the log.
+   *
+   * @throws IOException
+   *   If we cannot open or read the file.
+   */
+  public BlockLog(Path file) throws IOException {
+    this(file, DEFAULT_BATCH);
+  } // BlockLog(Path)
+
+  /**
+   * Open a log, creating the file if it does not exist.
+   *
+   * @param file
+   *   The file that holds the log.
+   * @param batchSize
+   *   The number of changes to commit together. Use 1 to commit every
+   *   change as it happens.
+   *
+   * @throws IOException
+   *   If we cannot open or read the file.
+   */
+  public BlockLog(Path file, int batchSize) throws IOException {
+    this(file, batchSize, 0);
+  } // BlockLog(Path, int)
+
+  /**
+   * Open a log, creating the file if it does not exist.
+   *
+   * @param file
+   *   The file that holds the log.
+   * @param batchSize
+   *   The number of changes to commit together.
+   * @param cacheSize
+   *   The number of decoded blocks to cache, or 0 to keep the blocks
+   *   in memory rather than keep an index file.
+   *
+   * @throws IOException
+   *   If we cannot open or read the files.
+   */
+  BlockLog(Path file, int batchSize, int cacheSize) throws IOException {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+    } // if
+    this.file = file;
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.batch = batchSize;
+    this.pending = ByteBuffer.allocate(4096);
+    this.uncommitted = 0;
+    this.delay = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DELAY);
+    this.timed = false;
+    this.size = 0;
+    this.removals = 0;
+    this.codec = new BlockCodec();
+    try {
+      if (cacheSize == 0) {
+        this.offsets = new long[16];
+        this.names = new int[16];
+      } else {
+        this.indexChannel = FileChannel.open(indexFile(file),
+            StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        this.table = new HeightTable(tableFile(file));
+        this.lastRecords = new int[16];
+        this.entries = new MappedByteBuffer[4];
+        this.regions = new MappedByteBuffer[4];
+        this.cache = new LinkedHashMap<Long, Block>(16, 0.75f, true) {
+          protected boolean removeEldestEntry(Map.Entry<Long, Block> e) {
+            return this.size() > cacheSize;
+          } // removeEldestEntry(Map.Entry<Long, Block>)
+        };
+      } // if/else
+      this.recover();
+    } catch (IOException e) {
+      this.channel.close();
+      if (this.indexChannel != null) {
+        this.indexChannel.close();
+      } // if
+      if (this.table != null) {
+        this.table.close();
+      } // if
+      throw e;
+    } // try/catch
+  } // BlockLog(Path, int, int)
+
+  /**
+   * Open a log that keeps an index file and reads blocks from the log
+   * only as they are needed, creating the files if they do not exist.
+   *
+   * @param file
+   *   The file that holds the log.
+   * @param batchSize
+   *   The number of changes to commit together.
+   * @param cacheSize
+   *   The number of decoded blocks to keep in memory.
+   *
+   * @return the log.
+   *
+   * @throws IOException
+   *   If we cannot open or read the files.
+   */
+  public static BlockLog mapped(Path file, int batchSize, int cacheSize)
+      throws IOException {
+    if (cacheSize < 1) {
+      throw new IllegalArgumentException("Invalid cache size: " + cacheSize);
+    } // if
+    return new BlockLog(file, batchSize, cacheSize);
+  } // mapped(Path, int, int)
+
+  /**
+   * Open a log that keeps an index file, committing changes in groups
+   * of DEFAULT_BATCH and caching DEFAULT_CACHE blocks.
+   *
+   * @param file
+   *   The file that holds the log.
+   *
+   * @return the log.
+   *
+   * @throws IOException
+   *   If we cannot open or read the files.
+   */
+  public static BlockLog mapped(Path file) throws IOException {
+    return mapped(file, DEFAULT_BATCH, DEFAULT_CACHE);
+  } // mapped(Path)
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Find the index file for a log.
+   *
+   * @param file
+   *   The file that holds the log.
+   *
+   * @return the index file.
+   */
+  static Path indexFile(Path file) {
+    return file.resolveSibling(file.getFileName() + ".index");
+  } // indexFile(Path)
+
+  /**
+   * Find the file that holds the heights of the blocks by hash.
+   *
+   * @param file
+   *   The file that holds the log.
+   *
+   * @return the file for the table.
+   */
+  static Path tableFile(Path file) {
+    return file.resolveSibling(file.getFileName() + ".hashes");
+  } // tableFile(Path)
+
+  /**
+   * Find the key for a hash in the table. We take the last eight bytes,
+   * since the first few of a mined hash are zeros.
+   *
+   * @param hash
+   *   The hash.
+   *
+   * @return the key.
+   */
+  static long hashKey(Hash hash) {
+    return hash.isCompact() ? hash.word(3) : hash.hashCode();
+  } // hashKey(Hash)
+
+  /**
+   * Write a buffer to a file.
+   *
+   * @param channel
+   *   The file.
+   * @param buffer
+   *   The bytes, between its position and limit.
+   * @param position
+   *   Where in the file to start writing.
+   *
+   * @throws IOException
+   *   If we cannot write the file.
+   */
+  static void writeFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    long at = position;
+    while (buffer.hasRemaining()) {
+      at += channel.write(buffer, at);
+    } // while
+  } // writeFully(FileChannel, ByteBuffer, long)
+
+  /**
+   * Compute the checksum of a body.
+   *
+   * @param body
+   *   The body, between its position and limit.
+   *
+   * @return the checksum.
+   */
+  static int checksum(ByteBuffer body) {
+    CRC32C crc = new CRC32C();
+    crc.update(body.duplicate());
+    return (int) crc.getValue();
+  } // checksum(ByteBuffer)
+
+  /**
+   * Fill a buffer from the file.
+   *
+   * @param buffer
+   *   The buffer.
+   * @param position
+   *   Where in the file to start reading.
+   *
+   * @return true if we filled the buffer and false if the file ended
+   *   first.
+   *
+   * @throws IOException
+   *   If we cannot read the file.
+   */
+  boolean readFully(ByteBuffer buffer, long position) throws IOException {
+    long at = position;
+    while (buffer.hasRemaining()) {
+      int count = this.channel.read(buffer, at);
+      if (count < 0) {
+        return false;
+      } // if
+      at += count;
+    } // while
+    buffer.flip();
+    return true;
+  } // readFully(ByteBuffer, long)
+
+  /**
+   * Read the body of the record that starts at some position.
+   *
+   * @param position
+   *   Where the record starts.
+   * @param end
+   *   Where the file ends.
+   *
+   * @return the body, or null if there is no whole, undamaged record
+   *   there.
+   *
+   * @throws IOException
+   *   If we cannot read the file.
+   */
+  ByteBuffer readBody(long position, long end) throws IOException {
+    if (end - position < OVERHEAD) {
+      return null;
+    } // if
+    ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+    this.readFully(header, position);
+    int length = header.getInt();
+    if ((length < 0) || (length > MAX_BODY)
+        || (end - position < OVERHEAD + length)) {
+      return null;
+    } // if
+    ByteBuffer record = ByteBuffer.allocate(length + Integer.BYTES);
+    this.readFully(record, position + Integer.BYTES);
+    ByteBuffer body = record.slice(0, length);
+    return (checksum(body) == record.getInt(length)) ? body : null;
+  } // readBody(long, long)
+
+  /**
+   * Map the log as far as some position, if we have not already done
+   * so.
+   *
+   * @param end
+   *   The position.
+   *
+   * @throws IOException
+   *   If we cannot map the file.
+   */
+  void mapTo(long end) throws IOException {
+    if (end <= this.mapped) {
+      return;
+    } // if
+    MappedByteBuffer[] maps = Arrays.copyOf(this.regions,
+        Math.max(this.regions.length, (int) ((end - 1) >>> REGION_BITS) + 1));
+    for (long base = this.mapped & ~REGION_MASK; base < end;
+        base += REGION_MASK + 1) {
+      maps[(int) (base >>> REGION_BITS)] =
+          this.channel.map(FileChannel.MapMode.READ_ONLY, base,
+              Math.min(REGION_MASK + 1, end - base));
+    } // for
+    this.regions = maps;
+    this.mapped = end;
+  } // mapTo(long)
+
+  /**
+   * Get some bytes of a mapped log. Without the lock, we can only get
+   * bytes that lie in one mapped region. With it, we can also get bytes
+   * that span regions or that are still pending.
+   *
+   * @param position
+   *   Where the bytes start.
+   * @param count
+   *   The number of bytes.
+   * @param locked
+   *   Whether we hold the lock.
+   *
+   * @return the bytes, or null if we need the lock to get them.
+   *
+   * @throws IOException
+   *   If the bytes run past the end of the log, or if we cannot map
+   *   them.
+   */
+  ByteBuffer bytes(long position, int count, boolean locked)
+      throws IOException {
+    long end = position + count;
+    MappedByteBuffer[] maps = this.regions;
+    int r = (int) (position >>> REGION_BITS);
+    int start = (int) (position & REGION_MASK);
+    if ((end <= this.written) && (r < maps.length) && (maps[r] != null)
+        && (maps[r].capacity() >= start + count)) {
+      return maps[r].slice(start, count);
+    } else if (!locked) {
+      return null;
+    } else if (end > this.written + this.pending.position()) {
+      throw new IOException("Record at " + position
+          + " runs past the end of the log");
+    } // if/else
+    this.mapTo(this.written);
+    ByteBuffer result = ByteBuffer.allocate(count);
+    for (long at = position; at < end; ) {
+      int n;
+      if (at < this.written) {
+        MappedByteBuffer region = this.regions[(int) (at >>> REGION_BITS)];
+        int from = (int) (at & REGION_MASK);
+        n = (int) Math.min(region.capacity() - from,
+            Math.min(this.written, end) - at);
+        result.put((int) (at - position), region, from, n);
+      } else {
+        n = (int) (end - at);
+        result.put((int) (at - position), this.pending,
+            (int) (at - this.written), n);
+      } // if/else
+      at += n;
+    } // for
+    return result;
+  } // bytes(long, int, boolean)
+
+  /**
+   * Read the body of the record that starts at some position in a
+   * mapped log.
+   *
+   * @param position
+   *   Where the record starts.
+   * @param locked
+   *   Whether we hold the lock.
+   *
+   * @return the body, or null if we need the lock to get it.
+   *
+   * @throws IOException
+   *   If the record is damaged.
+   */
+  ByteBuffer mappedBody(long position, boolean locked) throws IOException {
+    ByteBuffer header = this.bytes(position, Integer.BYTES, locked);
+    if (header == null) {
+      return null;
+    } // if
+    int length = header.getInt(0);
+    if ((length < 0) || (length > MAX_BODY)) {
+      throw new IOException("Damaged record at " + position);
+    } // if
+    ByteBuffer record = this.bytes(position + Integer.BYTES,
+        length + Integer.BYTES, locked);
+    if (record == null) {
+      return null;
+    } // if
+    ByteBuffer body = record.slice(0, length);
+    if (checksum(body) != record.getInt(length)) {
+      throw new IOException("Damaged record at " + position);
+    } // if
+    return body;
+  } // mappedBody(long, boolean)
+
+  /**
+   * Make sure that a buffer of bytes from the file has at least some
+   * number of bytes left, reading more if it does not.
+   *
+   * @param chunk
+   *   The buffer.
+   * @param position
+   *   The position in the file of the next byte in the buffer.
+   * @param need
+   *   The number of bytes we need.
+   *
+   * @return the buffer, or a bigger one with the same bytes left. It
+   *   has fewer than need bytes left only if the file ends first.
+   *
+   * @throws IOException
+   *   If we cannot read the file.
+   */
+  ByteBuffer fill(ByteBuffer chunk, long position, int need)
+      throws IOException {
+    if (chunk.remaining() >= need) {
+      return chunk;
+    } // if
+    ByteBuffer result = chunk;
+    if (chunk.capacity() < need) {
+      result = ByteBuffer.allocate(Math.max(need, 2 * chunk.capacity()));
+      result.put(chunk);
+    } else {
+      chunk.compact();
+    } // if/else
+    long at = position + result.position();
+    while (result.hasRemaining()) {
+      int count = this.channel.read(result, at);
+      if (count < 0) {
+        break;
+      } // if
+      at += count;
+    } // while
+    result.flip();
+    return result;
+  } // fill(ByteBuffer, long, int)
+
+  /**
+   * Find and decode the records in the file, dropping anything after
+   * the last whole one. We read the file in large pieces, since most
+   * records are small.
+   *
+   * @throws IOException
+   *   If we cannot read or truncate the file.
+   */
+  void recover() throws IOException {
+    long end = this.channel.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    if (end < HEADER) {
+      header.putLong(MAGIC).flip();
+      this.channel.write(header, 0);
+      end = HEADER;
+    } else if (!this.readFully(header, 0) || (header.getLong() != MAGIC)) {
+      throw new IOException("Not a block log");
+    } // if/else
+    long position = HEADER;
+    if (this.indexChannel == null) {
+      this.recovered = new Block[16];
+    } else {
+      position = this.loadIndex(end);
+      if (position == HEADER) {
+        this.table.clear();
+      } // if
+    } // if/else
+    ByteBuffer chunk = ByteBuffer.allocate(READ_SIZE).flip();
+    while (true) {
+      chunk = this.fill(chunk, position, OVERHEAD);
+      if (chunk.remaining() < OVERHEAD) {
+        break;
+      } // if
+      int length = chunk.getInt(chunk.position());
+      if ((length < 0) || (length > MAX_BODY)) {
+        break;
+      } // if
+      chunk = this.fill(chunk, position, OVERHEAD + length);
+      if (chunk.remaining() < OVERHEAD + length) {
+        break;
+      } // if
+      int start = chunk.position() + Integer.BYTES;
+      ByteBuffer body = chunk.slice(start, length);
+      if (checksum(body) != chunk.getInt(start + length)) {
+        break;
+      } // if
+      this.reserve();
+      int known = this.codec.names();
+      Block block;
+      try {
+        block = this.codec.getBlock(body);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Damaged record for block " + this.size, e);
+      } // try/catch
+      if (this.indexChannel == null) {
+        if (this.size == this.recovered.length) {
+          this.recovered = Arrays.copyOf(this.recovered, 2 * this.size);
+        } // if
+        this.recovered[this.size] = block;
+      } else {
+        this.addLookups(block);
+      } // if/else
+      this.addOffset(position, known);
+      chunk.position(start + length + Integer.BYTES);
+      position += OVERHEAD + length;
+    } // while
+    this.cached = (this.recovered == null) ? 0 : this.size;
+    if (position < end) {
+      this.channel.truncate(position);
+      this.channel.force(false);
+    } // if
+    if (this.regions != null) {
+      this.mapTo(position);
+    } // if
+    this.written = position;
+  } // recover()
+
+  /**
+   * Use the index that we saved when we last closed the log, if its
+   * footer checks out and the log still ends (or continues) as it did
+   * then. Either way, wipe the footer, since we may change the index.
+   *
+   * @param end
+   *   Where the log ends.
+   *
+   * @return where the records that the index does not cover start.
+   *
+   * @throws IOException
+   *   If we cannot read or write the index file.
+   */
+  long loadIndex(long end) throws IOException {
+    long at = this.indexChannel.size() - FOOTER;
+    ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+    if ((at < 0) || !this.readIndex(footer, at)
+        || (footer.getLong() != INDEX_MAGIC)) {
+      return HEADER;
+    } // if
+    writeFully(this.indexChannel, ByteBuffer.allocate(Long.BYTES), at);
+    this.indexChannel.force(false);
+
+    int count = footer.getInt();
+    int saved = footer.getInt();
+    long covered = footer.getLong();
+    int last = footer.getInt();
+    int length = footer.getInt();
+    int named = footer.getInt();
+    long start = (long) count * ENTRY_SIZE;
+    long more = (long) named * Integer.BYTES;
+    if ((count < 0) || (saved < 0) || (length < 0) || (named < 0)
+        || (start + length + more > at) || (covered < HEADER)
+        || (covered > end)) {
+      return HEADER;
+    } // if
+    ByteBuffer dictionary = ByteBuffer.allocate(length);
+    ByteBuffer lasts = ByteBuffer.allocate((int) more);
+    if (!this.readIndex(dictionary, start)
+        || !this.readIndex(lasts, start + length)) {
+      return HEADER;
+    } // if
+    this.mapEntries(count);
+    CRC32C crc = new CRC32C();
+    this.checkEntries(crc, count);
+    crc.update(dictionary.duplicate());
+    crc.update(lasts.duplicate());
+    this.table.checksum(crc);
+    crc.update(footer.array(), 0, FOOTER - Integer.BYTES);
+    if ((int) crc.getValue() != footer.getInt()) {
+      return HEADER;
+    } // if
+
+    // Make sure that the last record is the one we indexed.
+    if (count == 0) {
+      if (covered != HEADER) {
+        return HEADER;
+      } // if
+    } else {
+      long offset = this.entries[(count - 1) >>> ENTRY_BITS]
+          .getLong(((count - 1) & ENTRY_MASK) * ENTRY_SIZE);
+      ByteBuffer body = this.readBody(offset, covered);
+      if ((body == null) || (checksum(body) != last)
+          || (offset + OVERHEAD + body.remaining() != covered)) {
+        return HEADER;
+      } // if
+    } // if/else
+
+    try {
+      this.codec.loadDictionary(dictionary);
+    } catch (IllegalArgumentException e) {
+      return HEADER;
+    } // try/catch
+    if (this.codec.names() != named) {
+      this.codec.forget(0);
+      return HEADER;
+    } // if
+    this.lastRecords = new int[Math.max(16, named)];
+    lasts.asIntBuffer().get(this.lastRecords, 0, named);
+    this.table.count = count;
+    this.size = count;
+    this.removals = saved;
+    return covered;
+  } // loadIndex(long)
+
+  /**
+   * Fill a buffer from the index file.
+   *
+   * @param buffer
+   *   The buffer.
+   * @param position
+   *   Where in the file to start reading.
+   *
+   * @return true if we filled the buffer and false if the file ended
+   *   first.
+   *
+   * @throws IOException
+   *   If we cannot read the file.
+   */
+  boolean readIndex(ByteBuffer buffer, long position) throws IOException {
+    long at = position;
+    while (buffer.hasRemaining()) {
+      int count = this.indexChannel.read(buffer, at);
+      if (count < 0) {
+        return false;
+      } // if
+      at += count;
+    } // while
+    buffer.flip();
+    return true;
+  } // readIndex(ByteBuffer, long)
+
+  /**
+   * Add the first entries of the index to a checksum.
+   *
+   * @param crc
+   *   The checksum.
+   * @param count
+   *   The number of entries, which must be mapped.
+   */
+  void checkEntries(CRC32C crc, int count) {
+    for (int r = 0; ((long) r << ENTRY_BITS) < count; r++) {
+      int n = Math.min(count - (r << ENTRY_BITS), ENTRY_MASK + 1);
+      crc.update(this.entries[r].slice(0, n * ENTRY_SIZE));
+    } // for
+  } // checkEntries(CRC32C, int)
+
+  /**
+   * Save the dictionary and a footer at the end of the index file, so
+   * that the next time we open the log, we need not read it all.
+   *
+   * @throws IOException
+   *   If we cannot write the index file.
+   */
+  void saveIndex() throws IOException {
+    int count = this.size;
+    long start = (long) count * ENTRY_SIZE;
+    ByteBuffer dictionary = ByteBuffer.wrap(this.codec.dictionary());
+    int named = this.codec.names();
+    ByteBuffer lasts = ByteBuffer.allocate(named * Integer.BYTES);
+    lasts.asIntBuffer().put(this.lastRecords, 0, named);
+    int last = 0;
+    if (count > 0) {
+      last = this.bytes(this.written - Integer.BYTES, Integer.BYTES, true)
+          .getInt(0);
+    } // if
+    ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+    footer.putLong(INDEX_MAGIC).putInt(count).putInt(this.removals)
+        .putLong(this.written).putInt(last).putInt(dictionary.remaining())
+        .putInt(named);
+    CRC32C crc = new CRC32C();
+    this.checkEntries(crc, count);
+    crc.update(dictionary.duplicate());
+    crc.update(lasts.duplicate());
+    this.table.checksum(crc);
+    crc.update(footer.array(), 0, footer.position());
+    footer.putInt((int) crc.getValue()).flip();
+
+    long at = Math.max(this.indexChannel.size() - FOOTER,
+        start + dictionary.remaining() + lasts.remaining());
+    writeFully(this.indexChannel, lasts, start + dictionary.remaining());
+    writeFully(this.indexChannel, dictionary, start);
+    writeFully(this.indexChannel, footer, at);
+    this.table.force();
+    for (MappedByteBuffer region : this.entries) {
+      if (region != null) {
+        region.force();
+      } // if
+    } // for
+    this.indexChannel.force(false);
+  } // saveIndex()
+
+  /**
+   * Map the regions of the index file that hold some number of
+   * entries, if we have not already done so.
+   *
+   * @param count
+   *   The number of entries.
+   *
+   * @throws IOException
+   *   If we cannot extend or map the index file.
+   */
+  void mapEntries(int count) throws IOException {
+    for (int r = 0; ((long) r << ENTRY_BITS) < count; r++) {
+      if (r == this.entries.length) {
+        this.entries = Arrays.copyOf(this.entries, 2 * r);
+      } // if
+      if (this.entries[r] == null) {
+        this.entries[r] = this.indexChannel.map(
+            FileChannel.MapMode.READ_WRITE,
+            (long) r * ENTRY_SIZE << ENTRY_BITS, ENTRY_SIZE << ENTRY_BITS);
+      } // if
+    } // for
+  } // mapEntries(int)
+
+  /**
+   * Make room in the index for one more record.
+   *
+   * @throws IOException
+   *   If we cannot extend the index file.
+   */
+  void reserve() throws IOException {
+    if (this.indexChannel == null) {
+      if (this.size == this.offsets.length) {
+        this.offsets = Arrays.copyOf(this.offsets, 2 * this.size);
+        this.names = Arrays.copyOf(this.names, 2 * this.size);
+      } // if
+      return;
+    } // if
+    this.mapEntries(this.size + 1);
+    synchronized (this.table) {
+      this.table.reserve();
+    } // synchronized
+  } // reserve()
+
+  /**
+   * Note where the next record starts, once we have reserved room for
+   * it. Readers can see the record once we are done.
+   *
+   * @param offset
+   *   Where it starts.
+   * @param known
+   *   The number of names the codec knew before it.
+   */
+  void addOffset(long offset, int known) {
+    if (this.indexChannel == null) {
+      this.names[this.size] = known;
+      this.offsets[this.size] = offset;
+    } else {
+      MappedByteBuffer region = this.entries[this.size >>> ENTRY_BITS];
+      int start = (this.size & ENTRY_MASK) * ENTRY_SIZE;
+      region.putLong(start, offset);
+      region.putInt(start + NAMES_AT, known);
+      region.putInt(start + EPOCH_AT, this.removals);
+    } // if/else
+    this.size++;
+  } // addOffset(long, int)
+
+  /**
+   * Note the hash, source and target of the next record in the index,
+   * once we have reserved room for it and the codec has seen it, and
+   * link it into the lists of records for its source and target.
+   *
+   * @param block
+   *   The block in the record.
+   */
+  void addLookups(Block block) {
+    int i = this.size;
+    MappedByteBuffer region = this.entries[i >>> ENTRY_BITS];
+    int start = (i & ENTRY_MASK) * ENTRY_SIZE;
+    long key = hashKey(block.getHash());
+    synchronized (this.table) {
+      int source = -1;
+      int target = -1;
+      if (i > 0) {
+        Transaction t = block.getTransaction();
+        source = this.codec.ids.get(t.getSource());
+        target = this.codec.ids.get(t.getTarget());
+        int most = Math.max(source, target);
+        if (most >= this.lastRecords.length) {
+          this.lastRecords = Arrays.copyOf(this.lastRecords,
+              Math.max(2 * this.lastRecords.length, most + 1));
+        } // if
+        region.putInt(start + PREV_SOURCE_AT, this.lastRecords[source]);
+        region.putInt(start + PREV_TARGET_AT, this.lastRecords[target]);
+        this.lastRecords[source] = i;
+        this.lastRecords[target] = i;
+      } // if
+      region.putLong(start + KEY_AT, key);
+      region.putInt(start + SOURCE_AT, source);
+      region.putInt(start + TARGET_AT, target);
+      this.table.put(key, i);
+    } // synchronized
+  } // addLookups(Block)
+
+  /**
+   * Undo addLookups() for the last record, once it is gone.
+   *
+   * @param i
+   *   The number of the record.
+   */
+  void removeLookups(int i) {
+    int source = this.entryInt(i, SOURCE_AT);
+    int target = this.entryInt(i, TARGET_AT);
+    if (source >= 0) {
+      this.lastRecords[source] = this.entryInt(i, PREV_SOURCE_AT);
+      this.lastRecords[target] = this.entryInt(i, PREV_TARGET_AT);
+    } // if
+    long key = this.entries[i >>> ENTRY_BITS].getLong((i & ENTRY_MASK)
+        * ENTRY_SIZE + KEY_AT);
+    this.table.remove(key, i);
+  } // removeLookups(int)
+
+  /**
+   * Get one of the ints in an entry of the index.
+   *
+   * @param i
+   *   The number of the entry.
+   * @param field
+   *   Where the int is in the entry.
+   *
+   * @return the int.
+   */
+  int entryInt(int i, int field) {
+    return this.entries[i >>> ENTRY_BITS].getInt((i & ENTRY_MASK)
+        * ENTRY_SIZE + field);
+  } // entryInt(int, int)
+
+  /**
+   * Find where a record starts.
+   *
+   * @param i
+   *   The number of the record.
+   *
+   * @return where it starts.
+   */
+  long offset(int i) {
+    if (this.indexChannel == null) {
+      return this.offsets[i];
+    } // if
+    return this.entries[i >>> ENTRY_BITS].getLong((i & ENTRY_MASK)
+        * ENTRY_SIZE);
+  } // offset(int)
+
+  /**
+   * Find how many names the codec knew before a record.
+   *
+   * @param i
+   *   The number of the record.
+   *
+   * @return the number of names.
+   */
+  int namesBefore(int i) {
+    if (this.indexChannel == null) {
+      return this.names[i];
+    } // if
+    return this.entryInt(i, NAMES_AT);
+  } // namesBefore(int)
+
+  /**
+   * Find how many blocks had been removed from a mapped log when a
+   * record was added. Since that only grows, a record whose epoch is
+   * no later than some point has been in the log since then.
+   *
+   * @param i
+   *   The number of the record.
+   *
+   * @return the number of removals.
+   */
+  int epoch(int i) {
+    return this.entryInt(i, EPOCH_AT);
+  } // epoch(int)
+
+  /**
+   * Find the key for a block in the cache. A block that replaces a
+   * removed one has a later epoch, and so a different key.
+   *
+   * @param i
+   *   The number of the record.
+   * @param epoch
+   *   Its epoch.
+   *
+   * @return the key.
+   */
+  static long key(int i, int epoch) {
+    return ((long) epoch << Integer.SIZE) | i;
+  } // key(int, int)
+
+  /**
+   * Determine if a record has been in a mapped log since some point.
+   *
+   * @param i
+   *   The number of the record.
+   * @param since
+   *   The number of removals at that point.
+   *
+   * @return the epoch of the record, or -1 if the record has been
+   *   removed since then.
+   */
+  int intact(int i, int since) {
+    if (i >= this.size) {
+      return -1;
+    } // if
+    int epoch = this.epoch(i);
+    return (epoch <= since) ? epoch : -1;
+  } // intact(int, int)
+
+  /**
+   * Write the pending records to the file, without forcing them.
+   *
+   * @throws IOException
+   *   If we cannot write the file.
+   */
+  void flush() throws IOException {
+    this.pending.flip();
+    long at = this.written;
+    try {
+      while (this.pending.hasRemaining()) {
+        at += this.channel.write(this.pending, at);
+      } // while
+      if (this.regions != null) {
+        // Map the new records before readers can see them.
+        this.mapTo(at);
+      } // if
+    } finally {
+      // Keep whatever we did not write for the next try.
+      this.pending.compact();
+      this.written = at;
+    } // try/finally
+  } // flush()
+
+  /**
+   * Add a block to the end of the log without committing it, even if
+   * that completes a batch.
+   *
+   * @param block
+   *   The block.
+   *
+   * @throws UncheckedIOException
+   *   If we cannot extend the index file, in which case the log is as
+   *   it was.
+   */
+  synchronized void addRecord(Block block) {
+    try {
+      this.reserve();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+    long offset = this.written + this.pending.position();
+    int known = this.codec.names();
+    byte[] body;
+    if (this.table == null) {
+      body = this.codec.encode(block);
+    } else {
+      // Encoding may teach the codec names, which lookups read.
+      synchronized (this.table) {
+        body = this.codec.encode(block);
+      } // synchronized
+    } // if/else
+    int length = OVERHEAD + body.length;
+    if (this.pending.remaining() < length) {
+      int capacity = Math.max(2 * this.pending.capacity(),
+          this.pending.position() + length);
+      ByteBuffer bigger = ByteBuffer.allocate(capacity);
+      this.pending.flip();
+      bigger.put(this.pending);
+      this.pending = bigger;
+    } // if
+    this.pending.putInt(body.length);
+    this.pending.put(body);
+    this.pending.putInt(checksum(ByteBuffer.wrap(body)));
+    if (this.cache != null) {
+      synchronized (this.cache) {
+        this.cache.put(key(this.size, this.removals), block);
+      } // synchronized
+      this.addLookups(block);
+    } // if
+    this.addOffset(offset, known);
+  } // addRecord(Block)
+
+  /**
+   * Remove the last block from the log without committing the change,
+   * even if that completes a batch.
+   *
+   * @throws IllegalStateException
+   *   If the log is empty.
+   * @throws UncheckedIOException
+   *   If we cannot truncate or mark the file, in which case the log is
+   *   as it was.
+   */
+  synchronized void removeRecord() {
+    if (this.size == 0) {
+      throw new IllegalStateException("No blocks to remove");
+    } // if
+    int last = this.size - 1;
+    long offset = this.offset(last);
+    int known = this.namesBefore(last);
+    if (this.cache != null) {
+      synchronized (this.cache) {
+        this.cache.remove(key(last, this.epoch(last)));
+      } // synchronized
+    } // if
+
+    // Readers of a mapped log must see that the block is gone before
+    // its bytes change.
+    this.size = last;
+    this.removals++;
+    try {
+      if (offset >= this.written) {
+        // It was never written, so we just forget it.
+        this.pending.position((int) (offset - this.written));
+      } else if (this.indexChannel == null) {
+        // Nothing after it is pending, so we can cut it from the file.
+        this.channel.truncate(offset);
+        this.written = offset;
+      } else {
+        // Someone may still be reading the mapped bytes, so we mark
+        // the new end of the log instead.
+        ByteBuffer end = ByteBuffer.allocate(Integer.BYTES).putInt(0, -1);
+        while (end.hasRemaining()) {
+          this.channel.write(end, offset + end.position());
+        } // while
+        this.written = offset;
+      } // if/else
+    } catch (IOException e) {
+      this.size = last + 1;
+      throw new UncheckedIOException(e);
+    } // try/catch
+    if (this.table == null) {
+      this.codec.forget(known);
+    } else {
+      synchronized (this.table) {
+        this.removeLookups(last);
+        this.codec.forget(known);
+      } // synchronized
+    } // if/else
+    if (this.cached > this.size) {
+      this.recovered[--this.cached] = null;
+    } // if
+  } // removeRecord()
+
+  /**
+   * Note one more change, committing if the batch is full or if the
+   * oldest change has waited long enough.
+   *
+   * @throws UncheckedIOException
+   *   If this completes a batch and we cannot commit it. The change
+   *   stays in the log, waiting for the next commit.
+   */
+  synchronized void changed() {
+    long now = System.nanoTime();
+    if (this.uncommitted++ == 0) {
+      this.oldest = now;
+    } // if
+    if ((this.uncommitted >= this.batch) || (now - this.oldest >= this.delay)) {
+      this.commit();
+    } else {
+      this.schedule(this.delay - (now - this.oldest));
+    } // if/else
+  } // changed()
+
+  /**
+   * Have the timer look at the log after a while, unless it will
+   * already.
+   *
+   * @param nanos
+   *   How long to wait, in nanoseconds.
+   */
+  synchronized void schedule(long nanos) {
+    if (!this.timed) {
+      this.timed = true;
+      timer.schedule(this::commitLate, nanos, TimeUnit.NANOSECONDS);
+    } // if
+  } // schedule(long)
+
+  /**
+   * Commit the changes if the oldest has waited long enough, and
+   * otherwise look again when it will have. This is what the timer
+   * does.
+   */
+  synchronized void commitLate() {
+    this.timed = false;
+    if (!this.channel.isOpen() || (this.uncommitted == 0)) {
+      return;
+    } // if
+    long waited = System.nanoTime() - this.oldest;
+    if (waited < this.delay) {
+      this.schedule(this.delay - waited);
+      return;
+    } // if
+    try {
+      this.commit();
+    } catch (UncheckedIOException e) {
+      // Nobody is waiting to hear, so we just try again later.
+      this.schedule(this.delay);
+    } // try/catch
+  } // commitLate()
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Determine how many blocks are in the log.
+   *
+   * @return the number of blocks.
+   */
+  public int size() {
+    return this.size;
+  } // size()
+
+  /**
+   * Determine whether the log keeps an index file and reads blocks from
+   * the log only as they are needed.
+   *
+   * @return true if it does and false if it keeps the blocks in memory.
+   */
+  public boolean isMapped() {
+    return this.indexChannel != null;
+  } // isMapped()
+
+  /**
+   * Determine how many blocks have been removed since we opened the
+   * log.
+   *
+   * @return the number of removals.
+   */
+  int removals() {
+    return this.removals;
+  } // removals()
+
+  /**
+   * Set the longest that a change waits for its commit. Once the oldest
+   * uncommitted change has waited that long, we commit, even if the
+   * batch is not yet full.
+   *
+   * @param millis
+   *   The delay, in milliseconds.
+   */
+  public synchronized void setMaxDelay(long millis) {
+    if (millis < 1) {
+      throw new IllegalArgumentException("Invalid delay: " + millis);
+    } // if
+    this.delay = TimeUnit.MILLISECONDS.toNanos(millis);
+  } // setMaxDelay(long)
+
+  /**
+   * Add a block to the end of the log.
+   *
+   * @param block
+   *   The block.
+   *
+   * @throws UncheckedIOException
+   *   If we cannot extend the index file (in which case the block is
+   *   not added), or if this completes a batch and we cannot commit it
+   *   (in which case the block stays in the log, waiting for the next
+   *   commit).
+   */
+  public synchronized void append(Block block) {
+    this.addRecord(block);
+    this.changed();
+  } // append(Block)
+
+  /**
+   * Remove the last block from the log.
+   *
+   * @throws IllegalStateException
+   *   If the log is empty.
+   * @throws UncheckedIOException
+   *   If we cannot truncate the file, or if this completes a batch and
+   *   we cannot commit it.
+   */
+  public synchronized void removeLast() {
+    this.removeRecord();
+    this.changed();
+  } // removeLast()
+
+  /**
+   * Get one of the blocks in the log. If we keep the blocks in memory,
+   * the blocks that were in the log when we opened it come from there
+   * and we read the others back from the file. Otherwise, the blocks
+   * come from the cache or, failing that, from the mapped file.
+   *
+   * @param i
+   *   The position of the block, between 0 and size() - 1.
+   *
+   * @return the block.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If there is no such block.
+   * @throws UncheckedIOException
+   *   If we cannot read it.
+   */
+  public Block get(int i) {
+    if ((i < 0) || (i >= this.size)) {
+      throw new IndexOutOfBoundsException("No block " + i + " in log (size "
+          + this.size + ")");
+    } else if (this.indexChannel != null) {
+      return this.get(i, this.removals);
+    } // if/else
+    return this.getKept(i);
+  } // get(int)
+
+  /**
+   * Get one of the blocks in a log that keeps them in memory.
+   *
+   * @param i
+   *   The position of the block.
+   *
+   * @return the block.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If there is no such block.
+   * @throws UncheckedIOException
+   *   If we cannot read it.
+   */
+  synchronized Block getKept(int i) {
+    if (i >= this.size) {
+      throw new IndexOutOfBoundsException("No block " + i + " in log (size "
+          + this.size + ")");
+    } else if (i < this.cached) {
+      return this.recovered[i];
+    } // if/else
+    try {
+      long offset = this.offset(i);
+      if (offset >= this.written) {
+        this.flush();
+      } // if
+      ByteBuffer body = this.readBody(offset, this.written);
+      if (body == null) {
+        throw new IOException("Damaged record for block " + i);
+      } // if
+      return this.codec.getBlock(body);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (IllegalArgumentException e) {
+      throw new UncheckedIOException(
+          new IOException("Damaged record for block " + i, e));
+    } // try/catch
+  } // getKept(int)
+
+  /**
+   * Get one of the blocks in a mapped log, as long as it has not been
+   * removed since some point. We need no lock unless the block is still
+   * pending (or spans two mapped regions). Since the block may be
+   * removed while we read it, we make sure that it is still there
+   * before we return it (or report that it is damaged).
+   *
+   * @param i
+   *   The position of the block.
+   * @param since
+   *   The number of removals at that point.
+   *
+   * @return the block.
+   *
+   * @throws IllegalStateException
+   *   If the block has been removed (and perhaps replaced) since then.
+   * @throws UncheckedIOException
+   *   If we cannot read it.
+   */
+  Block get(int i, int since) {
+    int epoch = this.intact(i, since);
+    if (epoch < 0) {
+      throw new IllegalStateException("Block " + i
+          + " has been removed from the log");
+    } // if
+    long key = key(i, epoch);
+    Block block;
+    synchronized (this.cache) {
+      block = this.cache.get(key);
+    } // synchronized
+    if (block != null) {
+      return block;
+    } // if
+    Exception problem = null;
+    try {
+      long offset = this.offset(i);
+      ByteBuffer body = this.mappedBody(offset, false);
+      if (body == null) {
+        synchronized (this) {
+          if (this.intact(i, since) == epoch) {
+            body = this.mappedBody(offset, true);
+          } // if
+        } // synchronized
+      } // if
+      if (body != null) {
+        block = this.codec.getBlock(body, false);
+      } // if
+    } catch (IOException | RuntimeException e) {
+      problem = e;
+    } // try/catch
+    if (this.intact(i, since) != epoch) {
+      throw new IllegalStateException("Block " + i
+          + " has been removed from the log");
+    } else if (block == null) {
+      throw new UncheckedIOException(
+          new IOException("Damaged record for block " + i, problem));
+    } // if/else
+    synchronized (this.cache) {
+      this.cache.put(key, block);
+    } // synchronized
+    return block;
+  } // get(int, int)
+
+  /**
+   * Make sure that the first records of a mapped log have been there
+   * since some point.
+   *
+   * @param limit
+   *   The number of records.
+   * @param since
+   *   The number of removals at that point.
+   *
+   * @throws IllegalStateException
+   *   If one of them has been removed since then.
+   */
+  void checkIntact(int limit, int since) {
+    if ((limit > 0) && (this.intact(limit - 1, since) < 0)) {
+      throw new IllegalStateException("Block " + (limit - 1)
+          + " has been removed from the log");
+    } // if
+  } // checkIntact(int, int)
+
+  /**
+   * Find the heights of the blocks in a mapped log that may have some
+   * hash, among the blocks that have been there since some point. The
+   * caller must check the hashes of the blocks at those heights.
+   *
+   * @param hash
+   *   The hash.
+   * @param limit
+   *   The number of blocks to consider.
+   * @param since
+   *   The number of removals at that point.
+   *
+   * @return the heights, in no particular order.
+   *
+   * @throws IllegalStateException
+   *   If one of those blocks has been removed since then.
+   */
+  int[] heights(Hash hash, int limit, int since) {
+    int[] found;
+    synchronized (this.table) {
+      this.checkIntact(limit, since);
+      found = this.table.heights(hashKey(hash));
+    } // synchronized
+    int count = 0;
+    for (int height : found) {
+      if (height < limit) {
+        found[count++] = height;
+      } // if
+    } // for
+    return Arrays.copyOf(found, count);
+  } // heights(Hash, int, int)
+
+  /**
+   * Find the blocks in a mapped log whose transactions involve a user,
+   * among the blocks that have been there since some point. We follow
+   * the user's list of records, so this takes time proportional to the
+   * number of blocks we find (and any added since then), not to the
+   * size of the log.
+   *
+   * @param user
+   *   The user.
+   * @param limit
+   *   The number of blocks to consider.
+   * @param since
+   *   The number of removals at that point.
+   *
+   * @return the heights of the blocks, in increasing order.
+   *
+   * @throws IllegalStateException
+   *   If one of those blocks has been removed since then.
+   */
+  int[] history(String user, int limit, int since) {
+    int[] found = new int[16];
+    int count = 0;
+    synchronized (this.table) {
+      this.checkIntact(limit, since);
+      Integer id = this.codec.ids.get(user);
+      int height = ((id == null) || (id >= this.lastRecords.length)) ? 0
+          : this.lastRecords[id];
+      while (height > 0) {
+        if (height < limit) {
+          if (count == found.length) {
+            found = Arrays.copyOf(found, 2 * count);
+          } // if
+          found[count++] = height;
+        } // if
+        height = (this.entryInt(height, SOURCE_AT) == id)
+            ? this.entryInt(height, PREV_SOURCE_AT)
+            : this.entryInt(height, PREV_TARGET_AT);
+      } // while
+    } // synchronized
+    int[] result = new int[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = found[count - 1 - i];
+    } // for
+    return result;
+  } // history(String, int, int)
+
+  /**
+   * Get an iterator for the blocks in the log.
+   *
+   * @return an iterator for the blocks.
+   */
+  public Iterator<Block> blocks() {
+    return new Iterator<Block>() {
+      int current = 0;
+
+      public boolean hasNext() {
+        return this.current < BlockLog.this.size();
+      } // hasNext()
+
+      public Block next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        } // if
+        return BlockLog.this.get(this.current++);
+      } // next()
+    };
+  } // blocks()
+
+  /**
+   * Make every change so far durable.
+   *
+   * @throws UncheckedIOException
+   *   If we cannot write or force the file.
+   */
+  public synchronized void commit() {
+    try {
+      this.flush();
+      if (this.uncommitted > 0) {
+        this.channel.force(false);
+        this.uncommitted = 0;
+      } // if
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+  } // commit()
+
+  /**
+   * Commit and close the log.
+   *
+   * @throws IOException
+   *   If we cannot commit or close the file, or if the file was closed
+   *   (say, by an interrupt while we wrote it) before we could commit
+   *   every change.
+   */
+  public synchronized void close() throws IOException {
+    if (!this.channel.isOpen()) {
+      if (this.indexChannel != null) {
+        this.indexChannel.close();
+        this.table.close();
+      } // if
+      if ((this.uncommitted > 0) || (this.pending.position() > 0)) {
+        throw new IOException("Log file closed with " + this.uncommitted
+            + " uncommitted changes");
+      } // if
+      return;
+    } // if
+    try {
+      this.commit();
+      if (this.indexChannel != null) {
+        if (this.channel.size() > this.written) {
+          // Drop anything after the mark at the end.
+          this.channel.truncate(this.written);
+        } // if
+        this.saveIndex();
+      } // if
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      this.channel.close();
+      if (this.indexChannel != null) {
+        this.indexChannel.close();
+        this.table.close();
+      } // if
+    } // try/catch/finally
+  } // close()
+} // class BlockLog
@@ -0,0 +1,66 @@
+package edu.grinnell.csc207.blockchains;
+
+/**
+ * The blocks of a chain, indexed by height.
+ *
+ * A store never changes once created: adding or removing a block gives
+ * a new store. Readers can therefore use a store without any locking,
+ * while one writer makes new stores from the latest one.
+ *
+ * @author agent
+ */
+interface BlockStore {
+  /**
+   * Determine how many blocks are stored.
+   *
+   * @return the number of blocks.
+   */
+  int size();
+
+  /**
+   * Get the block at a particular height.
+   *
+   * @param height
+   *   The height of the block, between 0 and size() - 1.
+   *
+   * @return the block.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If there is no block at that height.
+   */
+  Block get(int height);
+
+  /**
+   * Get the last block.
+   *
+   * @return the last block.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If the store is empty.
+   */
+  default Block last() {
+    return this.get(this.size() - 1);
+  } // last()
+
+  /**
+   * Add a block to the end. Only the one writer may call this, and only
+   * on the latest store.
+   *
+   * @param block
+   *   The block to add.
+   *
+   * @return a store with the blocks of this store followed by block.
+   */
+  BlockStore add(Block block);
+
+  /**
+   * Remove the last block. Only the one writer may call this, and only
+   * on the latest store.
+   *
+   * @return a store with all but the last block of this store.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If the store is empty.
+   */
+  BlockStore removeLast();
+} // interface BlockStore
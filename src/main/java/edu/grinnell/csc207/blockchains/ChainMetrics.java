@@ -0,0 +1,158 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.io.PrintWriter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies for mining and validating a blockchain. All of
+ * the counters are striped, and miners only update them every few
+ * thousand attempts, so keeping track costs almost nothing on the hot
+ * path.
+ *
+ * @author agent
+ */
+public class ChainMetrics {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The number of hashes computed while mining.
+   */
+  LongAdder hashes;
+
+  /**
+   * The number of hashes that the validator rejected, while mining,
+   * appending, or checking.
+   */
+  LongAdder rejections;
+
+  /**
+   * The number of blocks mined.
+   */
+  LongAdder blocksMined;
+
+  /**
+   * The time spent mining, whether or not we found a nonce.
+   */
+  LongAdder miningNanos;
+
+  /**
+   * How long mining a block takes, when we find a nonce.
+   */
+  LatencyHistogram mining;
+
+  /**
+   * How long appending takes.
+   */
+  LatencyHistogram appending;
+
+  /**
+   * How long checking takes.
+   */
+  LatencyHistogram checking;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a new set of metrics, with everything at zero.
+   */
+  public ChainMetrics() {
+    this.hashes = new LongAdder();
+    this.rejections = new LongAdder();
+    this.blocksMined = new LongAdder();
+    this.miningNanos = new LongAdder();
+    this.mining = new LatencyHistogram();
+    this.appending = new LatencyHistogram();
+    this.checking = new LatencyHistogram();
+  } // ChainMetrics()
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Get the number of hashes computed while mining.
+   *
+   * @return the number of hashes.
+   */
+  public long hashes() {
+    return this.hashes.sum();
+  } // hashes()
+
+  /**
+   * Get the number of hashes that the validator rejected.
+   *
+   * @return the number of rejections.
+   */
+  public long rejections() {
+    return this.rejections.sum();
+  } // rejections()
+
+  /**
+   * Get the number of blocks mined.
+   *
+   * @return the number of blocks.
+   */
+  public long blocksMined() {
+    return this.blocksMined.sum();
+  } // blocksMined()
+
+  /**
+   * Get the number of hashes computed per second of mining (summed over
+   * all of the mining threads). Mining that was cancelled or failed
+   * counts as well, since its hashes do.
+   *
+   * @return the rate, or 0 if we have not mined.
+   */
+  public double hashesPerSecond() {
+    long nanos = this.miningNanos.sum();
+    return (nanos == 0) ? 0 : this.hashes() * 1e9 / nanos;
+  } // hashesPerSecond()
+
+  /**
+   * Get the latencies of mining blocks.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram miningLatency() {
+    return this.mining;
+  } // miningLatency()
+
+  /**
+   * Get the latencies of appending blocks.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram appendLatency() {
+    return this.appending;
+  } // appendLatency()
+
+  /**
+   * Get the latencies of checking the chain.
+   *
+   * @return the histogram.
+   */
+  public LatencyHistogram checkLatency() {
+    return this.checking;
+  } // checkLatency()
+
+  /**
+   * Print the metrics.
+   *
+   * @param pen
+   *   Where to print them.
+   */
+  public void print(PrintWriter pen) {
+    pen.printf("Blocks mined: %d\n", this.blocksMined());
+    pen.printf("Hashes: %d (%.0f/sec)\n", this.hashes(),
+        this.hashesPerSecond());
+    pen.printf("Validator rejections: %d\n", this.rejections());
+    pen.println("Mining: " + this.mining);
+    pen.println("Append: " + this.appending);
+    pen.println("Check: " + this.checking);
+  } // print(PrintWriter)
+} // class ChainMetrics
@@ -0,0 +1,220 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only view of a blockchain as it was at one moment: the blocks
+ * up to some height and the balances and users after them. The chain
+ * may go on to append and remove blocks, but a snapshot never changes,
+ * so long-running readers (reports, exports, audits) can use one
+ * without locking the chain.
+ *
+ * Snapshots share their blocks and ledger with the chain rather than
+ * copying them, so taking one takes constant time. A chain that keeps
+ * its blocks in a mapped log (see BlockChain.attach(BlockLog)) holds
+ * them only in that log, though, so once the chain removes a block,
+ * getBlock() and blocks() throw IllegalStateException for it. The
+ * balances and users of the snapshot are unaffected.
+ *
+ * @author agent
+ */
+public class ChainSnapshot implements Iterable<Transaction> {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The chain that we took the snapshot of.
+   */
+  final BlockChain chain;
+
+  /**
+   * The blocks.
+   */
+  final BlockStore blocks;
+
+  /**
+   * The accounts after those blocks.
+   */
+  final Ledger ledger;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a snapshot.
+   *
+   * @param theChain
+   *   The chain that we took the snapshot of.
+   * @param theBlocks
+   *   The blocks in that chain.
+   * @param theLedger
+   *   The accounts after those blocks, which must not change.
+   */
+  ChainSnapshot(BlockChain theChain, BlockStore theBlocks,
+      Ledger theLedger) {
+    this.chain = theChain;
+    this.blocks = theBlocks;
+    this.ledger = theLedger;
+  } // ChainSnapshot(BlockChain, BlockStore, Ledger)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Get the number of blocks in the snapshot.
+   *
+   * @return the number of blocks, including the initial block.
+   */
+  public int getSize() {
+    return this.blocks.size();
+  } // getSize()
+
+  /**
+   * Get the hash of the last block in the snapshot.
+   *
+   * @return the hash of the last block.
+   */
+  public Hash getHash() {
+    return this.blocks.last().getHash();
+  } // getHash()
+
+  /**
+   * Get the block at a particular height.
+   *
+   * @param height
+   *   The height of the block; the initial block is at height 0.
+   *
+   * @return the block.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If the snapshot has no block at that height.
+   * @throws IllegalStateException
+   *   If the chain keeps its blocks in a mapped log and has since
+   *   removed the block.
+   */
+  public Block getBlock(int height) {
+    return this.blocks.get(height);
+  } // getBlock(int)
+
+  /**
+   * Find one user's balance after the blocks in the snapshot.
+   *
+   * @param user
+   *   The user whose balance we want to find.
+   *
+   * @return that user's balance (or 0, if the user is not in the
+   *   snapshot).
+   */
+  public int balance(String user) {
+    int id = this.ledger.find(user);
+    return (id < 0) ? 0 : (int) this.ledger.balance(id);
+  } // balance(String)
+
+  /**
+   * Determine how many users are in the snapshot.
+   *
+   * @return the number of users.
+   */
+  public int userCount() {
+    return this.ledger.userCount();
+  } // userCount()
+
+  /**
+   * Get an iterator for the users in the snapshot, in the order they
+   * first received something.
+   *
+   * @return an iterator for the users.
+   */
+  public Iterator<String> users() {
+    return new Iterator<String>() {
+      int current = 0;
+
+      public boolean hasNext() {
+        return this.current < ChainSnapshot.this.ledger.userCount();
+      } // hasNext()
+
+      public String next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        } // if
+        Ledger accounts = ChainSnapshot.this.ledger;
+        return accounts.name(accounts.user(this.current++));
+      } // next()
+    };
+  } // users()
+
+  /**
+   * Get an iterator for the blocks in the snapshot.
+   *
+   * @return an iterator for the blocks.
+   */
+  public Iterator<Block> blocks() {
+    return new Iterator<Block>() {
+      int current = 0;
+
+      public boolean hasNext() {
+        return this.current < ChainSnapshot.this.blocks.size();
+      } // hasNext()
+
+      public Block next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        } // if
+        return ChainSnapshot.this.blocks.get(this.current++);
+      } // next()
+    };
+  } // blocks()
+
+  /**
+   * Get an iterator for the transactions in the snapshot, skipping the
+   * initial block.
+   *
+   * @return an iterator for the transactions.
+   */
+  public Iterator<Transaction> iterator() {
+    return new Iterator<Transaction>() {
+      int current = 1;
+
+      public boolean hasNext() {
+        return this.current < ChainSnapshot.this.blocks.size();
+      } // hasNext()
+
+      public Transaction next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        } // if
+        return ChainSnapshot.this.blocks.get(this.current++)
+            .getTransaction();
+      } // next()
+    };
+  } // iterator()
+
+  /**
+   * Verify every block in the snapshot, as checkAll() does for the
+   * chain. The chain can keep changing while we do so.
+   *
+   * @throws Exception
+   *   If things are wrong at any block.
+   */
+  public void check() throws Exception {
+    this.chain.checkBlocks(this.blocks);
+  } // check()
+
+  /**
+   * Determine if the blocks in the snapshot are correct.
+   *
+   * @return true if every block is correct and false otherwise.
+   */
+  public boolean isCorrect() {
+    try {
+      this.check();
+      return true;
+    } catch (Exception e) {
+      return false;
+    } // try/catch
+  } // isCorrect()
+} // class ChainSnapshot
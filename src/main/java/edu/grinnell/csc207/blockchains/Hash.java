@@ -1,22 +1,81 @@
 package edu.grinnell.csc207.blockchains;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 
 /**
- * Encapsulated hashes.
+ * Encapsulated hashes. Hashes are immutable values.
+ *
+ * Nearly every hash is a 32-byte SHA-256 digest, so we store those as
+ * four big-endian longs rather than as an array. That keeps them small,
+ * lets us compare them a word at a time, and means that reading a hash
+ * (through get(), word(), or writeTo()) never allocates. Hashes of other
+ * lengths keep their bytes in an array. Either way, we compute the hash
+ * code once, from the bits.
  *
  * @author Your Name Here
  * @author Samuel A. Rebelsky
  */
 public class Hash {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The number of bytes in the hashes we store as words.
+   */
+  static final int COMPACT = 4 * Long.BYTES;
+
+  /**
+   * The hex digits.
+   */
+  static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * A view of byte arrays as big-endian longs, for reading digests a
+   * word at a time.
+   */
+  static final VarHandle LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
   // +--------+------------------------------------------------------
   // | Fields |
   // +--------+
 
   /**
-   * The bytes in the hash.
+   * The bytes in the hash, if the hash is not COMPACT bytes long (and
+   * null if it is).
+   */
+  final byte[] bytes;
+
+  /**
+   * The first eight bytes of a compact hash.
+   */
+  final long w0;
+
+  /**
+   * The next eight bytes of a compact hash.
+   */
+  final long w1;
+
+  /**
+   * The next eight bytes of a compact hash.
    */
-  byte[] bytes;
+  final long w2;
+
+  /**
+   * The last eight bytes of a compact hash.
+   */
+  final long w3;
+
+  /**
+   * The hash code.
+   */
+  final int code;
 
   // +--------------+------------------------------------------------
   // | Constructors |
@@ -29,9 +88,98 @@ public class Hash {
    *   The data to copy into the hash.
    */
   public Hash(byte[] data) {
-    this.bytes = Arrays.copyOf(data, data.length);
+    if (data.length == COMPACT) {
+      this.bytes = null;
+      this.w0 = (long) LONGS.get(data, 0);
+      this.w1 = (long) LONGS.get(data, 8);
+      this.w2 = (long) LONGS.get(data, 16);
+      this.w3 = (long) LONGS.get(data, 24);
+      this.code = wordCode(this.w0, this.w1, this.w2, this.w3);
+    } else {
+      this.bytes = Arrays.copyOf(data, data.length);
+      this.w0 = 0;
+      this.w1 = 0;
+      this.w2 = 0;
+      this.w3 = 0;
+      this.code = Arrays.hashCode(this.bytes);
+    } // if/else
   } // Hash(byte[])
 
+  /**
+   * Create a new 32-byte hash from its words.
+   *
+   * @param word0
+   *   The first eight bytes, big-endian.
+   * @param word1
+   *   The next eight bytes.
+   * @param word2
+   *   The next eight bytes.
+   * @param word3
+   *   The last eight bytes.
+   */
+  Hash(long word0, long word1, long word2, long word3) {
+    this.bytes = null;
+    this.w0 = word0;
+    this.w1 = word1;
+    this.w2 = word2;
+    this.w3 = word3;
+    this.code = wordCode(word0, word1, word2, word3);
+  } // Hash(long, long, long, long)
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Compute the hash code of a compact hash. The digest is already
+   * well mixed, so folding the words together is enough.
+   *
+   * @param word0
+   *   The first word.
+   * @param word1
+   *   The second word.
+   * @param word2
+   *   The third word.
+   * @param word3
+   *   The fourth word.
+   *
+   * @return the hash code.
+   */
+  static int wordCode(long word0, long word1, long word2, long word3) {
+    return Long.hashCode(word0 ^ (31 * word1) ^ (961 * word2)
+        ^ (29791 * word3));
+  } // wordCode(long, long, long, long)
+
+  /**
+   * Determine if the hash is stored as words.
+   *
+   * @return true if the hash is stored as words and false otherwise.
+   */
+  boolean isCompact() {
+    return this.bytes == null;
+  } // isCompact()
+
+  /**
+   * Get one of the words of a compact hash.
+   *
+   * @param i
+   *   The index of the word, between 0 and 3.
+   *
+   * @return the ith eight bytes of the hash, as a big-endian long.
+   */
+  long word(int i) {
+    switch (i) {
+      case 0:
+        return this.w0;
+      case 1:
+        return this.w1;
+      case 2:
+        return this.w2;
+      default:
+        return this.w3;
+    } // switch
+  } // word(int)
+
   // +---------+-----------------------------------------------------
   // | Methods |
   // +---------+
@@ -42,7 +190,7 @@ public class Hash {
    * @return the number of bytes in the hash.
    */
   public int length() {
-    return this.bytes.length;
+    return (this.bytes == null) ? COMPACT : this.bytes.length;
   } // length()
 
   /**
@@ -55,7 +203,12 @@ public class Hash {
    * @return the ith byte
    */
   public byte get(int i) {
-    return this.bytes[i];
+    if (this.bytes != null) {
+      return this.bytes[i];
+    } else if ((i < 0) || (i >= COMPACT)) {
+      throw new ArrayIndexOutOfBoundsException(i);
+    } // if/else
+    return (byte) (this.word(i >>> 3) >>> (56 - 8 * (i & 7)));
   } // get()
 
   /**
@@ -65,20 +218,49 @@ public class Hash {
    * @return a copy of the bytes in the hash.
    */
   public byte[] getBytes() {
-    return Arrays.copyOf(bytes, bytes.length);
+    if (this.bytes != null) {
+      return Arrays.copyOf(this.bytes, this.bytes.length);
+    } // if
+    byte[] result = new byte[COMPACT];
+    this.writeTo(ByteBuffer.wrap(result));
+    return result;
   } // getBytes()
 
+  /**
+   * Put the bytes of the hash into a buffer, without making a copy
+   * along the way.
+   *
+   * @param buffer
+   *   The buffer, which must have room for length() bytes.
+   */
+  public void writeTo(ByteBuffer buffer) {
+    if (this.bytes != null) {
+      buffer.put(this.bytes);
+    } else if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+      buffer.putLong(this.w0).putLong(this.w1).putLong(this.w2)
+          .putLong(this.w3);
+    } else {
+      buffer.putLong(Long.reverseBytes(this.w0))
+          .putLong(Long.reverseBytes(this.w1))
+          .putLong(Long.reverseBytes(this.w2))
+          .putLong(Long.reverseBytes(this.w3));
+    } // if/else
+  } // writeTo(ByteBuffer)
+
   /**
    * Convert to a hex string.
    *
    * @return the hash as a hex string.
    */
   public String toString() {
-    StringBuilder result = new StringBuilder();
-    for (int i = 0; i < bytes.length; i++) {
-      result.append(String.format("%02X", bytes[i]));
+    int length = this.length();
+    char[] result = new char[2 * length];
+    for (int i = 0; i < length; i++) {
+      int b = this.get(i) & 0xFF;
+      result[2 * i] = HEX[b >>> 4];
+      result[2 * i + 1] = HEX[b & 0xF];
     } // for
-    return result.toString();
+    return new String(result);
   } // toString()
 
   /**
@@ -91,7 +273,6 @@ public class Hash {
    *   otherwise.
    */
   public boolean equals(Object other) {
-    // System.err.printf("Comparing a hash to %s\n", other.toString());
     return (other instanceof Hash) && this.equals((Hash) other);
   } // equals(Object)
 
@@ -104,11 +285,15 @@ public class Hash {
    *   false otherwise.
    */
   public boolean equals(Hash other) {
-    // System.err.printf("Comparing %s to %s\n", Arrays.toString(this.bytes), 
-    //    Arrays.toString(other.bytes));
-    boolean result = Arrays.equals(this.bytes, other.bytes);
-    // System.err.println("  " + result);
-    return result;
+    if (this.code != other.code) {
+      return false;
+    } else if (this.bytes == null) {
+      return (other.bytes == null) && (this.w0 == other.w0)
+          && (this.w1 == other.w1) && (this.w2 == other.w2)
+          && (this.w3 == other.w3);
+    } else {
+      return Arrays.equals(this.bytes, other.bytes);
+    } // if/else
   } // equals(Hash)
 
   /**
@@ -117,6 +302,6 @@ public class Hash {
    * @return the hash code.
    */
   public int hashCode() {
-    return this.toString().hashCode();
+    return this.code;
   } // hashCode()
 } // class Hash
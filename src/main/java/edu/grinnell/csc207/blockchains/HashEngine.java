@@ -0,0 +1,68 @@
+package edu.grinnell.csc207.blockchains;
+
+/**
+ * Things that compute the SHA-256 hashes of blocks. Every engine must
+ * compute exactly the same hashes; engines differ only in how fast they
+ * do so.
+ *
+ * A block's hash is the hash of its prefix (see Block.prefixBytes())
+ * followed by its eight-byte nonce. Since mining hashes the same prefix
+ * with many nonces, engines hand out hashers that are specialized for
+ * one prefix.
+ *
+ * @author agent
+ */
+public interface HashEngine {
+  /**
+   * Get an engine that hashes several nonces at once with the Vector
+   * API, if the jdk.incubator.vector module is available and the machine
+   * has wide enough vectors. Otherwise, get the default scalar engine.
+   *
+   * @return the engine.
+   */
+  static HashEngine vectorized() {
+    try {
+      return (HashEngine)
+          Class.forName("edu.grinnell.csc207.blockchains.VectorHashEngine")
+              .getDeclaredConstructor()
+              .newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return Block.ENGINE;
+    } // try/catch
+  } // vectorized()
+
+  /**
+   * Get the name of the engine.
+   *
+   * @return the name of the engine.
+   */
+  String name();
+
+  /**
+   * Create a hasher for a particular prefix. The hasher is meant to be
+   * used by one thread at a time.
+   *
+   * @param prefix
+   *   The bytes that precede the nonce.
+   *
+   * @return a hasher for that prefix.
+   */
+  NonceHasher hasher(byte[] prefix);
+
+  /**
+   * Compute the hash of a prefix followed by a nonce. Different threads
+   * may call this method at the same time.
+   *
+   * @param prefix
+   *   The bytes that precede the nonce.
+   * @param nonce
+   *   The nonce.
+   *
+   * @return the bytes of the hash.
+   */
+  default byte[] hash(byte[] prefix, long nonce) {
+    byte[] result = new byte[NonceHasher.DIGEST];
+    this.hasher(prefix).hash(nonce, result);
+    return result;
+  } // hash(byte[], long)
+} // interface HashEngine
@@ -16,4 +16,30 @@ public interface HashValidator {
    */
   boolean isValid(Hash hash);
 
+  /**
+   * Determine if the raw bytes of a hash meet the criterion. Miners call
+   * this method on a reused array, so validators that care about speed
+   * should override it to check the bytes directly rather than building
+   * a Hash, and should not hold on to the array.
+   *
+   * @param digest
+   *   The bytes of the hash we're checking.
+   *
+   * @return true if the hash is valid and false otherwise.
+   */
+  default boolean isValid(byte[] digest) {
+    return this.isValid(new Hash(digest));
+  } // isValid(byte[])
+
+  /**
+   * Determine how many hashes we expect to try before finding a valid
+   * one. Validators that know their difficulty should override this
+   * method so that miners can estimate how long mining will take.
+   *
+   * @return the expected number of attempts, or 0 if unknown.
+   */
+  default double expectedAttempts() {
+    return 0;
+  } // expectedAttempts()
+
 } // interface HashValidator
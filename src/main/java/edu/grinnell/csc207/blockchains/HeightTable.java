@@ -0,0 +1,355 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.io.IOException;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * The heights of the blocks in a mapped log, by hash, kept in a
+ * memory-mapped file of their own, so that finding a block by hash
+ * takes neither a pass over the log nor memory for every block.
+ *
+ * The table is open-addressed, with linear probing. Each slot holds a
+ * key, eight bytes of the hash, and one more than the height of the
+ * block, so that an empty slot is all zeros. Different hashes may share
+ * a key, so whoever looks up a hash must check the blocks it gets back.
+ * We keep the table at most half full. When it fills, we build one
+ * twice as big in a new file and move that file over the old one.
+ * Since the log only removes its last block, and the table never has
+ * two slots for the same height, we remove slots by shifting the ones
+ * after them back, which leaves no markers behind.
+ *
+ * The log decides whether the file is any good (see
+ * BlockLog.loadIndex), and one thread at a time may use the table.
+ *
+ * @author agent
+ */
+class HeightTable {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The number of bytes in each slot: the key and one more than the
+   * height.
+   */
+  static final int SLOT = Long.BYTES + Integer.BYTES;
+
+  /**
+   * The number of slots in a new table.
+   */
+  static final int MIN_CAPACITY = 1 << 10;
+
+  /**
+   * The most slots we can map at once.
+   */
+  static final int MAX_CAPACITY = 1 << 27;
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The file.
+   */
+  Path file;
+
+  /**
+   * The open file.
+   */
+  FileChannel channel;
+
+  /**
+   * The slots.
+   */
+  MappedByteBuffer slots;
+
+  /**
+   * The number of slots, a power of two.
+   */
+  int capacity;
+
+  /**
+   * The number of full slots.
+   */
+  int count;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Open a table, creating the file if it does not exist. If the file
+   * is not a plausible size for a table, we start an empty one.
+   * Otherwise, we take the slots as they are, and the caller must set
+   * the count.
+   *
+   * @param theFile
+   *   The file that holds the table.
+   *
+   * @throws IOException
+   *   If we cannot open or map the file.
+   */
+  HeightTable(Path theFile) throws IOException {
+    this.file = theFile;
+    this.channel = FileChannel.open(theFile, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long slotCount = this.channel.size() / SLOT;
+    if ((slotCount < MIN_CAPACITY) || (slotCount > MAX_CAPACITY)
+        || (Long.bitCount(slotCount) != 1)
+        || (slotCount * SLOT != this.channel.size())) {
+      this.clear();
+    } else {
+      this.capacity = (int) slotCount;
+      this.slots = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          (long) this.capacity * SLOT);
+      this.count = 0;
+    } // if/else
+  } // HeightTable(Path)
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Find the slot where we start looking for a key.
+   *
+   * @param key
+   *   The key.
+   *
+   * @return the number of the slot.
+   */
+  int home(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (this.capacity - 1);
+  } // home(long)
+
+  /**
+   * Get the key in a slot.
+   *
+   * @param i
+   *   The number of the slot.
+   *
+   * @return the key.
+   */
+  long key(int i) {
+    return this.slots.getLong(i * SLOT);
+  } // key(int)
+
+  /**
+   * Get one more than the height in a slot.
+   *
+   * @param i
+   *   The number of the slot.
+   *
+   * @return one more than the height, or 0 if the slot is empty.
+   */
+  int value(int i) {
+    return this.slots.getInt(i * SLOT + Long.BYTES);
+  } // value(int)
+
+  /**
+   * Fill a slot.
+   *
+   * @param i
+   *   The number of the slot.
+   * @param key
+   *   The key.
+   * @param value
+   *   One more than the height, or 0 to empty the slot.
+   */
+  void set(int i, long key, int value) {
+    this.slots.putLong(i * SLOT, key);
+    this.slots.putInt(i * SLOT + Long.BYTES, value);
+  } // set(int, long, int)
+
+  /**
+   * Put a key in the first empty slot from its home on.
+   *
+   * @param key
+   *   The key.
+   * @param value
+   *   One more than the height.
+   */
+  void insert(long key, int value) {
+    int mask = this.capacity - 1;
+    int i = this.home(key);
+    while (this.value(i) != 0) {
+      i = (i + 1) & mask;
+    } // while
+    this.set(i, key, value);
+  } // insert(long, int)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Empty the table, shrinking it to MIN_CAPACITY slots.
+   *
+   * @throws IOException
+   *   If we cannot change or map the file.
+   */
+  void clear() throws IOException {
+    this.channel.truncate(0);
+    this.capacity = MIN_CAPACITY;
+    this.slots = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        (long) this.capacity * SLOT);
+    this.count = 0;
+  } // clear()
+
+  /**
+   * Make sure that there is room for one more height, doubling the
+   * table if there is not.
+   *
+   * @throws IOException
+   *   If we cannot build the bigger table, in which case the table is
+   *   as it was.
+   */
+  void reserve() throws IOException {
+    if (2 * (this.count + 1) <= this.capacity) {
+      return;
+    } else if (this.capacity == MAX_CAPACITY) {
+      throw new IOException("Too many blocks for " + this.file);
+    } // if/else
+    Path bigger = this.file.resolveSibling(this.file.getFileName() + ".new");
+    FileChannel grown = FileChannel.open(bigger, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    MappedByteBuffer oldSlots = this.slots;
+    int oldCapacity = this.capacity;
+    try {
+      this.slots = grown.map(FileChannel.MapMode.READ_WRITE, 0,
+          2L * oldCapacity * SLOT);
+      this.capacity = 2 * oldCapacity;
+      for (int i = 0; i < oldCapacity; i++) {
+        int value = oldSlots.getInt(i * SLOT + Long.BYTES);
+        if (value != 0) {
+          this.insert(oldSlots.getLong(i * SLOT), value);
+        } // if
+      } // for
+      Files.move(bigger, this.file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      this.slots = oldSlots;
+      this.capacity = oldCapacity;
+      grown.close();
+      throw e;
+    } // try/catch
+    this.channel.close();
+    this.channel = grown;
+  } // reserve()
+
+  /**
+   * Add the height of a block. There must be room (see reserve()).
+   *
+   * @param key
+   *   The key for the hash of the block.
+   * @param height
+   *   The height.
+   */
+  void put(long key, int height) {
+    this.insert(key, height + 1);
+    this.count++;
+  } // put(long, int)
+
+  /**
+   * Remove the height of a block, if we have it.
+   *
+   * @param key
+   *   The key for the hash of the block.
+   * @param height
+   *   The height.
+   */
+  void remove(long key, int height) {
+    int mask = this.capacity - 1;
+    int i = this.home(key);
+    while ((this.value(i) != 0)
+        && ((this.value(i) != height + 1) || (this.key(i) != key))) {
+      i = (i + 1) & mask;
+    } // while
+    if (this.value(i) == 0) {
+      return;
+    } // if
+
+    // Move back any later slot in the run that may start at or before
+    // the hole, so that lookups do not stop at the hole.
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (this.value(j) == 0) {
+        break;
+      } // if
+      int home = this.home(this.key(j));
+      boolean stays = (i <= j) ? ((i < home) && (home <= j))
+          : ((i < home) || (home <= j));
+      if (!stays) {
+        this.set(i, this.key(j), this.value(j));
+        i = j;
+      } // if
+    } // while
+    this.set(i, 0, 0);
+    this.count--;
+  } // remove(long, int)
+
+  /**
+   * Find the heights of the blocks whose hashes have a key.
+   *
+   * @param key
+   *   The key.
+   *
+   * @return the heights, in no particular order.
+   */
+  int[] heights(long key) {
+    int mask = this.capacity - 1;
+    int[] result = new int[2];
+    int found = 0;
+    for (int i = this.home(key); this.value(i) != 0; i = (i + 1) & mask) {
+      if (this.key(i) == key) {
+        if (found == result.length) {
+          result = Arrays.copyOf(result, 2 * found);
+        } // if
+        result[found++] = this.value(i) - 1;
+      } // if
+    } // for
+    return Arrays.copyOf(result, found);
+  } // heights(long)
+
+  /**
+   * Add the slots to a checksum.
+   *
+   * @param crc
+   *   The checksum.
+   */
+  void checksum(CRC32C crc) {
+    crc.update(this.slots.slice(0, this.capacity * SLOT));
+  } // checksum(CRC32C)
+
+  /**
+   * Make the slots durable.
+   *
+   * @throws IOException
+   *   If we cannot force the file.
+   */
+  void force() throws IOException {
+    this.slots.force();
+    this.channel.force(false);
+  } // force()
+
+  /**
+   * Close the file.
+   *
+   * @throws IOException
+   *   If we cannot close it.
+   */
+  void close() throws IOException {
+    this.channel.close();
+  } // close()
+} // class HeightTable
@@ -0,0 +1,58 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A SHA-256 engine that relies on the Java Cryptography Architecture.
+ * Its hashers reuse one digest, so they allocate nothing on each
+ * attempt. MessageDigest cannot restore a saved state without cloning
+ * (which allocates), so they digest the whole prefix for every nonce;
+ * on CPUs with SHA extensions that is still much faster than our
+ * pure-Java engine.
+ *
+ * @author agent
+ */
+public class JcaHashEngine implements HashEngine {
+  // +----------------+----------------------------------------------
+  // | Static methods |
+  // +----------------+
+
+  /**
+   * Create a new message digest for computing hashes.
+   *
+   * @return a new message digest.
+   */
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("sha-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Cannot load hash algorithm");
+    } // try/catch
+  } // newDigest()
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Get the name of the engine.
+   *
+   * @return the name of the engine.
+   */
+  public String name() {
+    return "sha-256 (" + newDigest().getProvider().getName() + ")";
+  } // name()
+
+  /**
+   * Create a hasher for a particular prefix.
+   *
+   * @param prefix
+   *   The bytes that precede the nonce.
+   *
+   * @return a hasher for that prefix.
+   */
+  public NonceHasher hasher(byte[] prefix) {
+    return new JcaHasher(prefix);
+  } // hasher(byte[])
+} // class JcaHashEngine
@@ -0,0 +1,73 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Hashers for the JCA engine (see JcaHashEngine).
+ *
+ * @author agent
+ */
+class JcaHasher implements NonceHasher {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The prefix.
+   */
+  byte[] prefix;
+
+  /**
+   * The digest, which we reuse for every nonce.
+   */
+  MessageDigest digest;
+
+  /**
+   * Space for the bytes of the nonce.
+   */
+  byte[] nonceBytes;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a hasher for a particular prefix.
+   *
+   * @param thePrefix
+   *   The bytes that precede the nonce.
+   */
+  JcaHasher(byte[] thePrefix) {
+    this.prefix = thePrefix;
+    this.digest = JcaHashEngine.newDigest();
+    this.nonceBytes = new byte[Long.BYTES];
+  } // JcaHasher(byte[])
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Compute the hash of the prefix followed by a nonce.
+   *
+   * @param nonce
+   *   The nonce.
+   * @param out
+   *   Where to put the 32 bytes of the hash.
+   */
+  public void hash(long nonce, byte[] out) {
+    for (int i = 0; i < Long.BYTES; i++) {
+      this.nonceBytes[i] = (byte) (nonce >>> (56 - 8 * i));
+    } // for
+    this.digest.update(this.prefix);
+    this.digest.update(this.nonceBytes);
+    try {
+      // Finishing the digest also resets it for the next nonce.
+      this.digest.digest(out, 0, DIGEST);
+    } catch (DigestException e) {
+      this.digest.reset();
+      throw new RuntimeException("Cannot compute hash");
+    } // try/catch
+  } // hash(long, byte[])
+} // class JcaHasher
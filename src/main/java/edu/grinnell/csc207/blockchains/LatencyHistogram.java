@@ -0,0 +1,160 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, with one bucket per power of two
+ * nanoseconds. Recording a latency only adds to a few striped counters,
+ * so many threads can record at once without contending.
+ *
+ * @author agent
+ */
+public class LatencyHistogram {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The number of buckets. Bucket i holds latencies of less than 2^i
+   * nanoseconds (and at least 2^(i-1)).
+   */
+  static final int BUCKETS = 64;
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The counts in each bucket.
+   */
+  LongAdder[] buckets;
+
+  /**
+   * The sum of all the latencies.
+   */
+  LongAdder total;
+
+  /**
+   * The largest latency.
+   */
+  LongAccumulator max;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create an empty histogram.
+   */
+  public LatencyHistogram() {
+    this.buckets = new LongAdder[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      this.buckets[i] = new LongAdder();
+    } // for
+    this.total = new LongAdder();
+    this.max = new LongAccumulator(Math::max, 0);
+  } // LatencyHistogram()
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Record one latency.
+   *
+   * @param nanos
+   *   The latency in nanoseconds.
+   */
+  public void record(long nanos) {
+    long n = Math.max(0, nanos);
+    this.buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(n))]
+        .increment();
+    this.total.add(n);
+    this.max.accumulate(n);
+  } // record(long)
+
+  /**
+   * Determine how many latencies we've recorded.
+   *
+   * @return the number of latencies.
+   */
+  public long count() {
+    long count = 0;
+    for (LongAdder bucket : this.buckets) {
+      count += bucket.sum();
+    } // for
+    return count;
+  } // count()
+
+  /**
+   * Determine the sum of the latencies.
+   *
+   * @return the total in nanoseconds.
+   */
+  public long totalNanos() {
+    return this.total.sum();
+  } // totalNanos()
+
+  /**
+   * Determine the mean latency.
+   *
+   * @return the mean in nanoseconds, or 0 if there are none.
+   */
+  public double meanNanos() {
+    long count = this.count();
+    return (count == 0) ? 0 : (double) this.totalNanos() / count;
+  } // meanNanos()
+
+  /**
+   * Determine the largest latency.
+   *
+   * @return the largest latency in nanoseconds.
+   */
+  public long maxNanos() {
+    return this.max.get();
+  } // maxNanos()
+
+  /**
+   * Estimate a percentile of the latencies. Since we only keep buckets,
+   * the result is the upper bound of the bucket that holds the
+   * percentile, so it may be up to twice the true value.
+   *
+   * @param p
+   *   The percentile, between 0 and 100.
+   *
+   * @return the estimated percentile in nanoseconds, or 0 if there are
+   *   no latencies.
+   */
+  public long percentileNanos(double p) {
+    long[] counts = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = this.buckets[i].sum();
+      count += counts[i];
+    } // for
+    long rank = (long) Math.ceil(count * p / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if ((counts[i] > 0) && (seen >= rank)) {
+        return Math.min(this.maxNanos(), (i == 0) ? 0 : (1L << i) - 1);
+      } // if
+    } // for
+    return 0;
+  } // percentileNanos(double)
+
+  /**
+   * Summarize the histogram.
+   *
+   * @return a string giving the count, mean, median, 99th percentile,
+   *   and maximum (in milliseconds).
+   */
+  public String toString() {
+    return String.format(
+        "count %d, mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+        this.count(), this.meanNanos() / 1e6,
+        this.percentileNanos(50) / 1e6, this.percentileNanos(99) / 1e6,
+        this.maxNanos() / 1e6);
+  } // toString()
+} // class LatencyHistogram
@@ -0,0 +1,136 @@
+package edu.grinnell.csc207.blockchains;
+
+/**
+ * A validator that accepts hashes that start with a certain number of
+ * zero bits. It checks eight bytes at a time, and most hashes fail on
+ * the first word.
+ *
+ * @author agent
+ */
+public class LeadingZeroBitsValidator implements HashValidator {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The number of leading zero bits required.
+   */
+  int bits;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a validator that requires a certain number of leading zero
+   * bits.
+   *
+   * @param zeroBits
+   *   The number of leading zero bits, between 0 and 256.
+   *
+   * @throws IllegalArgumentException
+   *   If zeroBits is out of range.
+   */
+  public LeadingZeroBitsValidator(int zeroBits) {
+    if ((zeroBits < 0) || (zeroBits > 8 * NonceHasher.DIGEST)) {
+      throw new IllegalArgumentException("Invalid number of bits: "
+          + zeroBits);
+    } // if
+    this.bits = zeroBits;
+  } // LeadingZeroBitsValidator(int)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Get the number of leading zero bits required.
+   *
+   * @return the number of bits.
+   */
+  public int bits() {
+    return this.bits;
+  } // bits()
+
+  /**
+   * Determine if a hash starts with enough zero bits.
+   *
+   * @param hash
+   *   The hash we're checking.
+   *
+   * @return true if the hash is valid and false otherwise.
+   */
+  public boolean isValid(Hash hash) {
+    if (!hash.isCompact()) {
+      return this.isValid(hash.getBytes());
+    } // if
+    int i = 0;
+    int remaining = this.bits;
+    while (remaining >= Long.SIZE) {
+      if (hash.word(i++) != 0) {
+        return false;
+      } // if
+      remaining -= Long.SIZE;
+    } // while
+    return (remaining == 0)
+        || ((hash.word(i) >>> (Long.SIZE - remaining)) == 0);
+  } // isValid(Hash)
+
+  /**
+   * Determine if the bytes of a hash start with enough zero bits.
+   *
+   * @param digest
+   *   The bytes of the hash we're checking.
+   *
+   * @return true if the hash is valid and false otherwise.
+   */
+  public boolean isValid(byte[] digest) {
+    if (8L * digest.length < this.bits) {
+      return false;
+    } // if
+    int i = 0;
+    int remaining = this.bits;
+    while (remaining >= Long.SIZE) {
+      if ((long) Hash.LONGS.get(digest, i) != 0) {
+        return false;
+      } // if
+      i += Long.BYTES;
+      remaining -= Long.SIZE;
+    } // while
+    if (remaining == 0) {
+      return true;
+    } else if (i + Long.BYTES <= digest.length) {
+      long word = (long) Hash.LONGS.get(digest, i);
+      return (word >>> (Long.SIZE - remaining)) == 0;
+    } // if/else
+
+    // We're near the end of a short hash, so go byte by byte.
+    while (remaining >= Byte.SIZE) {
+      if (digest[i++] != 0) {
+        return false;
+      } // if
+      remaining -= Byte.SIZE;
+    } // while
+    return (remaining == 0)
+        || (((digest[i] & 0xff) >>> (Byte.SIZE - remaining)) == 0);
+  } // isValid(byte[])
+
+  /**
+   * Determine how many hashes we expect to try before finding a valid
+   * one.
+   *
+   * @return 2 to the number of bits.
+   */
+  public double expectedAttempts() {
+    return Math.pow(2, this.bits);
+  } // expectedAttempts()
+
+  /**
+   * Get a string representation of the validator.
+   *
+   * @return a string representation of the validator.
+   */
+  public String toString() {
+    return String.format("[%d leading zero bits]", this.bits);
+  } // toString()
+} // class LeadingZeroBitsValidator
@@ -0,0 +1,351 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accounts and their balances. Each user name gets a small integer id
+ * the first time we see it, and everything else about the account lives
+ * in primitive arrays indexed by that id, so updating a balance neither
+ * boxes a number nor hashes a name again. Ids are never reused, even if
+ * every transaction that mentions an account goes away.
+ *
+ * The ledger also lists the users, that is, the accounts that have
+ * received something, in the order they first did. Transactions are
+ * only ever undone in the reverse of the order they were recorded, so
+ * the last user in the list is always the first to go.
+ *
+ * A snapshot of a ledger shares its arrays until the ledger next
+ * changes, at which point the ledger copies them, so taking a snapshot
+ * is cheap and a snapshot never changes. Snapshots share the map from
+ * names to ids, too, which is safe because ids are never reused and
+ * a snapshot ignores the ids that come after its size.
+ *
+ * Only one thread may change a ledger. The map from names to ids is
+ * safe to read while it changes; the arrays are not, so readers that
+ * race with the writer must check that it did not interfere (as the
+ * chain does with its lock).
+ *
+ * @author agent
+ */
+class Ledger {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The id of each name.
+   */
+  ConcurrentHashMap<String, Integer> ids;
+
+  /**
+   * The name of each id.
+   */
+  String[] names;
+
+  /**
+   * The balance of each account.
+   */
+  long[] balances;
+
+  /**
+   * The number of transactions that give something to each account.
+   */
+  int[] receipts;
+
+  /**
+   * The number of accounts.
+   */
+  int size;
+
+  /**
+   * The ids of the users, in the order they first received something.
+   */
+  int[] users;
+
+  /**
+   * The number of users.
+   */
+  int userCount;
+
+  /**
+   * Whether some snapshot shares the arrays.
+   */
+  boolean shared;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create an empty ledger.
+   */
+  Ledger() {
+    this.ids = new ConcurrentHashMap<String, Integer>();
+    this.names = new String[16];
+    this.balances = new long[16];
+    this.receipts = new int[16];
+    this.size = 0;
+    this.users = new int[16];
+    this.userCount = 0;
+    this.shared = false;
+  } // Ledger()
+
+  /**
+   * Create a snapshot of another ledger.
+   *
+   * @param other
+   *   The ledger.
+   */
+  Ledger(Ledger other) {
+    this.ids = other.ids;
+    this.names = other.names;
+    this.balances = other.balances;
+    this.receipts = other.receipts;
+    this.size = other.size;
+    this.users = other.users;
+    this.userCount = other.userCount;
+    this.shared = true;
+  } // Ledger(Ledger)
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Get our own copy of the arrays that change, if a snapshot shares
+   * them.
+   */
+  void unshare() {
+    if (this.shared) {
+      this.balances = this.balances.clone();
+      this.receipts = this.receipts.clone();
+      this.users = this.users.clone();
+      this.shared = false;
+    } // if
+  } // unshare()
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Take a snapshot of the ledger as it is now. The ledger must not
+   * change while we do so.
+   *
+   * @return a ledger that will not change.
+   */
+  Ledger snapshot() {
+    this.shared = true;
+    return new Ledger(this);
+  } // snapshot()
+
+  /**
+   * Get the id for a name, adding an account if there is none.
+   *
+   * @param name
+   *   The name.
+   *
+   * @return the id.
+   */
+  int intern(String name) {
+    Integer id = this.ids.get(name);
+    if (id != null) {
+      return id;
+    } // if
+    if (this.size == this.names.length) {
+      int capacity = 2 * this.size;
+      this.names = Arrays.copyOf(this.names, capacity);
+      this.balances = Arrays.copyOf(this.balances, capacity);
+      this.receipts = Arrays.copyOf(this.receipts, capacity);
+    } // if
+    this.names[this.size] = name;
+    this.ids.put(name, this.size);
+    return this.size++;
+  } // intern(String)
+
+  /**
+   * Find the id for a name.
+   *
+   * @param name
+   *   The name.
+   *
+   * @return the id, or -1 if there is no account for that name.
+   */
+  int find(String name) {
+    Integer id = this.ids.get(name);
+    return ((id == null) || (id >= this.size)) ? -1 : id;
+  } // find(String)
+
+  /**
+   * Determine how many accounts there are.
+   *
+   * @return the number of accounts.
+   */
+  int size() {
+    return this.size;
+  } // size()
+
+  /**
+   * Get the name of an account.
+   *
+   * @param id
+   *   The id of the account.
+   *
+   * @return the name.
+   */
+  String name(int id) {
+    return this.names[id];
+  } // name(int)
+
+  /**
+   * Get the balance of an account.
+   *
+   * @param id
+   *   The id of the account.
+   *
+   * @return the balance.
+   */
+  long balance(int id) {
+    return this.balances[id];
+  } // balance(int)
+
+  /**
+   * Change the balance of an account.
+   *
+   * @param id
+   *   The id of the account.
+   * @param amount
+   *   How much to add (or, if negative, take away).
+   */
+  void adjust(int id, long amount) {
+    this.unshare();
+    this.balances[id] += amount;
+  } // adjust(int, long)
+
+  /**
+   * Determine if an account has received anything, which is what makes
+   * someone a user of the chain.
+   *
+   * @param id
+   *   The id of the account.
+   *
+   * @return true if some transaction gives something to the account.
+   */
+  boolean isUser(int id) {
+    return this.receipts[id] > 0;
+  } // isUser(int)
+
+  /**
+   * Record that a transaction gives something to an account, or undo
+   * that record. Receipts must be undone in the reverse of the order in
+   * which they were recorded.
+   *
+   * @param id
+   *   The id of the account.
+   * @param direction
+   *   1 to record a receipt or -1 to undo one.
+   */
+  void receive(int id, int direction) {
+    this.unshare();
+    this.receipts[id] += direction;
+    if ((direction > 0) && (this.receipts[id] == 1)) {
+      if (this.userCount == this.users.length) {
+        this.users = Arrays.copyOf(this.users, 2 * this.userCount);
+      } // if
+      this.users[this.userCount++] = id;
+    } else if ((direction < 0) && (this.receipts[id] == 0)) {
+      this.userCount--;
+    } // if/else
+  } // receive(int, int)
+
+  /**
+   * Determine how many users there are.
+   *
+   * @return the number of users.
+   */
+  int userCount() {
+    return this.userCount;
+  } // userCount()
+
+  /**
+   * Get one of the users.
+   *
+   * @param i
+   *   The position of the user in the order they first received
+   *   something, between 0 and userCount() - 1.
+   *
+   * @return the id of the user.
+   */
+  int user(int i) {
+    return this.users[i];
+  } // user(int)
+
+  /**
+   * Write the whole ledger, so that read() can rebuild it exactly.
+   *
+   * @param out
+   *   Where to write it.
+   *
+   * @throws IOException
+   *   If we cannot write.
+   */
+  void write(DataOutput out) throws IOException {
+    out.writeInt(this.size);
+    for (int id = 0; id < this.size; id++) {
+      out.writeUTF(this.names[id]);
+      out.writeLong(this.balances[id]);
+      out.writeInt(this.receipts[id]);
+    } // for
+    out.writeInt(this.userCount);
+    for (int i = 0; i < this.userCount; i++) {
+      out.writeInt(this.users[i]);
+    } // for
+  } // write(DataOutput)
+
+  /**
+   * Read a ledger that write() wrote. The accounts get the same ids they
+   * had before.
+   *
+   * @param in
+   *   Where to read it.
+   *
+   * @return the ledger.
+   *
+   * @throws IOException
+   *   If we cannot read or the data make no sense.
+   */
+  static Ledger read(DataInput in) throws IOException {
+    Ledger ledger = new Ledger();
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Invalid number of accounts: " + count);
+    } // if
+    for (int i = 0; i < count; i++) {
+      int id = ledger.intern(in.readUTF());
+      if (id != i) {
+        throw new IOException("Duplicate account in ledger");
+      } // if
+      ledger.balances[id] = in.readLong();
+      ledger.receipts[id] = in.readInt();
+    } // for
+    int users = in.readInt();
+    if ((users < 0) || (users > count)) {
+      throw new IOException("Invalid number of users: " + users);
+    } // if
+    ledger.users = new int[Math.max(16, users)];
+    for (int i = 0; i < users; i++) {
+      int id = in.readInt();
+      if ((id < 0) || (id >= count)) {
+        throw new IOException("Invalid user: " + id);
+      } // if
+      ledger.users[i] = id;
+    } // for
+    ledger.userCount = users;
+    return ledger;
+  } // read(DataInput)
+} // class Ledger
@@ -0,0 +1,282 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Saved ledgers for a block log, so that a chain loaded from the log
+ * need only replay the blocks after the last save. A mapped log keeps
+ * its index from run to run, so a chain loaded from one reads nothing
+ * below the checkpoint but the block that it names.
+ *
+ * Each checkpoint is a file next to the log, named for the log and the
+ * height of the chain when we saved it. It holds that height, the hash
+ * of the last block below it, the whole ledger, and a checksum. We write
+ * each checkpoint to a temporary file, force it to the disk, move it
+ * into place, and then force the directory, so a crash never leaves a
+ * half-written one. A checkpoint is only good
+ * while the block below its height is still the one it names, so we
+ * keep a few of the most recent checkpoints, and, when blocks are
+ * removed, fall back to the highest one that is still good.
+ *
+ * Saving is not free: it writes and forces the whole ledger, so it takes
+ * time proportional to the number of accounts, and the chain saves on
+ * the thread that appends, while other writers wait. (Readers do not.)
+ * The chain therefore saves only every so many blocks (see
+ * BlockChain.checkpointInterval).
+ *
+ * @author agent
+ */
+class LedgerCheckpoints {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The number of checkpoints we keep.
+   */
+  static final int KEEP = 3;
+
+  /**
+   * The first bytes of every checkpoint ("LEDG" followed by a version).
+   */
+  static final long MAGIC = 0x4c45444700000001L;
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The log file.
+   */
+  Path log;
+
+  /**
+   * The start of the name of each checkpoint file.
+   */
+  String prefix;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Get the checkpoints for a log.
+   *
+   * @param logFile
+   *   The file that holds the log.
+   */
+  LedgerCheckpoints(Path logFile) {
+    this.log = logFile;
+    this.prefix = logFile.getFileName() + ".ledger.";
+  } // LedgerCheckpoints(Path)
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Get the file for the checkpoint at some height.
+   *
+   * @param height
+   *   The height.
+   *
+   * @return the file.
+   */
+  Path file(int height) {
+    return this.log.resolveSibling(this.prefix + height);
+  } // file(int)
+
+  /**
+   * Compute the checksum of some bytes.
+   *
+   * @param bytes
+   *   The bytes.
+   * @param length
+   *   How many of them to include.
+   *
+   * @return the checksum.
+   */
+  static int checksum(byte[] bytes, int length) {
+    CRC32C crc = new CRC32C();
+    crc.update(bytes, 0, length);
+    return (int) crc.getValue();
+  } // checksum(byte[], int)
+
+  /**
+   * Force the directory that holds the checkpoints to the disk, so
+   * that a rename in it survives a crash.
+   *
+   * @throws IOException
+   *   If we cannot.
+   */
+  void syncDirectory() throws IOException {
+    Path dir = this.log.toAbsolutePath().getParent();
+    try (FileChannel channel = FileChannel.open(dir,
+        StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (AccessDeniedException e) {
+      // Some systems (notably Windows) cannot open a directory, and make
+      // their renames durable on their own.
+    } // try/catch
+  } // syncDirectory()
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Find the heights of the checkpoints.
+   *
+   * @return the heights, from highest to lowest.
+   *
+   * @throws UncheckedIOException
+   *   If we cannot list the directory.
+   */
+  int[] heights() {
+    Path dir = this.log.toAbsolutePath().getParent();
+    try (Stream<Path> files = Files.list(dir)) {
+      return files
+          .map((file) -> file.getFileName().toString())
+          .filter((name) -> name.startsWith(this.prefix)
+              && name.substring(this.prefix.length()).matches("[0-9]{1,9}"))
+          .map((name) -> Integer.valueOf(name.substring(this.prefix.length())))
+          .sorted(Comparator.reverseOrder())
+          .mapToInt(Integer::intValue)
+          .toArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+  } // heights()
+
+  /**
+   * Save a checkpoint, discarding all but the most recent few.
+   *
+   * @param height
+   *   The height of the chain.
+   * @param last
+   *   The hash of the last block in the chain (the one at height - 1).
+   * @param ledger
+   *   The ledger after that block.
+   *
+   * @throws UncheckedIOException
+   *   If we cannot write the file.
+   */
+  void save(int height, Hash last, Ledger ledger) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(MAGIC);
+      out.writeInt(height);
+      byte[] hash = last.getBytes();
+      out.writeInt(hash.length);
+      out.write(hash);
+      ledger.write(out);
+      byte[] contents = bytes.toByteArray();
+      ByteBuffer[] buffers = {
+        ByteBuffer.wrap(contents),
+        ByteBuffer.allocate(Integer.BYTES)
+            .putInt(0, checksum(contents, contents.length))
+      };
+      Path file = this.file(height);
+      Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+      try (FileChannel channel = FileChannel.open(temp,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.WRITE)) {
+        while (buffers[1].hasRemaining()) {
+          channel.write(buffers);
+        } // while
+        channel.force(true);
+      } // try
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      this.syncDirectory();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+    int[] heights = this.heights();
+    for (int i = KEEP; i < heights.length; i++) {
+      this.discard(heights[i]);
+    } // for
+  } // save(int, Hash, Ledger)
+
+  /**
+   * Load the checkpoint at some height.
+   *
+   * @param height
+   *   The height.
+   * @param last
+   *   The hash of the block at height - 1.
+   *
+   * @return the ledger, or null if there is no good checkpoint at that
+   *   height for that block.
+   *
+   * @throws UncheckedIOException
+   *   If the file exists but cannot be read.
+   */
+  Ledger load(int height, Hash last) {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(this.file(height));
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+    int length = bytes.length - Integer.BYTES;
+    if ((length < 0) || (checksum(bytes, length)
+        != ByteBuffer.wrap(bytes).getInt(length))) {
+      return null;
+    } // if
+    try {
+      DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+      if ((in.readLong() != MAGIC) || (in.readInt() != height)) {
+        return null;
+      } // if
+      byte[] hash = new byte[in.readInt()];
+      in.readFully(hash);
+      if (!Arrays.equals(hash, last.getBytes())) {
+        return null;
+      } // if
+      return Ledger.read(in);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    } // try/catch
+  } // load(int, Hash)
+
+  /**
+   * Remove the checkpoint at some height, if there is one.
+   *
+   * @param height
+   *   The height.
+   *
+   * @throws UncheckedIOException
+   *   If the file cannot be removed.
+   */
+  void discard(int height) {
+    try {
+      Files.deleteIfExists(this.file(height));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+  } // discard(int)
+} // class LedgerCheckpoints
@@ -0,0 +1,170 @@
+package edu.grinnell.csc207.blockchains;
+
+/**
+ * The blocks of a chain, kept in a log that reads them only as they are
+ * needed (see BlockLog.mapped), so that the chain can grow beyond
+ * memory. The chain writes each block to the log before it adds the
+ * block to the store, and takes a block out of the log only after it
+ * has a store without it, so the store itself never writes the log.
+ *
+ * Like any store, a store never changes once created. Since the log
+ * keeps only the latest blocks, though, an old store can only give the
+ * blocks that are still in the log. Once the chain removes one of its
+ * blocks, asking the old store for that block fails.
+ *
+ * @author agent
+ */
+class MappedBlockStore implements BlockStore {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The log that holds the blocks.
+   */
+  final BlockLog log;
+
+  /**
+   * The number of blocks in the store.
+   */
+  final int size;
+
+  /**
+   * The number of blocks removed from the log before we made the
+   * store.
+   */
+  final int removals;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a store with all of the blocks in a log.
+   *
+   * @param theLog
+   *   The log, which must keep an index file.
+   */
+  MappedBlockStore(BlockLog theLog) {
+    this(theLog, theLog.size(), theLog.removals());
+  } // MappedBlockStore(BlockLog)
+
+  /**
+   * Create a store.
+   *
+   * @param theLog
+   *   The log.
+   * @param theSize
+   *   The number of blocks in the log that belong to the store.
+   * @param theRemovals
+   *   The number of blocks removed from the log so far.
+   */
+  MappedBlockStore(BlockLog theLog, int theSize, int theRemovals) {
+    this.log = theLog;
+    this.size = theSize;
+    this.removals = theRemovals;
+  } // MappedBlockStore(BlockLog, int, int)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Determine how many blocks are stored.
+   *
+   * @return the number of blocks.
+   */
+  public int size() {
+    return this.size;
+  } // size()
+
+  /**
+   * Get the block at a particular height.
+   *
+   * @param height
+   *   The height of the block, between 0 and size() - 1.
+   *
+   * @return the block.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If there is no block at that height.
+   * @throws IllegalStateException
+   *   If the block has since been removed from the log.
+   */
+  public Block get(int height) {
+    if ((height < 0) || (height >= this.size)) {
+      throw new IndexOutOfBoundsException("No block at height " + height
+          + " (size " + this.size + ")");
+    } // if
+    return this.log.get(height, this.removals);
+  } // get(int)
+
+  /**
+   * Find the height of the block with a particular hash.
+   *
+   * @param hash
+   *   The hash of the block.
+   *
+   * @return the height of the block, or -1 if the store has no block
+   *   with that hash.
+   *
+   * @throws IllegalStateException
+   *   If some of the blocks have since been removed from the log.
+   */
+  int heightOf(Hash hash) {
+    for (int height : this.log.heights(hash, this.size, this.removals)) {
+      if (this.get(height).getHash().equals(hash)) {
+        return height;
+      } // if
+    } // for
+    return -1;
+  } // heightOf(Hash)
+
+  /**
+   * Find the blocks whose transactions involve a user.
+   *
+   * @param user
+   *   The user.
+   *
+   * @return the heights of the blocks, in increasing order.
+   *
+   * @throws IllegalStateException
+   *   If some of the blocks have since been removed from the log.
+   */
+  int[] history(String user) {
+    return this.log.history(user, this.size, this.removals);
+  } // history(String)
+
+  /**
+   * Add a block that is already at the end of the log. The log may
+   * have removed blocks since we made this store, so the new store
+   * counts those removals too.
+   *
+   * @param block
+   *   The block to add.
+   *
+   * @return a store with the blocks of this store followed by block.
+   */
+  public BlockStore add(Block block) {
+    return new MappedBlockStore(this.log, this.size + 1,
+        this.log.removals());
+  } // add(Block)
+
+  /**
+   * Drop the last block, which the chain then removes from the log.
+   * The blocks that remain were all in the log before that removal,
+   * so the new store can still read them afterwards.
+   *
+   * @return a store with all but the last block of this store.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If the store is empty.
+   */
+  public BlockStore removeLast() {
+    if (this.size == 0) {
+      throw new IndexOutOfBoundsException("No blocks to remove");
+    } // if
+    return new MappedBlockStore(this.log, this.size - 1,
+        this.log.removals());
+  } // removeLast()
+} // class MappedBlockStore
@@ -0,0 +1,445 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.nio.file.Path;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A search for nonces that splits the space of possible nonces among
+ * several threads. Each thread scans its own contiguous range, and all
+ * of them stop as soon as any one of them finds a valid hash.
+ *
+ * Each thread gets its own hasher from the engine, which digests the
+ * part of the block that precedes the nonce only once. The loop over
+ * nonces allocates nothing itself: the hash goes into a reused array,
+ * the validator checks those raw bytes, and we only build a Hash for
+ * the winning nonce. Hashers that work on several lanes at once get
+ * consecutive nonces for those lanes.
+ *
+ * A resumable miner instead searches the nonces in order, in chunks.
+ * Thread w takes chunks w, w + threads, w + 2 * threads, and so on, so
+ * the threads never overlap, and every chunk before the smallest one
+ * that some thread has yet to finish has been searched completely. The
+ * miner saves that chunk to a checkpoint file every so often, and a
+ * later miner for the same block starts there.
+ *
+ * A miner mines one block. Another thread may cancel it or watch how
+ * many nonces it has tried. The helper threads come from a pool that all
+ * miners share, so mining one block after another does not start new
+ * threads each time.
+ *
+ * @author agent
+ */
+class Miner {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * How many attempts each thread makes between reports of its
+   * progress.
+   */
+  static final int REPORT = 4096;
+
+  /**
+   * The number of nonces in each chunk of a resumable search.
+   */
+  static final long CHUNK = 1L << 16;
+
+  /**
+   * How often a resumable search saves its checkpoint.
+   */
+  static final long SAVE_NANOS = 1_000_000_000L;
+
+  // +---------------+-----------------------------------------------
+  // | Static fields |
+  // +---------------+
+
+  /**
+   * The number of helper threads started so far, for their names.
+   */
+  static final AtomicInteger started = new AtomicInteger(0);
+
+  /**
+   * The helper threads, which wait a while for more work before they
+   * stop.
+   */
+  static final ExecutorService helpers = Executors.newCachedThreadPool(
+      (task) -> {
+        Thread thread =
+            new Thread(task, "miner-" + started.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The validator used to check hashes.
+   */
+  HashValidator validator;
+
+  /**
+   * The number of threads that search.
+   */
+  int threads;
+
+  /**
+   * The engine used to compute hashes.
+   */
+  HashEngine engine;
+
+  /**
+   * Where we record what we've done (or null, if nowhere).
+   */
+  ChainMetrics metrics;
+
+  /**
+   * Set once some thread has found a valid nonce (or failed).
+   */
+  AtomicBoolean done;
+
+  /**
+   * The first problem encountered by any thread.
+   */
+  AtomicReference<RuntimeException> problem;
+
+  /**
+   * Set if someone cancels the mining.
+   */
+  volatile boolean cancelled;
+
+  /**
+   * The number of nonces tried so far, updated every so often.
+   */
+  AtomicLong attempts;
+
+  /**
+   * Where a resumable search keeps its checkpoint (or null, if the
+   * search is random).
+   */
+  Path checkpointFile;
+
+  /**
+   * The number of chunks each thread of a resumable search has
+   * finished.
+   */
+  AtomicLongArray finished;
+
+  /**
+   * The nonce that succeeded.
+   */
+  long winningNonce;
+
+  /**
+   * The hash that corresponds to that nonce.
+   */
+  Hash winningHash;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a new miner.
+   *
+   * @param check
+   *   The validator used to check hashes.
+   * @param numThreads
+   *   The number of threads to use (at least one).
+   * @param hashEngine
+   *   The engine used to compute hashes.
+   * @param chainMetrics
+   *   Where to record what we've done (or null, if nowhere).
+   */
+  Miner(HashValidator check, int numThreads, HashEngine hashEngine,
+      ChainMetrics chainMetrics) {
+    this.validator = check;
+    this.threads = Math.max(1, numThreads);
+    this.engine = hashEngine;
+    this.metrics = chainMetrics;
+    this.done = new AtomicBoolean(false);
+    this.problem = new AtomicReference<RuntimeException>(null);
+    this.attempts = new AtomicLong(0);
+  } // Miner(HashValidator, int, HashEngine, ChainMetrics)
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Report progress.
+   *
+   * @param tried
+   *   The number of nonces tried since the last report.
+   * @param rejected
+   *   The number of those that the validator rejected.
+   */
+  void report(long tried, long rejected) {
+    this.attempts.addAndGet(tried);
+    if (this.metrics != null) {
+      this.metrics.hashes.add(tried);
+      this.metrics.rejections.add(rejected);
+    } // if
+  } // report(long, long)
+
+  /**
+   * Scan a range of nonces for one that gives a valid hash, stopping
+   * early if another thread succeeds.
+   *
+   * @param hasher
+   *   Hashes the block with different nonces.
+   * @param digests
+   *   Where the hasher puts its digests, one per lane.
+   * @param start
+   *   The first nonce to try.
+   * @param count
+   *   The number of nonces to try, treated as unsigned.
+   */
+  void scan(NonceHasher hasher, byte[][] digests, long start, long count) {
+    long unreported = 0;
+    long rejected = 0;
+    int lanes = digests.length;
+    try {
+      for (long i = 0;
+          (Long.compareUnsigned(i, count) < 0) && !this.done.get();
+          i += lanes) {
+        if (lanes == 1) {
+          hasher.hash(start + i, digests[0]);
+        } else {
+          hasher.hashLanes(start + i, digests);
+        } // if/else
+        for (int lane = 0; lane < lanes; lane++) {
+          if (!this.validator.isValid(digests[lane])) {
+            rejected++;
+          } else if ((Long.compareUnsigned(i + lane, count) < 0)
+              && this.done.compareAndSet(false, true)) {
+            this.winningNonce = start + i + lane;
+            this.winningHash = new Hash(digests[lane]);
+          } // if
+        } // for
+        unreported += lanes;
+        if (unreported >= REPORT) {
+          this.report(unreported, rejected);
+          unreported = 0;
+          rejected = 0;
+        } // if
+      } // for
+    } finally {
+      this.report(unreported, rejected);
+    } // try/finally
+  } // scan(NonceHasher, byte[][], long, long)
+
+  /**
+   * Scan a range of nonces for one that gives a valid hash, stopping
+   * early if another thread succeeds.
+   *
+   * @param block
+   *   The block we are mining.
+   * @param start
+   *   The first nonce to try.
+   * @param count
+   *   The number of nonces to try, treated as unsigned.
+   */
+  void search(Block block, long start, long count) {
+    try {
+      NonceHasher hasher = this.engine.hasher(block.prefixBytes());
+      this.scan(hasher, new byte[hasher.lanes()][NonceHasher.DIGEST],
+          start, count);
+    } catch (RuntimeException e) {
+      this.problem.compareAndSet(null, e);
+      this.done.set(true);
+    } // try/catch
+  } // search(Block, long, long)
+
+  /**
+   * Search every threads-th chunk of nonces, in order, for one that
+   * gives a valid hash, stopping early if another thread succeeds.
+   * The first thread also saves the checkpoint every so often.
+   *
+   * @param block
+   *   The block we are mining.
+   * @param checkpoint
+   *   The checkpoint.
+   * @param first
+   *   The chunk where the whole search starts.
+   * @param w
+   *   Which thread this is.
+   */
+  void stride(Block block, NonceCheckpoint checkpoint, long first, int w) {
+    try {
+      NonceHasher hasher = this.engine.hasher(block.prefixBytes());
+      byte[][] digests = new byte[hasher.lanes()][NonceHasher.DIGEST];
+      long lastSave = System.nanoTime();
+      for (long chunk = first + w; !this.done.get(); chunk += this.threads) {
+        this.scan(hasher, digests, chunk * CHUNK, CHUNK);
+        if (!this.done.get()) {
+          this.finished.incrementAndGet(w);
+        } // if
+        if ((w == 0) && (System.nanoTime() - lastSave >= SAVE_NANOS)) {
+          checkpoint.save(this.resumeChunk(first));
+          lastSave = System.nanoTime();
+        } // if
+      } // for
+    } catch (RuntimeException e) {
+      this.problem.compareAndSet(null, e);
+      this.done.set(true);
+    } // try/catch
+  } // stride(Block, NonceCheckpoint, long, int)
+
+  /**
+   * Determine the first chunk of a resumable search that has not been
+   * searched completely.
+   *
+   * @param first
+   *   The chunk where the whole search started.
+   *
+   * @return the chunk where a new search should start.
+   */
+  long resumeChunk(long first) {
+    long least = Long.MAX_VALUE;
+    for (int w = 0; w < this.threads; w++) {
+      least = Math.min(least, this.finished.get(w));
+    } // for
+    return first + least * this.threads;
+  } // resumeChunk(long)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Stop mining as soon as possible. The call to mine() then throws
+   * a CancellationException.
+   */
+  void cancel() {
+    this.cancelled = true;
+    this.done.set(true);
+  } // cancel()
+
+  /**
+   * Make the search resumable, searching nonces in order and recording
+   * its progress in a checkpoint file. If the file holds a checkpoint
+   * for the same block, the search continues from there. The file is
+   * removed once the search succeeds.
+   *
+   * @param file
+   *   The checkpoint file, which need not exist yet.
+   *
+   * @return this miner.
+   */
+  Miner resumable(Path file) {
+    this.checkpointFile = file;
+    return this;
+  } // resumable(Path)
+
+  /**
+   * Determine roughly how many nonces the miner has tried.
+   *
+   * @return the number of nonces tried.
+   */
+  long attempts() {
+    return this.attempts.get();
+  } // attempts()
+
+  /**
+   * Mine for a nonce for the block, setting its nonce and hash.
+   *
+   * @param block
+   *   The block to mine. Its number, transaction, and previous hash
+   *   must already be set.
+   *
+   * @throws CancellationException
+   *   If someone cancels the mining.
+   * @throws RuntimeException
+   *   If the mining is interrupted or the validator fails.
+   */
+  void mine(Block block) {
+    long startTime = System.nanoTime();
+    try {
+      // Each thread runs one task, and this thread runs the first.
+      Runnable[] tasks = new Runnable[this.threads];
+      NonceCheckpoint checkpoint = null;
+      long resumeFrom = 0;
+      if (this.checkpointFile == null) {
+        // Split the nonces into one range per thread, starting at a
+        // random place so that repeated mining does not always give the
+        // same nonce.
+        long base = Block.rand.nextLong();
+        long span = Long.divideUnsigned(-1L, this.threads);
+        for (int w = 0; w < this.threads; w++) {
+          long start = base + w * span;
+          tasks[w] = () -> this.search(block, start, span);
+        } // for
+      } else {
+        // Deal out the chunks after the checkpoint.
+        NonceCheckpoint saver = new NonceCheckpoint(this.checkpointFile,
+            block.prefixBytes());
+        long first = saver.load();
+        this.finished = new AtomicLongArray(this.threads);
+        for (int w = 0; w < this.threads; w++) {
+          int which = w;
+          tasks[w] = () -> this.stride(block, saver, first, which);
+        } // for
+        checkpoint = saver;
+        resumeFrom = first;
+      } // if/else
+      Future<?>[] workers = new Future<?>[this.threads - 1];
+      for (int w = 0; w < workers.length; w++) {
+        workers[w] = helpers.submit(tasks[w + 1]);
+      } // for
+      tasks[0].run();
+
+      // Wait for everyone else to notice that we're done.
+      try {
+        for (Future<?> worker : workers) {
+          worker.get();
+        } // for
+      } catch (InterruptedException e) {
+        this.done.set(true);
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while mining");
+      } catch (ExecutionException e) {
+        // The tasks catch their own exceptions, so this cannot happen.
+        throw new RuntimeException(e.getCause());
+      } // try/catch
+
+      // Remember how far we got, or forget it if we're finished.
+      if (checkpoint != null) {
+        if (this.winningHash != null) {
+          checkpoint.clear();
+        } else {
+          checkpoint.save(this.resumeChunk(resumeFrom));
+        } // if/else
+      } // if
+      if (this.problem.get() != null) {
+        throw this.problem.get();
+      } else if ((this.winningHash == null) && this.cancelled) {
+        throw new CancellationException("Mining cancelled");
+      } else if (this.winningHash == null) {
+        throw new RuntimeException("No valid nonce found");
+      } // if
+      block.nonce = this.winningNonce;
+      block.hash = this.winningHash;
+      if (this.metrics != null) {
+        this.metrics.mining.record(System.nanoTime() - startTime);
+        this.metrics.blocksMined.increment();
+      } // if
+    } finally {
+      if (this.metrics != null) {
+        this.metrics.miningNanos.add(System.nanoTime() - startTime);
+      } // if
+    } // try/finally
+  } // mine(Block)
+} // class Miner
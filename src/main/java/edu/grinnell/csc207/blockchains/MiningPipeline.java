@@ -0,0 +1,372 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mines a queue of transactions into a chain, one block after another.
+ * A background thread takes each pending transaction and mines a block
+ * for it with all of the chain's mining threads. A second thread
+ * appends that block (checking it, writing the log, and perhaps saving
+ * the ledger) while the first already mines the next block on top of
+ * it, so the miners wait neither for a client to ask for the next block
+ * nor for the chain to take the last one.
+ *
+ * The next block depends on the one before it, so the miner waits for
+ * the append to finish before handing over another block. If the
+ * append failed, the block it just mined follows a block that is not in
+ * the chain, so it mines that block again.
+ *
+ * While the pipeline is open, it is the only thing that should append
+ * to or remove from the chain.
+ *
+ * @author agent
+ */
+public class MiningPipeline implements AutoCloseable {
+  // +-------+-------------------------------------------------------
+  // | Types |
+  // +-------+
+
+  /**
+   * The future for a block that the pipeline mines. Once the pipeline
+   * starts to append the block, the future can no longer be cancelled,
+   * so a cancel() that returns true always means that the block was not
+   * appended.
+   */
+  static class BlockFuture extends CompletableFuture<Block> {
+    /**
+     * The state of a future that may still be cancelled.
+     */
+    static final int PENDING = 0;
+
+    /**
+     * The state of a future whose block is being appended.
+     */
+    static final int COMMITTING = 1;
+
+    /**
+     * The state of a cancelled future.
+     */
+    static final int CANCELLED = 2;
+
+    /**
+     * The state.
+     */
+    final AtomicInteger state = new AtomicInteger(PENDING);
+
+    /**
+     * Note that we are about to append the block.
+     *
+     * @return true if we may append it and false if the future has
+     *   been cancelled.
+     */
+    boolean commit() {
+      return this.state.compareAndSet(PENDING, COMMITTING);
+    } // commit()
+
+    /**
+     * Cancel the future, unless we have started to append the block.
+     *
+     * @param mayInterruptIfRunning
+     *   Ignored, as for any CompletableFuture.
+     *
+     * @return true if the future is cancelled.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (this.state.compareAndSet(PENDING, CANCELLED)) {
+        return super.cancel(mayInterruptIfRunning);
+      } // if
+      return this.isCancelled();
+    } // cancel(boolean)
+  } // class BlockFuture
+
+  /**
+   * A transaction waiting to be mined, along with the future that
+   * eventually holds its block.
+   */
+  static class Request {
+    /**
+     * The transaction.
+     */
+    Transaction transaction;
+
+    /**
+     * The eventual block.
+     */
+    BlockFuture future;
+
+    /**
+     * Create a new request.
+     *
+     * @param t
+     *   The transaction.
+     */
+    Request(Transaction t) {
+      this.transaction = t;
+      this.future = new BlockFuture();
+    } // Request(Transaction)
+  } // class Request
+
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The request that tells the worker to stop waiting. We stop the
+   * worker this way, rather than by interrupting it, since an interrupt
+   * that arrives while the chain writes its log closes the log's file
+   * for good.
+   */
+  static final Request STOP = new Request(null);
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The chain we add blocks to.
+   */
+  BlockChain chain;
+
+  /**
+   * The transactions waiting to be mined.
+   */
+  BlockingQueue<Request> queue;
+
+  /**
+   * The thread that mines.
+   */
+  Thread worker;
+
+  /**
+   * The thread that appends.
+   */
+  ExecutorService appender;
+
+  /**
+   * The append in progress, which completes with true if the block went
+   * into the chain and false if not (or null, if we have not yet
+   * appended anything).
+   */
+  CompletableFuture<Boolean> appending;
+
+  /**
+   * The last block we handed to the appender (or null, if the next
+   * block should follow whatever the chain ends with).
+   */
+  Block last;
+
+  /**
+   * The miner currently at work (or null, if none).
+   */
+  volatile Miner current;
+
+  /**
+   * Set once the pipeline is closed.
+   */
+  volatile boolean closed;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Start a pipeline that mines blocks for a chain.
+   *
+   * @param theChain
+   *   The chain that gets the blocks.
+   */
+  public MiningPipeline(BlockChain theChain) {
+    this.chain = theChain;
+    this.queue = new LinkedBlockingQueue<Request>();
+    this.appender = Executors.newSingleThreadExecutor((task) -> {
+      Thread thread = new Thread(task, "mining-pipeline-appender");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.worker = new Thread(this::run, "mining-pipeline");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  } // MiningPipeline(BlockChain)
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Mine and append blocks until the pipeline is closed.
+   */
+  void run() {
+    while (!this.closed) {
+      try {
+        Request request = this.queue.take();
+        if (request != STOP) {
+          this.process(request);
+        } // if
+      } catch (InterruptedException e) {
+        // Nobody should interrupt us, but if someone does, the flag is
+        // now clear, so it cannot hurt the log.
+      } // try/catch
+    } // while
+    this.awaitAppend();
+
+    // Nothing else is getting mined.
+    for (Request request : this.queue) {
+      request.future.cancel(false);
+    } // for
+  } // run()
+
+  /**
+   * Mine a block for a request, following the last block we handed to
+   * the appender (or the end of the chain).
+   *
+   * @param request
+   *   The request.
+   *
+   * @return the block.
+   *
+   * @throws CancellationException
+   *   If someone cancels the request or closes the pipeline.
+   */
+  Block mine(Request request) {
+    Miner miner = this.chain.newMiner();
+    this.current = miner;
+    if (this.closed) {
+      // We may have missed the call to close.
+      miner.cancel();
+    } // if
+    request.future.whenComplete((b, e) -> {
+      if (e != null) {
+        miner.cancel();
+      } // if
+    });
+    try {
+      Block block = (this.last == null)
+          ? new Block(this.chain.getSize(), request.transaction,
+              this.chain.getHash())
+          : new Block(this.last.getNum() + 1, request.transaction,
+              this.last.getHash());
+      miner.mine(block);
+      return block;
+    } finally {
+      this.current = null;
+    } // try/finally
+  } // mine(Request)
+
+  /**
+   * Wait for the append in progress, if any, to finish.
+   *
+   * @return true if there was none or it succeeded, false otherwise.
+   */
+  boolean awaitAppend() {
+    return (this.appending == null) || this.appending.join();
+  } // awaitAppend()
+
+  /**
+   * Mine the block for one request and hand it to the appender.
+   *
+   * @param request
+   *   The request.
+   */
+  void process(Request request) {
+    if (request.future.isDone()) {
+      // Already cancelled.
+      return;
+    } // if
+    try {
+      Block block = this.mine(request);
+      while (!this.awaitAppend()) {
+        // The block we built on never made it into the chain.
+        this.last = null;
+        this.appending = null;
+        block = this.mine(request);
+      } // while
+      if (!request.future.commit()) {
+        // Cancelled just as we found the nonce.
+        return;
+      } // if
+      Block mined = block;
+      this.last = mined;
+      this.appending = CompletableFuture.supplyAsync(() -> {
+        try {
+          this.chain.append(mined);
+          request.future.complete(mined);
+          return true;
+        } catch (RuntimeException e) {
+          request.future.completeExceptionally(e);
+          return false;
+        } // try/catch
+      }, this.appender);
+    } catch (RuntimeException e) {
+      request.future.completeExceptionally(e);
+    } // try/catch
+  } // process(Request)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Add a transaction to the queue.
+   *
+   * @param t
+   *   The transaction.
+   *
+   * @return a future that holds the block once it has been mined and
+   *   appended to the chain. Cancelling the future removes the
+   *   transaction from the pipeline (or stops mining it). Once the
+   *   block is being appended, cancelling fails.
+   *
+   * @throws IllegalStateException
+   *   If the pipeline is closed.
+   */
+  public CompletableFuture<Block> submit(Transaction t) {
+    if (this.closed) {
+      throw new IllegalStateException("Pipeline is closed");
+    } // if
+    Request request = new Request(t);
+    this.queue.add(request);
+    if (this.closed && this.queue.remove(request)) {
+      // We lost a race with close.
+      request.future.cancel(false);
+    } // if
+    return request.future;
+  } // submit(Transaction)
+
+  /**
+   * Determine how many transactions are waiting to be mined, not
+   * counting the one being mined.
+   *
+   * @return the number of waiting transactions.
+   */
+  public int pending() {
+    return this.queue.size();
+  } // pending()
+
+  /**
+   * Stop the pipeline. The block being mined and any waiting
+   * transactions are cancelled, but blocks already appended stay in
+   * the chain.
+   */
+  public void close() {
+    this.closed = true;
+    Miner miner = this.current;
+    if (miner != null) {
+      miner.cancel();
+    } // if
+    this.queue.add(STOP);
+    try {
+      this.worker.join();
+      this.appender.shutdown();
+      this.appender.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } // try/catch
+  } // close()
+} // class MiningPipeline
@@ -0,0 +1,176 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A block being mined in the background. Clients can wait for the block
+ * through the future, cancel the mining, and watch its progress.
+ * Cancelling the task (or the future), or letting the future time out,
+ * stops all of the threads that are mining.
+ *
+ * @author agent
+ */
+public class MiningTask {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The miner doing the work.
+   */
+  Miner miner;
+
+  /**
+   * The eventual block.
+   */
+  CompletableFuture<Block> future;
+
+  /**
+   * When the task started, in nanoseconds.
+   */
+  long startTime;
+
+  /**
+   * When the task finished, in nanoseconds, or 0 if it has not.
+   */
+  volatile long endTime;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Start mining a block in the background.
+   *
+   * @param block
+   *   The block to mine. Its number, transaction, and previous hash
+   *   must already be set.
+   * @param theMiner
+   *   The miner to use.
+   */
+  MiningTask(Block block, Miner theMiner) {
+    this.miner = theMiner;
+    this.future = new CompletableFuture<Block>();
+    this.startTime = System.nanoTime();
+    this.future.whenComplete((b, e) -> {
+      this.endTime = System.nanoTime();
+      if (e != null) {
+        this.miner.cancel();
+      } // if
+    });
+    Thread thread = new Thread(() -> {
+      try {
+        this.miner.mine(block);
+        this.future.complete(block);
+      } catch (RuntimeException e) {
+        this.future.completeExceptionally(e);
+      } // try/catch
+    }, "mining-task");
+    thread.setDaemon(true);
+    thread.start();
+  } // MiningTask(Block, Miner)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Get the future that eventually holds the mined block.
+   *
+   * @return the future.
+   */
+  public CompletableFuture<Block> future() {
+    return this.future;
+  } // future()
+
+  /**
+   * Give up on the task if it does not finish in time.
+   *
+   * @param timeout
+   *   How long to wait.
+   * @param unit
+   *   The units of timeout.
+   *
+   * @return this task.
+   */
+  public MiningTask orTimeout(long timeout, TimeUnit unit) {
+    this.future.orTimeout(timeout, unit);
+    return this;
+  } // orTimeout(long, TimeUnit)
+
+  /**
+   * Stop mining.
+   *
+   * @return true if this call cancelled the task and false if the task
+   *   had already finished.
+   */
+  public boolean cancel() {
+    return this.future.cancel(true);
+  } // cancel()
+
+  /**
+   * Determine if the task has finished, whether by mining a block,
+   * failing, timing out, or being cancelled.
+   *
+   * @return true if the task has finished and false otherwise.
+   */
+  public boolean isDone() {
+    return this.future.isDone();
+  } // isDone()
+
+  /**
+   * Determine roughly how many nonces the task has tried.
+   *
+   * @return the number of nonces tried.
+   */
+  public long attempts() {
+    return this.miner.attempts();
+  } // attempts()
+
+  /**
+   * Determine how long the task has been running (or ran, if it has
+   * finished).
+   *
+   * @return the elapsed time in milliseconds.
+   */
+  public long elapsedMillis() {
+    long end = this.endTime;
+    if (end == 0) {
+      end = System.nanoTime();
+    } // if
+    return TimeUnit.NANOSECONDS.toMillis(end - this.startTime);
+  } // elapsedMillis()
+
+  /**
+   * Determine how many nonces the task tries per second.
+   *
+   * @return the rate, or 0 if we cannot tell yet.
+   */
+  public double hashesPerSecond() {
+    long millis = this.elapsedMillis();
+    return (millis == 0) ? 0 : 1000.0 * this.attempts() / millis;
+  } // hashesPerSecond()
+
+  /**
+   * Estimate how much longer the task will take at the current rate.
+   * Since each nonce is equally likely to succeed, the number of
+   * attempts we still expect to need does not shrink as we go; only
+   * the rate changes the estimate.
+   *
+   * @return the estimated number of milliseconds, 0 if the task has
+   *   finished, or -1 if we cannot tell (because the validator does
+   *   not know its difficulty or we do not yet have a rate).
+   */
+  public long estimatedRemainingMillis() {
+    if (this.isDone()) {
+      return 0;
+    } // if
+    double expected = this.miner.validator.expectedAttempts();
+    double rate = this.hashesPerSecond();
+    if ((expected <= 0) || (rate <= 0)) {
+      return -1;
+    } // if
+    return Math.round(1000 * expected / rate);
+  } // estimatedRemainingMillis()
+} // class MiningTask
@@ -0,0 +1,124 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A small file that records how far a deterministic nonce search got,
+ * so that a restarted search can continue where the last one stopped.
+ *
+ * The file holds one line: the hash of the block contents that precede
+ * the nonce, followed by the first chunk of nonces that has not been
+ * completely searched. The hash identifies the block, so a checkpoint
+ * left over from some other block is ignored. We write the new contents
+ * to a temporary file and then move it into place, so a crash never
+ * leaves a half-written checkpoint.
+ *
+ * @author agent
+ */
+class NonceCheckpoint {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The checkpoint file.
+   */
+  Path file;
+
+  /**
+   * Identifies the block being mined.
+   */
+  String key;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a checkpoint for mining a block.
+   *
+   * @param checkpointFile
+   *   The checkpoint file, which need not exist yet.
+   * @param prefix
+   *   The bytes of the block that precede the nonce.
+   */
+  NonceCheckpoint(Path checkpointFile, byte[] prefix) {
+    this.file = checkpointFile;
+    this.key = new Hash(JcaHashEngine.newDigest().digest(prefix)).toString();
+  } // NonceCheckpoint(Path, byte[])
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Find out where the last search for this block stopped.
+   *
+   * @return the first chunk that still needs searching, or 0 if there
+   *   is no checkpoint for this block.
+   *
+   * @throws UncheckedIOException
+   *   If the file exists but cannot be read.
+   */
+  long load() {
+    String contents;
+    try {
+      contents = Files.readString(this.file, StandardCharsets.UTF_8);
+    } catch (NoSuchFileException e) {
+      return 0;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+    String[] parts = contents.trim().split("\\s+");
+    if ((parts.length != 2) || !parts[0].equals(this.key)) {
+      return 0;
+    } // if
+    try {
+      return Long.parseLong(parts[1]);
+    } catch (NumberFormatException e) {
+      return 0;
+    } // try/catch
+  } // load()
+
+  /**
+   * Record where the search for this block has reached.
+   *
+   * @param chunk
+   *   The first chunk that still needs searching.
+   *
+   * @throws UncheckedIOException
+   *   If the file cannot be written.
+   */
+  void save(long chunk) {
+    Path temp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+    try {
+      Files.writeString(temp, this.key + " " + chunk + "\n",
+          StandardCharsets.UTF_8);
+      Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+  } // save(long)
+
+  /**
+   * Remove the checkpoint, once the search has succeeded.
+   *
+   * @throws UncheckedIOException
+   *   If the file cannot be removed.
+   */
+  void clear() {
+    try {
+      Files.deleteIfExists(this.file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } // try/catch
+  } // clear()
+} // class NonceCheckpoint
@@ -0,0 +1,50 @@
+package edu.grinnell.csc207.blockchains;
+
+/**
+ * Things that hash one fixed prefix followed by different nonces. A
+ * hasher is not safe to share between threads; each thread should get
+ * its own from the engine.
+ *
+ * @author agent
+ */
+public interface NonceHasher {
+  /**
+   * The number of bytes in a SHA-256 hash.
+   */
+  int DIGEST = 32;
+
+  /**
+   * Compute the hash of the prefix followed by a nonce.
+   *
+   * @param nonce
+   *   The nonce.
+   * @param out
+   *   Where to put the 32 bytes of the hash.
+   */
+  void hash(long nonce, byte[] out);
+
+  /**
+   * Determine how many nonces this hasher hashes at once.
+   *
+   * @return the number of lanes.
+   */
+  default int lanes() {
+    return 1;
+  } // lanes()
+
+  /**
+   * Compute the hashes of the prefix followed by each of lanes()
+   * consecutive nonces.
+   *
+   * @param firstNonce
+   *   The first of the nonces.
+   * @param outs
+   *   Where to put the hashes; the hash of firstNonce + i goes in
+   *   outs[i], which must have room for 32 bytes.
+   */
+  default void hashLanes(long firstNonce, byte[][] outs) {
+    for (int i = 0; i < outs.length; i++) {
+      this.hash(firstNonce + i, outs[i]);
+    } // for
+  } // hashLanes(long, byte[][])
+} // interface NonceHasher
@@ -0,0 +1,131 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks the proof of work for a range of blocks in a chain. For each
+ * block, we make sure that the hash is valid, that it is correct for the
+ * contents, and that the previous hash matches the block before. Those
+ * checks are independent from block to block, so we split the range in
+ * half and check the halves in parallel until the pieces are small.
+ *
+ * The result is the lowest height in the range whose block fails, or
+ * the end of the range if they all pass. Once the left half finds a
+ * failure, the right half no longer matters and is cancelled.
+ *
+ * @author agent
+ */
+class ProofCheck extends RecursiveTask<Integer> {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The number of blocks we check without splitting.
+   */
+  static final int GRAIN = 64;
+
+  /**
+   * The version of the serialized form. We never serialize checks, but
+   * every ForkJoinTask is Serializable.
+   */
+  private static final long serialVersionUID = 1L;
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The chain whose blocks we check.
+   */
+  BlockChain chain;
+
+  /**
+   * The blocks we check.
+   */
+  BlockStore blocks;
+
+  /**
+   * The first height to check.
+   */
+  int from;
+
+  /**
+   * The height after the last one to check.
+   */
+  int to;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a check for some blocks.
+   *
+   * @param theChain
+   *   The chain whose blocks we check.
+   * @param theBlocks
+   *   The blocks of that chain.
+   * @param start
+   *   The first height to check, which must be at least 1.
+   * @param end
+   *   The height after the last one to check.
+   */
+  ProofCheck(BlockChain theChain, BlockStore theBlocks, int start,
+      int end) {
+    this.chain = theChain;
+    this.blocks = theBlocks;
+    this.from = start;
+    this.to = end;
+  } // ProofCheck(BlockChain, BlockStore, int, int)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Determine if the proof of work for one block is in order.
+   *
+   * @param height
+   *   The height of the block.
+   *
+   * @return true if the block passes and false otherwise.
+   */
+  boolean passes(int height) {
+    Block block = this.blocks.get(height);
+    Hash hash = block.getHash();
+    return this.chain.validator.isValid(hash)
+        && this.chain.correctHash(block).equals(hash)
+        && this.blocks.get(height - 1).getHash()
+            .equals(block.getPrevHash());
+  } // passes(int)
+
+  /**
+   * Find the lowest failing height.
+   *
+   * @return the lowest failing height, or the end of the range if none
+   *   fails.
+   */
+  protected Integer compute() {
+    if (this.to - this.from <= GRAIN) {
+      for (int height = this.from; height < this.to; height++) {
+        if (!this.passes(height)) {
+          return height;
+        } // if
+      } // for
+      return this.to;
+    } // if
+
+    int mid = (this.from + this.to) >>> 1;
+    ProofCheck right = new ProofCheck(this.chain, this.blocks, mid,
+        this.to);
+    right.fork();
+    int left = new ProofCheck(this.chain, this.blocks, this.from, mid)
+        .compute();
+    if (left < mid) {
+      right.cancel(false);
+      return left;
+    } // if
+    return right.join();
+  } // compute()
+} // class ProofCheck
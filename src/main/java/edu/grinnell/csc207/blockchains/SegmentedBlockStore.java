@@ -0,0 +1,158 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.Arrays;
+
+/**
+ * The blocks of a chain, kept in memory. The blocks live in
+ * fixed-size segments, so adding a block never copies the blocks
+ * already stored, and getting, adding, or removing the last block all
+ * take constant time.
+ *
+ * A store never changes once created: adding or removing a block gives
+ * a new store that shares segments with the old one. Readers can
+ * therefore use a store without any locking, while one writer makes
+ * new stores. To make that work, the writer only ever fills empty
+ * slots in place. Removing a block leaves its slot filled (since older
+ * stores may still read it), and putting a different block in a filled
+ * slot copies that segment first.
+ *
+ * @author agent
+ */
+class SegmentedBlockStore implements BlockStore {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The log (base 2) of the number of blocks in a segment.
+   */
+  static final int SEGMENT_BITS = 10;
+
+  /**
+   * The number of blocks in a segment.
+   */
+  static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+  /**
+   * Extracts the position within a segment from a height.
+   */
+  static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The segments. Only the first few are allocated.
+   */
+  final Block[][] segments;
+
+  /**
+   * The number of blocks stored.
+   */
+  final int size;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create an empty store.
+   */
+  SegmentedBlockStore() {
+    this(new Block[4][], 0);
+  } // SegmentedBlockStore()
+
+  /**
+   * Create a store.
+   *
+   * @param theSegments
+   *   The segments.
+   * @param theSize
+   *   The number of blocks in those segments that belong to the store.
+   */
+  SegmentedBlockStore(Block[][] theSegments, int theSize) {
+    this.segments = theSegments;
+    this.size = theSize;
+  } // SegmentedBlockStore(Block[][], int)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Determine how many blocks are stored.
+   *
+   * @return the number of blocks.
+   */
+  public int size() {
+    return this.size;
+  } // size()
+
+  /**
+   * Get the block at a particular height.
+   *
+   * @param height
+   *   The height of the block, between 0 and size() - 1.
+   *
+   * @return the block.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If there is no block at that height.
+   */
+  public Block get(int height) {
+    if ((height < 0) || (height >= this.size)) {
+      throw new IndexOutOfBoundsException("No block at height " + height
+          + " (size " + this.size + ")");
+    } // if
+    return this.segments[height >>> SEGMENT_BITS][height & SEGMENT_MASK];
+  } // get(int)
+
+  /**
+   * Add a block to the end. Only one thread may add or remove blocks
+   * from the stores that share segments with this one.
+   *
+   * @param block
+   *   The block to add.
+   *
+   * @return a store with the blocks of this store followed by block.
+   */
+  public BlockStore add(Block block) {
+    Block[][] dir = this.segments;
+    int segment = this.size >>> SEGMENT_BITS;
+    int slot = this.size & SEGMENT_MASK;
+    if (segment == dir.length) {
+      dir = Arrays.copyOf(dir, 2 * segment);
+    } // if
+    if (dir[segment] == null) {
+      dir[segment] = new Block[SEGMENT_SIZE];
+    } else if (dir[segment][slot] != null) {
+      // Some other store may still see that slot, so we need our own
+      // copy of the segment (and so of the directory).
+      if (dir == this.segments) {
+        dir = dir.clone();
+      } // if
+      Block[] copy = new Block[SEGMENT_SIZE];
+      System.arraycopy(dir[segment], 0, copy, 0, slot);
+      dir[segment] = copy;
+      Arrays.fill(dir, segment + 1, dir.length, null);
+    } // if/else
+    dir[segment][slot] = block;
+    return new SegmentedBlockStore(dir, this.size + 1);
+  } // add(Block)
+
+  /**
+   * Remove the last block.
+   *
+   * @return a store with all but the last block of this store.
+   *
+   * @throws IndexOutOfBoundsException
+   *   If the store is empty.
+   */
+  public BlockStore removeLast() {
+    if (this.size == 0) {
+      throw new IndexOutOfBoundsException("No blocks to remove");
+    } // if
+    return new SegmentedBlockStore(this.segments, this.size - 1);
+  } // removeLast()
+} // class SegmentedBlockStore
@@ -0,0 +1,41 @@
+package edu.grinnell.csc207.blockchains;
+
+/**
+ * A pure-Java SHA-256 engine tuned for hashing blocks. Its hashers
+ * compress the full 64-byte chunks of the prefix once, when they are
+ * created. The remaining bytes of the prefix, the padding, and the
+ * message length (which is known in advance) are laid out once in a
+ * final chunk (or two), so that each attempt only writes the nonce into
+ * that template and compresses it. If the last chunk does not contain
+ * any of the nonce, its message schedule is computed once, too.
+ *
+ * Hashing a nonce allocates no objects.
+ *
+ * @author agent
+ */
+public class Sha256HashEngine implements HashEngine {
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Get the name of the engine.
+   *
+   * @return the name of the engine.
+   */
+  public String name() {
+    return "sha-256 (pure Java)";
+  } // name()
+
+  /**
+   * Create a hasher for a particular prefix.
+   *
+   * @param prefix
+   *   The bytes that precede the nonce.
+   *
+   * @return a hasher for that prefix.
+   */
+  public NonceHasher hasher(byte[] prefix) {
+    return new Sha256Hasher(prefix);
+  } // hasher(byte[])
+} // class Sha256HashEngine
@@ -0,0 +1,319 @@
+package edu.grinnell.csc207.blockchains;
+
+/**
+ * Hashers for the pure-Java engine (see Sha256HashEngine). The vector
+ * engine borrows their constants and message schedule.
+ *
+ * @author agent
+ */
+class Sha256Hasher implements NonceHasher {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The number of bytes in a SHA-256 chunk.
+   */
+  static final int CHUNK = 64;
+
+  /**
+   * The number of rounds of compression, which is also the number of
+   * words in a message schedule.
+   */
+  static final int ROUNDS = 64;
+
+  /**
+   * The initial hash values.
+   */
+  static final int[] IV = {
+    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+    0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+  };
+
+  /**
+   * The round constants.
+   */
+  static final int[] K = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
+    0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+    0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
+    0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+    0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+    0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
+    0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+    0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+    0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+  };
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The state after compressing the full chunks of the prefix.
+   */
+  int[] midstate;
+
+  /**
+   * The working state.
+   */
+  int[] state;
+
+  /**
+   * The message schedule.
+   */
+  int[] w;
+
+  /**
+   * The final chunk(s): the rest of the prefix, room for the nonce,
+   * and the padding.
+   */
+  byte[] tail;
+
+  /**
+   * Where the nonce goes in the tail.
+   */
+  int nonceOffset;
+
+  /**
+   * The message schedule of the last chunk of the tail, if that chunk
+   * does not depend on the nonce; null otherwise.
+   */
+  int[] lastSchedule;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a hasher for a particular prefix.
+   *
+   * @param prefix
+   *   The bytes that precede the nonce.
+   */
+  Sha256Hasher(byte[] prefix) {
+    this.midstate = IV.clone();
+    this.state = new int[8];
+    this.w = new int[ROUNDS];
+
+    // Compress the full chunks of the prefix.
+    int full = prefix.length - (prefix.length % CHUNK);
+    for (int offset = 0; offset < full; offset += CHUNK) {
+      schedule(prefix, offset, this.w);
+      rounds(this.midstate, this.w);
+    } // for
+
+    // Lay out the rest. We need room for the nonce, the 0x80 that ends
+    // the message, and the eight-byte length.
+    int rest = prefix.length - full;
+    this.nonceOffset = rest;
+    int used = rest + Long.BYTES + 1 + Long.BYTES;
+    this.tail = new byte[(used <= CHUNK) ? CHUNK : 2 * CHUNK];
+    System.arraycopy(prefix, full, this.tail, 0, rest);
+    this.tail[rest + Long.BYTES] = (byte) 0x80;
+    long bits = 8L * (prefix.length + Long.BYTES);
+    for (int i = 0; i < Long.BYTES; i++) {
+      this.tail[this.tail.length - 1 - i] = (byte) (bits >>> (8 * i));
+    } // for
+
+    // If the nonce fits in the first of two chunks, the second is the
+    // same for every nonce.
+    if ((this.tail.length > CHUNK) && (rest + Long.BYTES <= CHUNK)) {
+      this.lastSchedule = new int[ROUNDS];
+      schedule(this.tail, CHUNK, this.lastSchedule);
+    } // if
+  } // Sha256Hasher(byte[])
+
+  // +----------------+----------------------------------------------
+  // | Static methods |
+  // +----------------+
+
+  /**
+   * Compute the message schedule for one chunk.
+   *
+   * @param data
+   *   The bytes that contain the chunk.
+   * @param offset
+   *   Where the chunk starts.
+   * @param w
+   *   Where to put the schedule (at least ROUNDS ints).
+   */
+  static void schedule(byte[] data, int offset, int[] w) {
+    for (int t = 0; t < 16; t++) {
+      int i = offset + 4 * t;
+      w[t] = (data[i] << 24) | ((data[i + 1] & 0xff) << 16)
+          | ((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff);
+    } // for
+    for (int t = 16; t < ROUNDS; t++) {
+      int w15 = w[t - 15];
+      int w2 = w[t - 2];
+      int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18)
+          ^ (w15 >>> 3);
+      int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19)
+          ^ (w2 >>> 10);
+      w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+    } // for
+  } // schedule(byte[], int, int[])
+
+  /**
+   * Upper-case sigma 0.
+   *
+   * @param x
+   *   The word.
+   *
+   * @return the result.
+   */
+  static int bigSigma0(int x) {
+    return Integer.rotateRight(x, 2) ^ Integer.rotateRight(x, 13)
+        ^ Integer.rotateRight(x, 22);
+  } // bigSigma0(int)
+
+  /**
+   * Upper-case sigma 1.
+   *
+   * @param x
+   *   The word.
+   *
+   * @return the result.
+   */
+  static int bigSigma1(int x) {
+    return Integer.rotateRight(x, 6) ^ Integer.rotateRight(x, 11)
+        ^ Integer.rotateRight(x, 25);
+  } // bigSigma1(int)
+
+  /**
+   * The choose function.
+   *
+   * @param x
+   *   The word that chooses.
+   * @param y
+   *   The word chosen where x has ones.
+   * @param z
+   *   The word chosen where x has zeros.
+   *
+   * @return the result.
+   */
+  static int ch(int x, int y, int z) {
+    return z ^ (x & (y ^ z));
+  } // ch(int, int, int)
+
+  /**
+   * The majority function.
+   *
+   * @param x
+   *   One word.
+   * @param y
+   *   Another word.
+   * @param z
+   *   Yet another word.
+   *
+   * @return the result.
+   */
+  static int maj(int x, int y, int z) {
+    return (x & y) | (z & (x | y));
+  } // maj(int, int, int)
+
+  /**
+   * Run the 64 rounds of compression over a state. The rounds are
+   * unrolled eight at a time so that, rather than shifting all eight
+   * working variables after every round, each round just updates the
+   * two that change.
+   *
+   * @param s
+   *   The state, which gets updated.
+   * @param w
+   *   The message schedule.
+   */
+  static void rounds(int[] s, int[] w) {
+    int a = s[0];
+    int b = s[1];
+    int c = s[2];
+    int d = s[3];
+    int e = s[4];
+    int f = s[5];
+    int g = s[6];
+    int h = s[7];
+    for (int t = 0; t < ROUNDS; t += 8) {
+      h += bigSigma1(e) + ch(e, f, g) + K[t] + w[t];
+      d += h;
+      h += bigSigma0(a) + maj(a, b, c);
+
+      g += bigSigma1(d) + ch(d, e, f) + K[t + 1] + w[t + 1];
+      c += g;
+      g += bigSigma0(h) + maj(h, a, b);
+
+      f += bigSigma1(c) + ch(c, d, e) + K[t + 2] + w[t + 2];
+      b += f;
+      f += bigSigma0(g) + maj(g, h, a);
+
+      e += bigSigma1(b) + ch(b, c, d) + K[t + 3] + w[t + 3];
+      a += e;
+      e += bigSigma0(f) + maj(f, g, h);
+
+      d += bigSigma1(a) + ch(a, b, c) + K[t + 4] + w[t + 4];
+      h += d;
+      d += bigSigma0(e) + maj(e, f, g);
+
+      c += bigSigma1(h) + ch(h, a, b) + K[t + 5] + w[t + 5];
+      g += c;
+      c += bigSigma0(d) + maj(d, e, f);
+
+      b += bigSigma1(g) + ch(g, h, a) + K[t + 6] + w[t + 6];
+      f += b;
+      b += bigSigma0(c) + maj(c, d, e);
+
+      a += bigSigma1(f) + ch(f, g, h) + K[t + 7] + w[t + 7];
+      e += a;
+      a += bigSigma0(b) + maj(b, c, d);
+    } // for
+    s[0] += a;
+    s[1] += b;
+    s[2] += c;
+    s[3] += d;
+    s[4] += e;
+    s[5] += f;
+    s[6] += g;
+    s[7] += h;
+  } // rounds(int[], int[])
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Compute the hash of the prefix followed by a nonce.
+   *
+   * @param nonce
+   *   The nonce.
+   * @param out
+   *   Where to put the 32 bytes of the hash.
+   */
+  public void hash(long nonce, byte[] out) {
+    for (int i = 0; i < Long.BYTES; i++) {
+      this.tail[this.nonceOffset + i] = (byte) (nonce >>> (56 - 8 * i));
+    } // for
+    System.arraycopy(this.midstate, 0, this.state, 0, 8);
+    schedule(this.tail, 0, this.w);
+    rounds(this.state, this.w);
+    if (this.lastSchedule != null) {
+      rounds(this.state, this.lastSchedule);
+    } else if (this.tail.length > CHUNK) {
+      schedule(this.tail, CHUNK, this.w);
+      rounds(this.state, this.w);
+    } // if/else
+    for (int i = 0; i < 8; i++) {
+      int word = this.state[i];
+      out[4 * i] = (byte) (word >>> 24);
+      out[4 * i + 1] = (byte) (word >>> 16);
+      out[4 * i + 2] = (byte) (word >>> 8);
+      out[4 * i + 3] = (byte) word;
+    } // for
+  } // hash(long, byte[])
+} // class Sha256Hasher
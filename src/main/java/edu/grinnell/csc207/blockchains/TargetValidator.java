@@ -0,0 +1,125 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.math.BigInteger;
+
+/**
+ * A validator that accepts 32-byte hashes that, read as unsigned
+ * 256-bit big-endian numbers, are below a target. It compares eight
+ * bytes at a time, and most hashes fail on the first word.
+ *
+ * @author agent
+ */
+public class TargetValidator implements HashValidator {
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * The target, as four big-endian words.
+   */
+  long[] target;
+
+  /**
+   * The target, as a number.
+   */
+  BigInteger number;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a validator for a target.
+   *
+   * @param theTarget
+   *   The target, which must be positive and fit in 256 bits.
+   *
+   * @throws IllegalArgumentException
+   *   If the target is out of range.
+   */
+  public TargetValidator(BigInteger theTarget) {
+    if ((theTarget.signum() <= 0) || (theTarget.bitLength() > 256)) {
+      throw new IllegalArgumentException("Invalid target: " + theTarget);
+    } // if
+    this.number = theTarget;
+    this.target = new long[4];
+    for (int i = 0; i < 4; i++) {
+      this.target[i] = theTarget.shiftRight(64 * (3 - i)).longValue();
+    } // for
+  } // TargetValidator(BigInteger)
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Get the target.
+   *
+   * @return the target.
+   */
+  public BigInteger getTarget() {
+    return this.number;
+  } // getTarget()
+
+  /**
+   * Determine if a hash is below the target.
+   *
+   * @param hash
+   *   The hash we're checking.
+   *
+   * @return true if the hash is valid and false otherwise.
+   */
+  public boolean isValid(Hash hash) {
+    if (!hash.isCompact()) {
+      return false;
+    } // if
+    for (int i = 0; i < 4; i++) {
+      int order = Long.compareUnsigned(hash.word(i), this.target[i]);
+      if (order != 0) {
+        return order < 0;
+      } // if
+    } // for
+    return false;
+  } // isValid(Hash)
+
+  /**
+   * Determine if the bytes of a hash are below the target.
+   *
+   * @param digest
+   *   The bytes of the hash we're checking.
+   *
+   * @return true if the hash is valid and false otherwise.
+   */
+  public boolean isValid(byte[] digest) {
+    if (digest.length != NonceHasher.DIGEST) {
+      return false;
+    } // if
+    for (int i = 0; i < 4; i++) {
+      long word = (long) Hash.LONGS.get(digest, 8 * i);
+      int order = Long.compareUnsigned(word, this.target[i]);
+      if (order != 0) {
+        return order < 0;
+      } // if
+    } // for
+    return false;
+  } // isValid(byte[])
+
+  /**
+   * Determine how many hashes we expect to try before finding a valid
+   * one.
+   *
+   * @return 2^256 divided by the target.
+   */
+  public double expectedAttempts() {
+    return Math.pow(2, 256) / this.number.doubleValue();
+  } // expectedAttempts()
+
+  /**
+   * Get a string representation of the validator.
+   *
+   * @return a string representation of the validator.
+   */
+  public String toString() {
+    return String.format("[below %064X]", this.number);
+  } // toString()
+} // class TargetValidator
@@ -0,0 +1,390 @@
+package edu.grinnell.csc207.blockchains;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A SHA-256 engine that uses the (incubating) Vector API to hash several
+ * nonces at once, one per lane: four lanes with 128-bit vectors, eight
+ * with 256-bit vectors, and sixteen with 512-bit vectors. Every lane
+ * starts from the same midstate, so only the message words that hold
+ * the nonce differ from lane to lane.
+ *
+ * Setting up the lanes costs far more than one hash, so the engine only
+ * uses them to search for nonces. It hashes single nonces (as when we
+ * append or check a block) with the JCA engine.
+ *
+ * This class needs the jdk.incubator.vector module at both compile time
+ * and run time. Clients should get it through HashEngine.vectorized(),
+ * which falls back to a scalar engine when the module is missing or the
+ * machine lacks vectors with at least four int lanes.
+ *
+ * @author agent
+ */
+public class VectorHashEngine implements HashEngine {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The fewest lanes we consider worth vectorizing.
+   */
+  static final int MIN_LANES = 4;
+
+  /**
+   * The shape of the vectors we use.
+   */
+  static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+  /**
+   * The engine that hashes single nonces.
+   */
+  static final HashEngine SINGLE = new JcaHashEngine();
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a new engine.
+   *
+   * @throws UnsupportedOperationException
+   *   If the machine's vectors are too narrow to be worthwhile.
+   */
+  public VectorHashEngine() {
+    if (SPECIES.length() < MIN_LANES) {
+      throw new UnsupportedOperationException("Only " + SPECIES.length()
+          + " int lanes available");
+    } // if
+  } // VectorHashEngine()
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Get the name of the engine.
+   *
+   * @return the name of the engine.
+   */
+  public String name() {
+    return "sha-256 (" + SPECIES.length() + " lanes)";
+  } // name()
+
+  /**
+   * Create a hasher for a particular prefix.
+   *
+   * @param prefix
+   *   The bytes that precede the nonce.
+   *
+   * @return a hasher for that prefix.
+   */
+  public NonceHasher hasher(byte[] prefix) {
+    return new VectorHasher(prefix);
+  } // hasher(byte[])
+
+  /**
+   * Compute the hash of a prefix followed by a nonce, without setting up
+   * any lanes.
+   *
+   * @param prefix
+   *   The bytes that precede the nonce.
+   * @param nonce
+   *   The nonce.
+   *
+   * @return the bytes of the hash.
+   */
+  public byte[] hash(byte[] prefix, long nonce) {
+    return SINGLE.hash(prefix, nonce);
+  } // hash(byte[], long)
+} // class VectorHashEngine
+
+/**
+ * Hashers for the vector engine. We store the message schedule and the
+ * state with the lanes of each word next to each other, so that word t
+ * of lane i is at index t * lanes + i.
+ */
+class VectorHasher implements NonceHasher {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The shape of the vectors.
+   */
+  static final VectorSpecies<Integer> SPECIES = VectorHashEngine.SPECIES;
+
+  /**
+   * The number of words in a chunk.
+   */
+  static final int WORDS = Sha256Hasher.CHUNK / Integer.BYTES;
+
+  // +--------+------------------------------------------------------
+  // | Fields |
+  // +--------+
+
+  /**
+   * A scalar hasher for the same prefix, which supplies the midstate and
+   * the padded tail, and which hashes single nonces.
+   */
+  Sha256Hasher scalar;
+
+  /**
+   * The number of lanes.
+   */
+  int lanes;
+
+  /**
+   * The message schedule of each chunk of the tail.
+   */
+  int[][] schedules;
+
+  /**
+   * The number of chunks whose schedules depend on the nonce.
+   */
+  int varyingChunks;
+
+  /**
+   * The first word of the tail that contains part of the nonce.
+   */
+  int firstNonceWord;
+
+  /**
+   * The last word of the tail that contains part of the nonce.
+   */
+  int lastNonceWord;
+
+  /**
+   * The midstate, repeated for each lane.
+   */
+  int[] midstate;
+
+  /**
+   * The working state.
+   */
+  int[] state;
+
+  // +--------------+------------------------------------------------
+  // | Constructors |
+  // +--------------+
+
+  /**
+   * Create a hasher for a particular prefix.
+   *
+   * @param prefix
+   *   The bytes that precede the nonce.
+   */
+  VectorHasher(byte[] prefix) {
+    this.scalar = new Sha256Hasher(prefix);
+    this.lanes = SPECIES.length();
+    this.midstate = spread(this.scalar.midstate, 8);
+    this.state = new int[8 * this.lanes];
+    this.firstNonceWord = this.scalar.nonceOffset / Integer.BYTES;
+    this.lastNonceWord =
+        (this.scalar.nonceOffset + Long.BYTES - 1) / Integer.BYTES;
+
+    // Set up the constant words of each chunk. The last chunk may not
+    // depend on the nonce at all, in which case its whole schedule is
+    // constant.
+    int chunks = this.scalar.tail.length / Sha256Hasher.CHUNK;
+    this.schedules = new int[chunks][];
+    this.varyingChunks = this.lastNonceWord / WORDS + 1;
+    int[] words = new int[Sha256Hasher.ROUNDS];
+    for (int c = 0; c < chunks; c++) {
+      Sha256Hasher.schedule(this.scalar.tail, c * Sha256Hasher.CHUNK, words);
+      this.schedules[c] = spread(words, Sha256Hasher.ROUNDS);
+    } // for
+  } // VectorHasher(byte[])
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Repeat each of the first n words of an array once per lane.
+   *
+   * @param words
+   *   The words.
+   * @param n
+   *   The number of words to repeat.
+   *
+   * @return an array with n * lanes words.
+   */
+  int[] spread(int[] words, int n) {
+    int[] result = new int[n * this.lanes];
+    for (int t = 0; t < n; t++) {
+      for (int i = 0; i < this.lanes; i++) {
+        result[t * this.lanes + i] = words[t];
+      } // for
+    } // for
+    return result;
+  } // spread(int[], int)
+
+  /**
+   * Load one word for all lanes.
+   *
+   * @param words
+   *   The lane-interleaved words.
+   * @param t
+   *   The index of the word.
+   *
+   * @return a vector of that word in each lane.
+   */
+  IntVector load(int[] words, int t) {
+    return IntVector.fromArray(SPECIES, words, t * this.lanes);
+  } // load(int[], int)
+
+  /**
+   * Rotate each lane to the right.
+   *
+   * @param v
+   *   The vector.
+   * @param n
+   *   The number of bits.
+   *
+   * @return the rotated vector.
+   */
+  static IntVector ror(IntVector v, int n) {
+    return v.lanewise(VectorOperators.ROR, n);
+  } // ror(IntVector, int)
+
+  /**
+   * Expand the first sixteen words of a schedule into all 64.
+   *
+   * @param w
+   *   The lane-interleaved schedule.
+   */
+  void expand(int[] w) {
+    for (int t = WORDS; t < Sha256Hasher.ROUNDS; t++) {
+      IntVector w15 = load(w, t - 15);
+      IntVector w2 = load(w, t - 2);
+      IntVector s0 = ror(w15, 7).lanewise(VectorOperators.XOR, ror(w15, 18))
+          .lanewise(VectorOperators.XOR,
+              w15.lanewise(VectorOperators.LSHR, 3));
+      IntVector s1 = ror(w2, 17).lanewise(VectorOperators.XOR, ror(w2, 19))
+          .lanewise(VectorOperators.XOR,
+              w2.lanewise(VectorOperators.LSHR, 10));
+      load(w, t - 16).add(s0).add(load(w, t - 7)).add(s1)
+          .intoArray(w, t * this.lanes);
+    } // for
+  } // expand(int[])
+
+  /**
+   * Compress one chunk into the working state of every lane.
+   *
+   * @param w
+   *   The lane-interleaved schedule of the chunk.
+   */
+  void compress(int[] w) {
+    IntVector a = load(this.state, 0);
+    IntVector b = load(this.state, 1);
+    IntVector c = load(this.state, 2);
+    IntVector d = load(this.state, 3);
+    IntVector e = load(this.state, 4);
+    IntVector f = load(this.state, 5);
+    IntVector g = load(this.state, 6);
+    IntVector h = load(this.state, 7);
+    for (int t = 0; t < Sha256Hasher.ROUNDS; t++) {
+      IntVector s1 = ror(e, 6).lanewise(VectorOperators.XOR, ror(e, 11))
+          .lanewise(VectorOperators.XOR, ror(e, 25));
+      IntVector ch = g.lanewise(VectorOperators.XOR,
+          e.lanewise(VectorOperators.AND, f.lanewise(VectorOperators.XOR, g)));
+      IntVector t1 = h.add(s1).add(ch).add(Sha256Hasher.K[t]).add(load(w, t));
+      IntVector s0 = ror(a, 2).lanewise(VectorOperators.XOR, ror(a, 13))
+          .lanewise(VectorOperators.XOR, ror(a, 22));
+      IntVector maj = a.lanewise(VectorOperators.AND, b)
+          .lanewise(VectorOperators.OR, c.lanewise(VectorOperators.AND,
+              a.lanewise(VectorOperators.OR, b)));
+      h = g;
+      g = f;
+      f = e;
+      e = d.add(t1);
+      d = c;
+      c = b;
+      b = a;
+      a = t1.add(s0).add(maj);
+    } // for
+    load(this.state, 0).add(a).intoArray(this.state, 0);
+    load(this.state, 1).add(b).intoArray(this.state, this.lanes);
+    load(this.state, 2).add(c).intoArray(this.state, 2 * this.lanes);
+    load(this.state, 3).add(d).intoArray(this.state, 3 * this.lanes);
+    load(this.state, 4).add(e).intoArray(this.state, 4 * this.lanes);
+    load(this.state, 5).add(f).intoArray(this.state, 5 * this.lanes);
+    load(this.state, 6).add(g).intoArray(this.state, 6 * this.lanes);
+    load(this.state, 7).add(h).intoArray(this.state, 7 * this.lanes);
+  } // compress(int[])
+
+  // +---------+-----------------------------------------------------
+  // | Methods |
+  // +---------+
+
+  /**
+   * Compute the hash of the prefix followed by a single nonce.
+   *
+   * @param nonce
+   *   The nonce.
+   * @param out
+   *   Where to put the 32 bytes of the hash.
+   */
+  public void hash(long nonce, byte[] out) {
+    this.scalar.hash(nonce, out);
+  } // hash(long, byte[])
+
+  /**
+   * Determine how many nonces this hasher hashes at once.
+   *
+   * @return the number of lanes.
+   */
+  public int lanes() {
+    return this.lanes;
+  } // lanes()
+
+  /**
+   * Compute the hashes of the prefix followed by each of lanes()
+   * consecutive nonces.
+   *
+   * @param firstNonce
+   *   The first of the nonces.
+   * @param outs
+   *   Where to put the hashes.
+   */
+  public void hashLanes(long firstNonce, byte[][] outs) {
+    // Fill in the words that hold the nonce, lane by lane.
+    byte[] tail = this.scalar.tail;
+    int offset = this.scalar.nonceOffset;
+    for (int i = 0; i < this.lanes; i++) {
+      long nonce = firstNonce + i;
+      for (int j = 0; j < Long.BYTES; j++) {
+        tail[offset + j] = (byte) (nonce >>> (56 - 8 * j));
+      } // for
+      for (int t = this.firstNonceWord; t <= this.lastNonceWord; t++) {
+        int k = Integer.BYTES * t;
+        this.schedules[t / WORDS][(t % WORDS) * this.lanes + i] =
+            (tail[k] << 24) | ((tail[k + 1] & 0xff) << 16)
+            | ((tail[k + 2] & 0xff) << 8) | (tail[k + 3] & 0xff);
+      } // for
+    } // for
+
+    // Compress.
+    System.arraycopy(this.midstate, 0, this.state, 0, this.state.length);
+    for (int c = 0; c < this.schedules.length; c++) {
+      if (c < this.varyingChunks) {
+        expand(this.schedules[c]);
+      } // if
+      compress(this.schedules[c]);
+    } // for
+
+    // And extract the hashes.
+    for (int i = 0; i < this.lanes; i++) {
+      byte[] out = outs[i];
+      for (int t = 0; t < 8; t++) {
+        int word = this.state[t * this.lanes + i];
+        out[4 * t] = (byte) (word >>> 24);
+        out[4 * t + 1] = (byte) (word >>> 16);
+        out[4 * t + 2] = (byte) (word >>> 8);
+        out[4 * t + 3] = (byte) word;
+      } // for
+    } // for
+  } // hashLanes(long, byte[][])
+} // class VectorHasher
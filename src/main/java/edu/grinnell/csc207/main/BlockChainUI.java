@@ -2,16 +2,25 @@ package edu.grinnell.csc207.main;
 
 import edu.grinnell.csc207.blockchains.Block;
 import edu.grinnell.csc207.blockchains.BlockChain;
+import edu.grinnell.csc207.blockchains.BlockLog;
+import edu.grinnell.csc207.blockchains.HashEngine;
 import edu.grinnell.csc207.blockchains.HashValidator;
+import edu.grinnell.csc207.blockchains.LeadingZeroBitsValidator;
+import edu.grinnell.csc207.blockchains.MiningTask;
 import edu.grinnell.csc207.blockchains.Transaction;
 
 import edu.grinnell.csc207.util.IOUtils;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 
+import java.nio.file.Path;
+
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A simple UI for our BlockChain class.
@@ -29,6 +38,11 @@ public class BlockChainUI {
    */
   static final int VALIDATOR_BYTES = 3;
 
+  /**
+   * How often we report progress while mining, in seconds.
+   */
+  static final long PROGRESS_SECONDS = 1;
+
   // +---------+-----------------------------------------------------
   // | Helpers |
   // +---------+
@@ -50,6 +64,7 @@ public class BlockChainUI {
         balance: finds a user's balance
         transactions: prints out the chain of transactions
         blocks: prints out the chain of blocks (for debugging only)
+        metrics: prints statistics on mining and checking
         help: prints this list of commands
         quit: quits the program""");
   } // instructions(PrintWriter)
@@ -62,26 +77,40 @@ public class BlockChainUI {
    * Run the UI.
    *
    * @param args
-   *   Command-line arguments (currently ignored).
+   *   Command-line arguments. If there is one, it names a file in which
+   *   we keep the chain from run to run.
    */
   public static void main(String[] args) throws Exception {
     PrintWriter pen = new PrintWriter(System.out, true);
     BufferedReader eyes = new BufferedReader(new InputStreamReader(System.in));
 
     // Set up our blockchain.
-    HashValidator validator =
-        (h) -> {
-          if (h.length() < VALIDATOR_BYTES) {
-            return false;
-          } // if
-          for (int v = 0; v < VALIDATOR_BYTES; v++) {
-            if (h.get(v) != 0) {
-              return false;
-            } // if
-          } // for
-          return true;
-        };
-    BlockChain chain = new BlockChain(validator);
+    HashValidator validator = new LeadingZeroBitsValidator(8 * VALIDATOR_BYTES);
+    BlockChain chain =
+        new BlockChain(validator, Runtime.getRuntime().availableProcessors(),
+            HashEngine.vectorized());
+    BlockLog log = null;
+    if (args.length > 0) {
+      // Someone typed each block in by hand, so we commit each one as
+      // it comes, and close the log even if they interrupt us.
+      log = new BlockLog(Path.of(args[0]), 1);
+      BlockLog opened = log;
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          opened.close();
+        } catch (IOException e) {
+          System.err.println("Could not close " + args[0] + ": "
+              + e.getMessage());
+        } // try/catch
+      }));
+      chain.attach(log, true);
+      pen.printf("Loaded %d blocks from %s\n", chain.getSize(), args[0]);
+      chain.verifyInBackground().exceptionally((e) -> {
+        pen.printf("\nWarning: %s does not check out: %s\n", args[0],
+            e.getMessage());
+        return null;
+      });
+    } // if
 
     instructions(pen);
 
@@ -150,11 +179,26 @@ public class BlockChainUI {
           instructions(pen);
           break;
 
+        case "metrics":
+          chain.getMetrics().print(pen);
+          break;
+
         case "mine":
           source = IOUtils.readLine(pen, eyes, "Source (return for deposit): ");
           target = IOUtils.readLine(pen, eyes, "Target: ");
           amount = IOUtils.readInt(pen, eyes, "Amount: ");
-          Block b = chain.mine(new Transaction(source, target, amount));
+          MiningTask task = chain.mineAsync(
+              new Transaction(source, target, amount));
+          Block b = null;
+          while (b == null) {
+            try {
+              b = task.future().get(PROGRESS_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+              pen.printf("  ... %,d nonces in %d ms (about %d ms to go)\n",
+                  task.attempts(), task.elapsedMillis(),
+                  task.estimatedRemainingMillis());
+            } // try/catch
+          } // while
           pen.println();
           pen.println("Use nonce: " + b.getNonce());
           break;
@@ -191,6 +235,9 @@ public class BlockChainUI {
       } // switch
     } // while
 
+    if (log != null) {
+      log.close();
+    } // if
     pen.printf("\nGoodbye\n");
     eyes.close();
     pen.close();
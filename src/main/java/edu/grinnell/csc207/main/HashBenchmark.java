@@ -0,0 +1,106 @@
+package edu.grinnell.csc207.main;
+
+import edu.grinnell.csc207.blockchains.HashEngine;
+import edu.grinnell.csc207.blockchains.JcaHashEngine;
+import edu.grinnell.csc207.blockchains.NonceHasher;
+import edu.grinnell.csc207.blockchains.Sha256HashEngine;
+
+import java.io.PrintWriter;
+
+/**
+ * A simple benchmark that compares the speed of our hash engines.
+ *
+ * @author agent
+ */
+public class HashBenchmark {
+  // +-----------+---------------------------------------------------
+  // | Constants |
+  // +-----------+
+
+  /**
+   * The length of the prefix we hash by default: two ints, two short
+   * user names, and a 32-byte previous hash.
+   */
+  static final int DEFAULT_PREFIX = 4 + 8 + 8 + 4 + 32;
+
+  /**
+   * The number of milliseconds to spend on each engine in each round.
+   */
+  static final long MILLIS = 2000;
+
+  /**
+   * The number of rounds. The first is treated as a warm-up.
+   */
+  static final int ROUNDS = 3;
+
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Determine how many hashes an engine computes per second.
+   *
+   * @param engine
+   *   The engine to time.
+   * @param prefix
+   *   The prefix to hash.
+   *
+   * @return the number of hashes per second.
+   */
+  static double hashesPerSecond(HashEngine engine, byte[] prefix) {
+    NonceHasher hasher = engine.hasher(prefix);
+    int lanes = hasher.lanes();
+    byte[][] outs = new byte[lanes][NonceHasher.DIGEST];
+    long nonce = 0;
+    long start = System.nanoTime();
+    long stop = start + MILLIS * 1000000;
+    long now;
+    do {
+      for (int i = 0; i < 10000; i += lanes) {
+        if (lanes == 1) {
+          hasher.hash(nonce, outs[0]);
+        } else {
+          hasher.hashLanes(nonce, outs);
+        } // if/else
+        nonce += lanes;
+      } // for
+      now = System.nanoTime();
+    } while (now < stop);
+    return nonce * 1e9 / (now - start);
+  } // hashesPerSecond(HashEngine, byte[])
+
+  // +------+--------------------------------------------------------
+  // | Main |
+  // +------+
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *   Command-line arguments. The optional first argument gives the
+   *   length of the prefix to hash.
+   */
+  public static void main(String[] args) {
+    PrintWriter pen = new PrintWriter(System.out, true);
+    int length = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PREFIX;
+    byte[] prefix = new byte[length];
+    for (int i = 0; i < length; i++) {
+      prefix[i] = (byte) i;
+    } // for
+
+    HashEngine[] engines = new HashEngine[] {
+      new JcaHashEngine(),
+      new Sha256HashEngine(),
+      HashEngine.vectorized()
+    };
+    pen.printf("Hashing a %d-byte prefix plus an 8-byte nonce.\n", length);
+    for (int round = 0; round < ROUNDS; round++) {
+      for (HashEngine engine : engines) {
+        pen.printf("%s%-30s %,14.0f hashes/sec\n",
+            (round == 0) ? "(warm-up) " : "",
+            engine.name(), hashesPerSecond(engine, prefix));
+      } // for
+    } // for
+    pen.close();
+  } // main(String[])
+} // class HashBenchmark
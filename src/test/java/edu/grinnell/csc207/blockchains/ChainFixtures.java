@@ -0,0 +1,26 @@
+package edu.grinnell.csc207.blockchains;
+
+/**
+ * Chains that several of the tests share.
+ *
+ * @author agent
+ */
+public class ChainFixtures {
+  // +----------------+----------------------------------------------
+  // | Static methods |
+  // +----------------+
+
+  /**
+   * Build a small chain, in which Alpha starts with 100, gives Beta 10,
+   * and Beta gives Gamma 3.
+   *
+   * @return the chain.
+   */
+  static BlockChain smallChain() {
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.append(chain.mine(new Transaction("", "Alpha", 100)));
+    chain.append(chain.mine(new Transaction("Alpha", "Beta", 10)));
+    chain.append(chain.mine(new Transaction("Beta", "Gamma", 3)));
+    return chain;
+  } // smallChain()
+} // class ChainFixtures
@@ -7,6 +7,7 @@ import java.security.NoSuchAlgorithmException;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -228,6 +229,24 @@ public class TestBlock {
         "correct hash in validated block");
   } // validatedHashTest()
 
+  /**
+   * Ensure that mining with several threads gives a correct and valid
+   * hash.
+   */
+  @Test
+  public void parallelMiningTest() {
+    Transaction t = new Transaction("Para", "Llel", 4);
+    Hash ph = new Hash(new byte[] {4, 4, 4, 4});
+    HashValidator v = (h) -> (h.get(0) == 4) && (h.get(1) == 4);
+    Block b = new Block(4, t, ph, v, 4);
+    assertEquals(4, b.getNum(), "number of block mined in parallel");
+    assertEquals(t, b.getTransaction(), "transaction in parallel block");
+    assertEquals(ph, b.getPrevHash(), "previous hash in parallel block");
+    assertTrue(v.isValid(b.getHash()), "valid hash in parallel block");
+    assertArrayEquals(expectedHash(b), b.getHash().getBytes(),
+        "correct hash in parallel block");
+  } // parallelMiningTest()
+
   /**
    * Ensure that we can create the standard initial block.
    */
@@ -3,6 +3,7 @@ package edu.grinnell.csc207.blockchains;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -458,9 +459,280 @@ public class TestBlockChain {
     Iterator<Block> blocks = chain.blocks();
     blocks.next();
     blocks.next().transaction = new Transaction("", "F", 1000);
-    assertEquals(1010, chain.balance("F"), "F's balance in modified chain");
+    // Balances only follow blocks that are appended or removed.
+    assertEquals(110, chain.balance("F"), "F's balance in modified chain");
+    // Blocks cannot change once appended, so only a full audit notices.
+    assertTrue(chain.isCorrect(), "modified block was already verified");
+    try {
+      chain.checkAll();
+      fail("modified chain is incorrect");
+    } catch (Exception e) {
+      // Do nothing; we expect this.
+    } // try/catch
+    assertCheckFails(chain, "modified chain stays incorrect");
     assertFalse(chain.isCorrect(), "modified chain is incorrect");
-    assertCheckFails(chain, "modified chain is incorrect");
   } // testModifiedChain()
 
+  /**
+   * Test getting blocks by height, across several segments of the store.
+   */
+  @Test
+  public void testGetBlock() throws Exception {
+    BlockChain chain = new BlockChain((hash) -> true);
+    int n = 3 * SegmentedBlockStore.SEGMENT_SIZE + 5;
+    for (int i = 1; i < n; i++) {
+      chain.append(chain.mine(new Transaction("", "U" + i, i)));
+    } // for
+    assertEquals(n, chain.getSize(), "all appended");
+    Iterator<Block> blocks = chain.blocks();
+    for (int i = 0; i < n; i++) {
+      Block block = blocks.next();
+      assertEquals(i, block.getNum(), "block number");
+      assertTrue(block == chain.getBlock(i), "same block as iterator");
+    } // for
+    assertFalse(blocks.hasNext(), "no more blocks");
+    assertThrows(IndexOutOfBoundsException.class, () -> chain.getBlock(n));
+    assertThrows(IndexOutOfBoundsException.class, () -> chain.getBlock(-1));
+
+    // Roll back across a segment boundary and grow again.
+    for (int i = 0; i < SegmentedBlockStore.SEGMENT_SIZE + 10; i++) {
+      assertTrue(chain.removeLast(), "removed");
+    } // for
+    int size = n - SegmentedBlockStore.SEGMENT_SIZE - 10;
+    assertEquals(size, chain.getSize(), "after removing");
+    assertEquals(chain.getBlock(size - 1).getHash(), chain.getHash(),
+        "hash of last block");
+    assertThrows(IndexOutOfBoundsException.class,
+        () -> chain.getBlock(size));
+    chain.append(chain.mine(new Transaction("", "V", 1)));
+    assertEquals(size, chain.getBlock(size).getNum(), "new last block");
+    assertTrue(chain.isCorrect(), "chain is correct");
+  } // testGetBlock()
+
+  /**
+   * Make sure that the balances match a replay of the chain as we
+   * append and remove blocks.
+   */
+  @Test
+  public void testBalanceIndex() throws Exception {
+    BlockChain chain = new BlockChain((hash) -> true);
+    String[] users = {"A", "B", "C", "D"};
+    java.util.Random rand = new java.util.Random(207);
+    for (int i = 0; i < 500; i++) {
+      if ((chain.getSize() > 1) && (rand.nextInt(3) == 0)) {
+        chain.removeLast();
+      } else {
+        String source = (rand.nextInt(4) == 0) ? ""
+            : users[rand.nextInt(users.length)];
+        chain.append(chain.mine(new Transaction(source,
+            users[rand.nextInt(users.length)], rand.nextInt(100))));
+      } // if/else
+      for (String user : new String[] {"", "A", "B", "C", "D", "E"}) {
+        int expected = 0;
+        for (Transaction t : chain) {
+          if (user.equals(t.getSource())) {
+            expected -= t.getAmount();
+          } else if (user.equals(t.getTarget())) {
+            expected += t.getAmount();
+          } // if/else
+        } // for
+        assertEquals(expected, chain.balance(user), "balance of " + user);
+      } // for
+    } // for
+  } // testBalanceIndex()
+
+  /**
+   * Make sure that users come and go with the blocks that mention them.
+   */
+  @Test
+  public void testUsersAfterRemove() throws Exception {
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.append(chain.mine(new Transaction("", "A", 100)));
+    chain.append(chain.mine(new Transaction("A", "B", 10)));
+    chain.append(chain.mine(new Transaction("B", "C", 5)));
+    assertArrayEquals(new String[] {"A", "B", "C"}, users(chain), "A-C");
+    chain.removeLast();
+    assertArrayEquals(new String[] {"A", "B"}, users(chain), "A and B");
+    assertEquals(0, chain.balance("C"), "C is gone");
+    assertEquals(10, chain.balance("B"), "B kept the money");
+    chain.removeLast();
+    assertArrayEquals(new String[] {"A"}, users(chain), "just A");
+    chain.append(chain.mine(new Transaction("A", "C", 7)));
+    assertArrayEquals(new String[] {"A", "C"}, users(chain), "A and C");
+    assertEquals(2, chain.userCount(), "two users");
+    assertEquals(93, chain.balance("A"), "A's balance");
+    assertTrue(chain.isCorrect(), "chain is correct");
+  } // testUsersAfterRemove()
+
+  /**
+   * Make sure that users come in the order they first received
+   * something.
+   */
+  @Test
+  public void testUserOrder() throws Exception {
+    BlockChain chain = new BlockChain((hash) -> true);
+    assertEquals(0, chain.userCount(), "no users");
+    chain.append(chain.mine(new Transaction("", "D", 100)));
+    chain.append(chain.mine(new Transaction("D", "B", 10)));
+    chain.append(chain.mine(new Transaction("B", "D", 5)));
+    chain.append(chain.mine(new Transaction("D", "A", 10)));
+    chain.append(chain.mine(new Transaction("B", "C", 1)));
+    Iterator<String> users = chain.users();
+    for (String user : new String[] {"D", "B", "A", "C"}) {
+      assertEquals(user, users.next(), "next user");
+    } // for
+    assertFalse(users.hasNext(), "no more users");
+    assertEquals(4, chain.userCount(), "four users");
+    chain.removeLast();
+    chain.removeLast();
+    assertEquals(2, chain.userCount(), "two users after removal");
+  } // testUserOrder()
+
+  /**
+   * Make sure that check only verifies new blocks, and that removing
+   * verified blocks moves the watermark back.
+   */
+  @Test
+  public void testIncrementalCheck() throws Exception {
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.append(chain.mine(new Transaction("", "A", 100)));
+    chain.append(chain.mine(new Transaction("A", "B", 60)));
+    chain.check();
+    assertEquals(3, chain.verified, "all verified");
+
+    // Roll back below the watermark and spend the money again.
+    chain.removeLast();
+    assertEquals(2, chain.verified, "watermark moves back");
+    chain.append(chain.mine(new Transaction("A", "C", 70)));
+    chain.check();
+    assertEquals(3, chain.verified, "new block verified");
+    chain.append(chain.mine(new Transaction("A", "B", 40)));
+    assertCheckFails(chain, "A has only 30");
+    assertEquals(3, chain.verified, "bad block not verified");
+    chain.removeLast();
+    chain.append(chain.mine(new Transaction("C", "B", 70)));
+    chain.check();
+    chain.checkAll();
+    assertEquals(4, chain.verified, "everything verified");
+  } // testIncrementalCheck()
+
+  /**
+   * Make sure that checking a long chain in parallel reports the
+   * lowest problem, whether it's in the hashes or the balances.
+   */
+  @Test
+  public void testParallelCheck() throws Exception {
+    BlockChain chain = new BlockChain((hash) -> hash.get(0) != 99);
+    int n = 20 * ProofCheck.GRAIN;
+    for (int i = 1; i < n; i++) {
+      chain.append(chain.mine(new Transaction("", "U" + i, i)));
+    } // for
+    chain.checkAll();
+
+    // Break the hashes of two blocks; we should hear about the first.
+    chain.getBlock(900).transaction = new Transaction("", "X", 1);
+    chain.getBlock(1100).transaction = new Transaction("", "Y", 1);
+    Exception e = assertThrows(Exception.class, () -> chain.checkAll());
+    assertTrue(e.getMessage().startsWith("Incorrect hash in block 900:"),
+        e.getMessage());
+
+    // A bad balance before that comes first.
+    Block block = chain.getBlock(300);
+    block.transaction = new Transaction("U1", "X", 1000);
+    block.hash = chain.correctHash(block);
+    e = assertThrows(Exception.class, () -> chain.checkAll());
+    assertTrue(e.getMessage().startsWith("Insufficient balance for U1 in "
+        + "block 300:"), e.getMessage());
+
+    // Fixing that leaves the broken link at 301.
+    block.transaction = new Transaction("U1", "X", 1);
+    block.hash = chain.correctHash(block);
+    e = assertThrows(Exception.class, () -> chain.checkAll());
+    assertTrue(e.getMessage().startsWith("Invalid prevHash in block 301:"),
+        e.getMessage());
+  } // testParallelCheck()
+
+  /**
+   * Make sure that we can find blocks by hash and by user.
+   */
+  @Test
+  public void testIndexes() throws Exception {
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.append(chain.mine(new Transaction("", "A", 100)));
+    chain.append(chain.mine(new Transaction("A", "B", 10)));
+    assertEquals(0, chain.heightOf(chain.getBlock(0).getHash()), "initial");
+    assertEquals(2, chain.heightOf(chain.getHash()), "last");
+    assertArrayEquals(new int[] {1, 2}, chain.history("A"), "A's history");
+
+    // The indexes now follow appends and removes.
+    chain.append(chain.mine(new Transaction("B", "B", 5)));
+    chain.append(chain.mine(new Transaction("B", "C", 5)));
+    assertArrayEquals(new int[] {2, 3, 4}, chain.history("B"), "B");
+    assertArrayEquals(new int[] {4}, chain.history("C"), "C");
+    assertArrayEquals(new int[] {}, chain.history("D"), "D");
+    Hash last = chain.getHash();
+    assertEquals(4, chain.heightOf(last), "new last");
+    chain.removeLast();
+    assertEquals(-1, chain.heightOf(last), "removed");
+    assertArrayEquals(new int[] {}, chain.history("C"), "C is gone");
+    assertArrayEquals(new int[] {2, 3}, chain.history("B"), "B");
+    chain.append(chain.mine(new Transaction("A", "C", 1)));
+    assertArrayEquals(new int[] {1, 2, 4}, chain.history("A"), "A again");
+    assertArrayEquals(new int[] {4}, chain.history("C"), "C again");
+    for (int height = 0; height < chain.getSize(); height++) {
+      assertEquals(height, chain.heightOf(chain.getBlock(height).getHash()),
+          "height " + height);
+    } // for
+  } // testIndexes()
+
+  /**
+   * Can we read the chain while another thread changes it?
+   */
+  @Test
+  public void testConcurrentReaders() throws Exception {
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.append(chain.mine(new Transaction("", "A", 100)));
+    Block give = chain.mine(new Transaction("A", "B", 1));
+    AtomicReference<String> problem = new AtomicReference<String>();
+    Thread[] readers = new Thread[4];
+    for (int r = 0; r < readers.length; r++) {
+      readers[r] = new Thread(() -> {
+        for (int i = 0; (i < 20000) && (problem.get() == null); i++) {
+          int a = chain.balance("A");
+          if ((a != 100) && (a != 99)) {
+            problem.set("A has " + a);
+          } // if
+          Iterator<Block> blocks = chain.blocks();
+          Hash prev = blocks.next().getHash();
+          int count = 1;
+          while (blocks.hasNext()) {
+            Block block = blocks.next();
+            if (!block.getPrevHash().equals(prev)) {
+              problem.set("broken link at " + count);
+            } // if
+            prev = block.getHash();
+            count++;
+          } // while
+          if ((count < 2) || (count > 3)) {
+            problem.set(count + " blocks");
+          } // if
+          if (chain.userCount() < 1) {
+            problem.set("no users");
+          } // if
+        } // for
+      });
+      readers[r].start();
+    } // for
+    for (int i = 0; i < 5000; i++) {
+      chain.append(give);
+      chain.removeLast();
+    } // for
+    for (Thread reader : readers) {
+      reader.join();
+    } // for
+    assertEquals(null, problem.get(), "readers saw a consistent chain");
+    assertEquals(100, chain.balance("A"), "A at the end");
+    chain.checkAll();
+  } // testConcurrentReaders()
+
 } // class TestBlockChain
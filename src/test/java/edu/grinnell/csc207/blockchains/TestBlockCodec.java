@@ -0,0 +1,117 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Some simple tests of the block codec.
+ *
+ * @author agent
+ */
+public class TestBlockCodec {
+  /**
+   * Do varints survive the trip, including the extremes?
+   */
+  @Test
+  public void testVarints() {
+    int[] values = {0, 1, 127, 128, 300, -1, -64, 65, Integer.MAX_VALUE,
+        Integer.MIN_VALUE};
+    ByteBuffer buffer = ByteBuffer.allocate(200);
+    for (int value : values) {
+      BlockCodec.putVarint(buffer, value);
+      BlockCodec.putSignedVarint(buffer, value);
+    } // for
+    buffer.flip();
+    for (int value : values) {
+      assertEquals(value, BlockCodec.getVarint(buffer), "unsigned " + value);
+      assertEquals(value, BlockCodec.getSignedVarint(buffer),
+          "signed " + value);
+    } // for
+    buffer.clear();
+    BlockCodec.putSignedVarint(buffer, -1);
+    assertEquals(1, buffer.position(), "small negatives are short");
+  } // testVarints()
+
+  /**
+   * Do the blocks of a chain survive the trip, and are they much
+   * smaller than their text?
+   */
+  @Test
+  public void testChain() {
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.append(chain.mine(new Transaction("", "Alexandra", 1000)));
+    chain.append(chain.mine(new Transaction("Alexandra", "Bartholomew", 5)));
+    chain.append(chain.mine(new Transaction("Bartholomew", "Alexandra", 2)));
+    chain.append(chain.mine(new Transaction("Alexandra", "Bartholomew", -3)));
+    BlockCodec encoder = new BlockCodec();
+    BlockCodec decoder = new BlockCodec();
+    for (int height = 0; height < chain.getSize(); height++) {
+      Block block = chain.getBlock(height);
+      byte[] bytes = encoder.encode(block);
+      Block copy = decoder.decode(bytes);
+      TestBlockLog.assertSameBlock(block, copy);
+      if (height >= 3) {
+        assertTrue(3 * bytes.length < block.toString().length(),
+            "block " + height + " is small (" + bytes.length + " bytes)");
+      } // if
+    } // for
+    assertEquals(3, decoder.names(), "names");
+  } // testChain()
+
+  /**
+   * Do repeated names come back as the same string?
+   */
+  @Test
+  public void testDictionary() {
+    BlockCodec encoder = new BlockCodec();
+    BlockCodec decoder = new BlockCodec();
+    ByteBuffer buffer = ByteBuffer.allocate(100);
+    encoder.putTransaction(buffer, new Transaction("", "Ada", 5));
+    encoder.putTransaction(buffer, new Transaction("Ada", "Ada", 1));
+    buffer.flip();
+    Transaction first = decoder.getTransaction(buffer);
+    Transaction second = decoder.getTransaction(buffer);
+    assertSame(first.getTarget(), second.getSource(), "shared source");
+    assertSame(first.getTarget(), second.getTarget(), "shared target");
+
+    // Forgetting names lets us give their ids to other names.
+    encoder.forget(1);
+    decoder.forget(1);
+    buffer.clear();
+    encoder.putTransaction(buffer, new Transaction("", "Grace", 5));
+    buffer.flip();
+    assertEquals(new Transaction("", "Grace", 5),
+        decoder.getTransaction(buffer), "new name");
+  } // testDictionary()
+
+  /**
+   * Do we reject bytes that are not blocks?
+   */
+  @Test
+  public void testBad() {
+    BlockCodec codec = new BlockCodec();
+    assertThrows(IllegalArgumentException.class,
+        () -> codec.decode(new byte[] {1, 0}), "unknown name");
+    assertThrows(IllegalArgumentException.class,
+        () -> codec.decode(new byte[] {1, 1, 5, 65}), "truncated");
+    assertThrows(IllegalArgumentException.class,
+        () -> new BlockCodec().decode(new byte[] {1, 1, -1, -1, -1, -1, 15}),
+        "negative name length");
+    assertThrows(IllegalArgumentException.class,
+        () -> new BlockCodec().decode(new byte[] {1, 1, 1, 65, 0, 0, 4}),
+        "unknown flags");
+    assertThrows(IllegalArgumentException.class,
+        () -> new BlockCodec().decode(
+            new byte[] {1, 1, 1, 65, 0, 0, 1, -1, -1, -1, -1, 15}),
+        "negative hash length");
+    assertThrows(IllegalArgumentException.class,
+        () -> new BlockCodec().decode(new byte[] {1, 1, 1, 65, 0, 0, 1, 100}),
+        "truncated hash");
+  } // testBad()
+} // class TestBlockCodec
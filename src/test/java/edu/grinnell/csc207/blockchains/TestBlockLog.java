@@ -0,0 +1,669 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Some simple tests of block logs.
+ *
+ * @author agent
+ */
+public class TestBlockLog {
+  /**
+   * A place for log files.
+   */
+  @TempDir
+  Path dir;
+
+  /**
+   * Make sure that two blocks have the same contents.
+   *
+   * @param expected
+   *   The block we expect.
+   * @param actual
+   *   The block we got.
+   */
+  static void assertSameBlock(Block expected, Block actual) {
+    assertEquals(expected.getNum(), actual.getNum(), "num");
+    assertEquals(expected.getTransaction(), actual.getTransaction(),
+        "transaction");
+    assertEquals(expected.getPrevHash(), actual.getPrevHash(), "prevHash");
+    assertEquals(expected.getNonce(), actual.getNonce(), "nonce");
+    assertEquals(expected.getHash(), actual.getHash(), "hash");
+  } // assertSameBlock(Block, Block)
+
+  /**
+   * Flip the low bit of one byte of a file.
+   *
+   * @param file
+   *   The file.
+   * @param position
+   *   Where the byte is.
+   */
+  static void flip(Path file, long position) throws IOException {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer b = ByteBuffer.allocate(1);
+      channel.read(b, position);
+      b.put(0, (byte) (b.get(0) ^ 1));
+      channel.write(b.rewind(), position);
+    } // try
+  } // flip(Path, long)
+
+  /**
+   * Do blocks survive closing and reopening the log?
+   */
+  @Test
+  public void testRoundTrip() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    try (BlockLog log = new BlockLog(file)) {
+      chain.attach(log);
+      assertEquals(4, log.size(), "initial size");
+      chain.append(chain.mine(new Transaction("Alpha", "Delta", 1)));
+    } // try
+    try (BlockLog log = new BlockLog(file)) {
+      assertEquals(5, log.size(), "size after reopening");
+      for (int height = 0; height < 5; height++) {
+        assertSameBlock(chain.getBlock(height), log.get(height));
+      } // for
+    } // try
+  } // testRoundTrip()
+
+  /**
+   * Does removing blocks truncate the log, whether or not the blocks
+   * have been committed?
+   */
+  @Test
+  public void testRemove() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    try (BlockLog log = new BlockLog(file, 2)) {
+      chain.attach(log);
+      long committed = Files.size(file);
+      chain.append(chain.mine(new Transaction("Alpha", "Delta", 1)));
+      chain.removeLast();
+      chain.removeLast();
+      log.commit();
+      assertTrue(Files.size(file) < committed, "truncated");
+      chain.append(chain.mine(new Transaction("Alpha", "Beta", 2)));
+    } // try
+    try (BlockLog log = new BlockLog(file)) {
+      assertEquals(4, log.size(), "size after reopening");
+      assertEquals(new Transaction("Alpha", "Beta", 2),
+          log.get(3).getTransaction(), "last transaction");
+    } // try
+  } // testRemove()
+
+  /**
+   * Do changes get committed once they have waited long enough, even
+   * if the batch never fills?
+   */
+  @Test
+  public void testMaxDelay() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    try (BlockLog log = new BlockLog(file)) {
+      log.setMaxDelay(20);
+      chain.attach(log);
+      long committed = Files.size(file);
+      chain.append(chain.mine(new Transaction("Alpha", "Delta", 1)));
+      int waiting = 1;
+      for (int i = 0; (i < 500) && (waiting > 0); i++) {
+        Thread.sleep(10);
+        synchronized (log) {
+          waiting = log.uncommitted;
+        } // synchronized
+      } // for
+      assertEquals(0, waiting, "nothing waiting");
+      assertTrue(Files.size(file) > committed, "committed by the timer");
+
+      // Once the delay has passed, the next change commits at once.
+      log.setMaxDelay(60_000);
+      chain.append(chain.mine(new Transaction("Alpha", "Delta", 2)));
+      log.oldest -= log.delay;
+      chain.append(chain.mine(new Transaction("Alpha", "Delta", 3)));
+      assertEquals(0, log.uncommitted, "committed by the change");
+    } // try
+  } // testMaxDelay()
+
+  /**
+   * Do a chain and its log stay in step when a commit fails?
+   */
+  @Test
+  public void testFailedCommit() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    try (BlockLog log = new BlockLog(file, 1)) {
+      chain.attach(log);
+      FileChannel channel = log.channel;
+      log.channel = FileChannel.open(file, StandardOpenOption.READ);
+      log.channel.close();
+      Block block = chain.mine(new Transaction("Alpha", "Delta", 1));
+      assertThrows(UncheckedIOException.class, () -> chain.append(block));
+      assertEquals(chain.getSize(), log.size(), "in step after append");
+      assertThrows(UncheckedIOException.class, () -> chain.removeLast());
+      assertEquals(chain.getSize(), log.size(), "in step after removal");
+      log.channel = channel;
+      chain.append(chain.mine(new Transaction("Alpha", "Delta", 2)));
+    } // try
+    BlockChain copy = new BlockChain((hash) -> true);
+    try (BlockLog log = new BlockLog(file)) {
+      copy.attach(log);
+      assertEquals(5, copy.getSize(), "size after reopening");
+      assertEquals(2, copy.balance("Delta"), "Delta");
+    } // try
+  } // testFailedCommit()
+
+  /**
+   * Does closing a log report changes that it could not commit because
+   * its file was already closed?
+   */
+  @Test
+  public void testLostChanges() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    BlockLog log = new BlockLog(file);
+    chain.attach(log);
+    chain.append(chain.mine(new Transaction("Alpha", "Delta", 1)));
+    log.channel.close();
+    assertThrows(IOException.class, () -> log.close());
+  } // testLostChanges()
+
+  /**
+   * Does reopening a log drop a partial record at the end?
+   */
+  @Test
+  public void testTornTail() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    try (BlockLog log = new BlockLog(file)) {
+      chain.attach(log);
+    } // try
+    long whole = Files.size(file);
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.WRITE)) {
+      channel.truncate(whole - 5);
+    } // try
+    try (BlockLog log = new BlockLog(file)) {
+      assertEquals(3, log.size(), "last record dropped");
+      assertThrows(IndexOutOfBoundsException.class, () -> log.get(3));
+    } // try
+    assertTrue(Files.size(file) < whole - 5, "partial record removed");
+  } // testTornTail()
+
+  /**
+   * Can we rebuild a chain from its log?
+   */
+  @Test
+  public void testLoad() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain original = ChainFixtures.smallChain();
+    try (BlockLog log = new BlockLog(file)) {
+      original.attach(log);
+    } // try
+    BlockChain copy = new BlockChain((hash) -> true);
+    try (BlockLog log = new BlockLog(file)) {
+      copy.attach(log);
+      assertEquals(original.getSize(), copy.getSize(), "size");
+      assertEquals(original.getHash(), copy.getHash(), "hash");
+      assertEquals(90, copy.balance("Alpha"), "Alpha");
+      assertEquals(7, copy.balance("Beta"), "Beta");
+      assertEquals(3, copy.balance("Gamma"), "Gamma");
+      assertTrue(copy.isCorrect(), "correct");
+      assertThrows(IllegalStateException.class,
+          () -> original.attach(log));
+    } // try
+  } // testLoad()
+
+  /**
+   * Do we refuse to load a log with a bad block?
+   */
+  @Test
+  public void testLoadBad() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    try (BlockLog log = new BlockLog(file)) {
+      chain.attach(log);
+    } // try
+    BlockChain strict = new BlockChain((hash) -> hash.get(0) == 1);
+    try (BlockLog log = new BlockLog(file)) {
+      assertThrows(IllegalArgumentException.class, () -> strict.attach(log));
+    } // try
+  } // testLoadBad()
+
+  /**
+   * Can we reopen a log that is too big to read all at once?
+   */
+  @Test
+  public void testLarge() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = new BlockChain((hash) -> true);
+    try (BlockLog log = new BlockLog(file)) {
+      chain.attach(log);
+      chain.append(chain.mine(new Transaction("", "A", 5000)));
+      for (int i = 0; i < 2000; i++) {
+        chain.append(chain.mine(new Transaction("A", "User" + i, 1)));
+      } // for
+    } // try
+    assertTrue(Files.size(file) > 2 * BlockLog.READ_SIZE, "large");
+    BlockChain copy = new BlockChain((hash) -> true);
+    try (BlockLog log = new BlockLog(file)) {
+      copy.attach(log, true);
+      assertEquals(chain.getHash(), copy.getHash(), "last hash");
+      assertEquals(3000, copy.balance("A"), "A");
+      assertEquals(2001, copy.userCount(), "users");
+    } // try
+  } // testLarge()
+
+  /**
+   * Can we load a log without hashing, and verify it later?
+   */
+  @Test
+  public void testTrustedLoad() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    HashValidator v = (hash) -> hash.get(0) == 0;
+    BlockChain original = new BlockChain(v);
+    original.append(original.mine(new Transaction("", "Alpha", 100)));
+    original.append(original.mine(new Transaction("Alpha", "Beta", 10)));
+    try (BlockLog log = new BlockLog(file)) {
+      original.attach(log);
+    } // try
+
+    BlockChain copy = new BlockChain(v);
+    try (BlockLog log = new BlockLog(file)) {
+      copy.attach(log, true);
+      assertEquals(0, copy.verified, "nothing verified yet");
+      assertEquals(90, copy.balance("Alpha"), "Alpha");
+      copy.verifyInBackground().get();
+      assertEquals(3, copy.verified, "verified in the background");
+      assertTrue(copy.isCorrect(), "correct");
+    } // try
+
+    // A trusted load takes a bad hash as it is, but the verifier
+    // finds it.
+    original.getBlock(2).hash = new Hash(new byte[] {1, 2, 3});
+    Files.delete(file);
+    try (BlockLog log = new BlockLog(file)) {
+      original.attach(log);
+    } // try
+    BlockChain trusting = new BlockChain(v);
+    try (BlockLog log = new BlockLog(file)) {
+      trusting.attach(log, true);
+      assertEquals(3, trusting.getSize(), "loaded");
+      assertThrows(ExecutionException.class,
+          () -> trusting.verifyInBackground().get());
+      assertEquals(0, trusting.verified, "still unverified");
+    } // try
+    BlockChain careful = new BlockChain(v);
+    try (BlockLog log = new BlockLog(file)) {
+      assertThrows(IllegalArgumentException.class, () -> careful.attach(log));
+    } // try
+  } // testTrustedLoad()
+
+  /**
+   * Do we save ledgers as we go, start from them when we load, and fall
+   * back to earlier ones when blocks go away?
+   */
+  @Test
+  public void testCheckpoints() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.checkpointInterval = 4;
+    try (BlockLog log = new BlockLog(file)) {
+      chain.attach(log);
+      chain.append(chain.mine(new Transaction("", "A", 100)));
+      for (int i = 0; i < 9; i++) {
+        chain.append(chain.mine(new Transaction("A", "B", 1)));
+      } // for
+    } // try
+    LedgerCheckpoints checkpoints = new LedgerCheckpoints(file);
+    assertArrayEquals(new int[] {8, 4}, checkpoints.heights(), "saved");
+
+    // Doctor the latest checkpoint, so that we can tell if it is used.
+    Ledger doctored = checkpoints.load(8, chain.getBlock(7).getHash());
+    doctored.adjust(doctored.find("A"), 1000);
+    checkpoints.save(8, chain.getBlock(7).getHash(), doctored);
+
+    BlockChain copy = new BlockChain((hash) -> true);
+    copy.checkpointInterval = 4;
+    try (BlockLog log = new BlockLog(file)) {
+      copy.attach(log, true);
+      assertEquals(11, copy.getSize(), "size");
+      assertEquals(1091, copy.balance("A"), "A, from the checkpoint");
+      assertEquals(9, copy.balance("B"), "B");
+      assertEquals(2, copy.userCount(), "users");
+      for (int i = 0; i < 4; i++) {
+        copy.removeLast();
+      } // for
+    } // try
+    assertArrayEquals(new int[] {4}, checkpoints.heights(), "discarded");
+
+    BlockChain again = new BlockChain((hash) -> true);
+    try (BlockLog log = new BlockLog(file)) {
+      again.attach(log, true);
+      assertEquals(7, again.getSize(), "size");
+      assertEquals(95, again.balance("A"), "A, replayed from 4");
+      assertEquals(5, again.balance("B"), "B");
+      assertTrue(again.isCorrect(), "correct");
+    } // try
+  } // testCheckpoints()
+
+  /**
+   * Does loading a chain from a mapped log start at the latest
+   * checkpoint, without reading the blocks before it?
+   */
+  @Test
+  public void testMappedCheckpoints() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.checkpointInterval = 4;
+    long early;
+    try (BlockLog log = BlockLog.mapped(file)) {
+      chain.attach(log);
+      chain.append(chain.mine(new Transaction("", "A", 100)));
+      for (int i = 0; i < 9; i++) {
+        chain.append(chain.mine(new Transaction("A", "B", 1)));
+      } // for
+      early = log.offset(3) + Integer.BYTES;
+    } // try
+
+    // Damage a block below the checkpoint, so that we notice if we
+    // read it.
+    flip(file, early);
+    BlockChain copy = new BlockChain((hash) -> true);
+    copy.checkpointInterval = 4;
+    try (BlockLog log = BlockLog.mapped(file)) {
+      copy.attach(log, true);
+      assertEquals(11, copy.getSize(), "size");
+      assertEquals(91, copy.balance("A"), "A");
+      assertEquals(9, copy.balance("B"), "B");
+      assertThrows(UncheckedIOException.class, () -> log.get(3));
+    } // try
+  } // testMappedCheckpoints()
+
+  /**
+   * Can we keep a chain in a mapped log, reading blocks back as we need
+   * them and caching only a few?
+   */
+  @Test
+  public void testMapped() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = new BlockChain((hash) -> true);
+    chain.checkpointInterval = 64;
+    try (BlockLog log = BlockLog.mapped(file, 16, 8)) {
+      chain.attach(log);
+      assertTrue(chain.store instanceof MappedBlockStore, "mapped store");
+      chain.append(chain.mine(new Transaction("", "A", 500)));
+      for (int i = 0; i < 200; i++) {
+        chain.append(chain.mine(new Transaction("A", "User" + (i % 7), 1)));
+      } // for
+      assertTrue(log.cache.size() <= 8, "cache bounded");
+      assertTrue(chain.isCorrect(), "correct");
+      assertEquals(202, log.size(), "size");
+    } // try
+    assertTrue(Files.size(BlockLog.indexFile(file)) > 0, "index file");
+
+    BlockChain copy = new BlockChain((hash) -> true);
+    copy.checkpointInterval = 64;
+    try (BlockLog log = BlockLog.mapped(file, 16, 8)) {
+      copy.attach(log, true);
+      assertEquals(202, copy.getSize(), "size after reopening");
+      assertEquals(300, copy.balance("A"), "A");
+      assertEquals(29, copy.balance("User0"), "User0");
+      assertEquals(8, copy.userCount(), "users");
+      Iterator<Block> blocks = copy.blocks();
+      for (int height = 0; height < 202; height++) {
+        assertSameBlock(log.get(height), blocks.next());
+      } // for
+      assertFalse(blocks.hasNext(), "no more blocks");
+      assertTrue(log.cache.size() <= 8, "cache still bounded");
+      assertEquals(0, copy.verified, "nothing verified yet");
+      assertTrue(copy.isCorrect(), "correct");
+      assertEquals(201, copy.heightOf(copy.getHash()), "heightOf");
+      assertEquals(1, copy.heightOf(copy.getBlock(1).getHash()),
+          "heightOf, early");
+      assertEquals(29, copy.history("User0").length, "history");
+      assertEquals(null, copy.index, "no index in memory");
+    } // try
+
+    BlockChain careful = new BlockChain((hash) -> true);
+    try (BlockLog log = BlockLog.mapped(file)) {
+      careful.attach(log);
+      assertEquals(202, careful.getSize(), "size, checked");
+      assertEquals(300, careful.balance("A"), "A, checked");
+    } // try
+  } // testMapped()
+
+  /**
+   * Do removals from a mapped log reach the file, and do snapshots
+   * notice when their blocks go away?
+   */
+  @Test
+  public void testMappedRemove() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    try (BlockLog log = BlockLog.mapped(file, 2, 2)) {
+      chain.attach(log);
+      ChainSnapshot before = chain.snapshot();
+      chain.removeLast();
+      chain.append(chain.mine(new Transaction("Beta", "Delta", 4)));
+      assertEquals(new Transaction("Alpha", "Beta", 10),
+          before.getBlock(2).getTransaction(), "unchanged block");
+      assertThrows(IllegalStateException.class, () -> before.getBlock(3));
+      assertEquals(3, before.balance("Gamma"), "balances unchanged");
+      assertEquals(4, chain.balance("Delta"), "Delta");
+    } // try
+    try (BlockLog log = BlockLog.mapped(file)) {
+      assertEquals(4, log.size(), "size after reopening");
+      assertEquals(new Transaction("Beta", "Delta", 4),
+          log.get(3).getTransaction(), "last transaction");
+    } // try
+  } // testMappedRemove()
+
+  /**
+   * Does reopening a mapped log keep the index from the last time,
+   * reading only the records after it, and rebuild the index when it
+   * no longer fits the log?
+   */
+  @Test
+  public void testSavedIndex() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    Path index = BlockLog.indexFile(file);
+    BlockChain chain = ChainFixtures.smallChain();
+    long middle;
+    try (BlockLog log = BlockLog.mapped(file)) {
+      chain.attach(log);
+      middle = log.offset(2) + Integer.BYTES;
+    } // try
+
+    // Reading every record would stop at the damage in the middle.
+    flip(file, middle);
+    try (BlockLog log = BlockLog.mapped(file)) {
+      assertEquals(4, log.size(), "size from the saved index");
+      assertEquals(4, log.codec.names(), "names from the saved index");
+      assertSameBlock(chain.getBlock(3), log.get(3));
+      log.append(chain.mine(new Transaction("Gamma", "Delta", 1)));
+    } // try
+    flip(file, middle);
+
+    // A log that keeps no index adds a block, which is all we read.
+    try (BlockLog log = new BlockLog(file)) {
+      assertEquals(5, log.size(), "size, read in full");
+      log.append(chain.mine(new Transaction("Delta", "Alpha", 1)));
+    } // try
+    try (BlockLog log = BlockLog.mapped(file)) {
+      assertEquals(6, log.size(), "size with the tail");
+      assertEquals(5, log.codec.names(), "names with the tail");
+      assertEquals(new Transaction("Delta", "Alpha", 1),
+          log.get(5).getTransaction(), "block from the tail");
+    } // try
+
+    // Once the blocks the index covers change, we rebuild it.
+    try (BlockLog log = new BlockLog(file)) {
+      log.removeLast();
+      log.removeLast();
+      log.append(chain.mine(new Transaction("Gamma", "Epsilon", 1)));
+    } // try
+    try (BlockLog log = BlockLog.mapped(file)) {
+      assertEquals(5, log.size(), "size, rebuilt");
+      assertEquals(new Transaction("Gamma", "Epsilon", 1),
+          log.get(4).getTransaction(), "replaced block");
+    } // try
+
+    // As we do if the footer is damaged.
+    flip(index, Files.size(index) - 1);
+    try (BlockLog log = BlockLog.mapped(file)) {
+      assertEquals(5, log.size(), "size, rebuilt again");
+      assertSameBlock(chain.getBlock(3), log.get(3));
+    } // try
+
+    // Or if we never closed the log, since the index may be half done.
+    BlockLog crashed = BlockLog.mapped(file);
+    crashed.append(chain.mine(new Transaction("Epsilon", "Alpha", 1)));
+    crashed.commit();
+    crashed.channel.close();
+    crashed.indexChannel.close();
+    try (BlockLog log = BlockLog.mapped(file)) {
+      assertEquals(6, log.size(), "size after a crash");
+      assertEquals(new Transaction("Epsilon", "Alpha", 1),
+          log.get(5).getTransaction(), "block from before the crash");
+    } // try
+  } // testSavedIndex()
+
+  /**
+   * Does a chain in a mapped log find blocks by hash and by user as a
+   * chain in memory does, as blocks come and go and from one run to
+   * the next?
+   */
+  @Test
+  public void testMappedLookups() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = new BlockChain((hash) -> true);
+    BlockChain twin = new BlockChain((hash) -> true);
+    String[] users = {"A", "B", "C", "D", "E"};
+    try (BlockLog log = BlockLog.mapped(file, 16, 8)) {
+      // Start both chains from the same initial block.
+      log.append(twin.getBlock(0));
+      chain.attach(log);
+      for (int i = 0; i < 700; i++) {
+        Block block = chain.mine(new Transaction(users[i % 5],
+            users[(i * 3) % 5], 0));
+        chain.append(block);
+        twin.append(block);
+        if (i % 10 == 9) {
+          // Take back the last two and write a different one.
+          chain.removeLast();
+          chain.removeLast();
+          twin.removeLast();
+          twin.removeLast();
+          Block other = chain.mine(new Transaction("F", users[i % 5], 0));
+          chain.append(other);
+          twin.append(other);
+        } // if
+      } // for
+      assertTrue(log.table.capacity > HeightTable.MIN_CAPACITY, "grown");
+      assertLookups(twin, chain, "while open");
+      assertEquals(-1, chain.heightOf(chain.mine(
+          new Transaction("A", "B", 0)).getHash()), "missing hash");
+      assertEquals(0, chain.history("Nobody").length, "nobody");
+    } // try
+
+    BlockChain copy = new BlockChain((hash) -> true);
+    try (BlockLog log = BlockLog.mapped(file, 16, 8)) {
+      copy.attach(log, true);
+      assertEquals(twin.getSize(), copy.getSize(), "size");
+      assertLookups(twin, copy, "after reopening");
+      copy.removeLast();
+      twin.removeLast();
+      assertLookups(twin, copy, "after removing");
+    } // try
+  } // testMappedLookups()
+
+  /**
+   * Make sure that two chains find the same blocks by hash and by user.
+   *
+   * @param expected
+   *   The chain whose answers we expect.
+   * @param actual
+   *   The chain whose answers we check.
+   * @param when
+   *   When we check, for the messages.
+   */
+  static void assertLookups(BlockChain expected, BlockChain actual,
+      String when) {
+    for (int height = 0; height < expected.getSize(); height++) {
+      Hash hash = expected.getBlock(height).getHash();
+      assertEquals(height, actual.heightOf(hash),
+          "heightOf " + height + ", " + when);
+    } // for
+    for (String user : new String[] {"", "A", "B", "C", "D", "E", "F"}) {
+      assertArrayEquals(expected.history(user), actual.history(user),
+          "history of '" + user + "', " + when);
+    } // for
+  } // assertLookups(BlockChain, BlockChain, String)
+
+  /**
+   * Can other threads read blocks from a mapped log while the chain
+   * adds and removes them?
+   */
+  @Test
+  public void testMappedReaders() throws Exception {
+    Path file = this.dir.resolve("chain.log");
+    BlockChain chain = ChainFixtures.smallChain();
+    AtomicReference<Throwable> problem = new AtomicReference<Throwable>();
+    AtomicBoolean done = new AtomicBoolean(false);
+    try (BlockLog log = BlockLog.mapped(file, 4, 2)) {
+      chain.attach(log);
+      Thread reader = new Thread(() -> {
+        try {
+          while (!done.get()) {
+            ChainSnapshot snapshot = chain.snapshot();
+            for (int height = snapshot.getSize() - 1; height >= 0; height--) {
+              try {
+                assertEquals(height, snapshot.getBlock(height).getNum(),
+                    "num");
+              } catch (IllegalStateException e) {
+                // The chain removed the block after we took the snapshot.
+              } // try/catch
+            } // for
+          } // while
+        } catch (Throwable e) {
+          problem.set(e);
+        } // try/catch
+      });
+      reader.start();
+      for (int i = 0; i < 100; i++) {
+        chain.append(chain.mine(new Transaction("Alpha", "User" + i, 0)));
+        if (i % 3 == 0) {
+          chain.removeLast();
+        } // if
+      } // for
+      done.set(true);
+      reader.join();
+      assertEquals(null, problem.get(), "reader problem");
+      assertEquals(70, log.size(), "size");
+      assertTrue(chain.isCorrect(), "correct");
+    } // try
+  } // testMappedReaders()
+} // class TestBlockLog
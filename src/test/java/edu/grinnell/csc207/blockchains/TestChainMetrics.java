@@ -0,0 +1,91 @@
+package edu.grinnell.csc207.blockchains;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Some simple tests of our ChainMetrics and LatencyHistogram classes.
+ *
+ * @author agent
+ */
+public class TestChainMetrics {
+  /**
+   * Make sure that the histogram keeps track of latencies.
+   */
+  @Test
+  public void testHistogram() {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.count(), "empty histogram");
+    assertEquals(0, h.percentileNanos(50), "median of empty histogram");
+    for (int i = 1; i <= 100; i++) {
+      h.record(i * 1000);
+    } // for
+    assertEquals(100, h.count(), "count");
+    assertEquals(5050000, h.totalNanos(), "total");
+    assertEquals(50500.0, h.meanNanos(), 0.001, "mean");
+    assertEquals(100000, h.maxNanos(), "max");
+    long median = h.percentileNanos(50);
+    assertTrue((median >= 50000) && (median < 100000), "median in range");
+    assertEquals(100000, h.percentileNanos(100), "p100 is the max");
+  } // testHistogram()
+
+  /**
+   * Make sure that a chain records what happens.
+   */
+  @Test
+  public void testChainMetrics() throws Exception {
+    HashValidator v = (h) -> (h.get(0) == 1);
+    ChainMetrics metrics = new ChainMetrics();
+    BlockChain chain = new BlockChain(v, 2, Block.ENGINE, metrics);
+    chain.append(chain.mine(new Transaction("", "A", 10)));
+    chain.append(chain.mine(new Transaction("A", "B", 5)));
+    chain.check();
+
+    assertEquals(3, metrics.blocksMined(), "blocks mined");
+    assertEquals(3, metrics.miningLatency().count(), "mining latencies");
+    assertEquals(2, metrics.appendLatency().count(), "append latencies");
+    assertEquals(1, metrics.checkLatency().count(), "check latencies");
+    assertTrue(metrics.hashes() >= 3, "hashes");
+    assertTrue(metrics.rejections() <= metrics.hashes() - 3, "rejections");
+    assertTrue(metrics.hashesPerSecond() > 0, "hash rate");
+
+    // A rejected block should count as a rejection.
+    Block block = chain.mine(new Transaction("A", "B", 1));
+    long rejections = metrics.rejections();
+    block.hash = new Hash(new byte[] {0});
+    try {
+      chain.append(block);
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    } // try/catch
+    assertEquals(rejections + 1, metrics.rejections(), "append rejection");
+    assertEquals(3, metrics.appendLatency().count(), "failed append timed");
+  } // testChainMetrics()
+
+  /**
+   * Make sure that cancelled mining counts toward the hash rate, since
+   * its hashes count too.
+   */
+  @Test
+  public void testCancelledMining() throws Exception {
+    ChainMetrics metrics = new ChainMetrics();
+    BlockChain chain = new BlockChain((h) -> true, 2, Block.ENGINE,
+        metrics);
+    long mined = metrics.mining.totalNanos();
+    long timed = metrics.miningNanos.sum();
+    chain.validator = (h) -> false;
+    MiningTask task = chain.mineAsync(new Transaction("", "A", 10));
+    Thread.sleep(100);
+    task.cancel();
+    for (int i = 0; (i < 100) && (metrics.miningNanos.sum() == timed); i++) {
+      Thread.sleep(10);
+    } // for
+    assertEquals(1, metrics.blocksMined(), "only the initial block");
+    assertTrue(metrics.miningNanos.sum() > timed, "cancelled mining timed");
+    assertTrue(metrics.hashesPerSecond()
+        < metrics.hashes() * 1e9 / mined, "rate not inflated");
+  } // testCancelledMining()
+} // class TestChainMetrics
@@ -0,0 +1,144 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of chain snapshots.
+ *
+ * @author agent
+ */
+public class TestChainSnapshot {
+  /**
+   * Does a snapshot stay put as the chain changes?
+   */
+  @Test
+  public void testStable() throws Exception {
+    BlockChain chain = ChainFixtures.smallChain();
+    ChainSnapshot snap = chain.snapshot();
+    Hash hash = chain.getHash();
+    chain.append(chain.mine(new Transaction("Beta", "Delta", 5)));
+    chain.removeLast();
+    chain.removeLast();
+    chain.append(chain.mine(new Transaction("Alpha", "Epsilon", 7)));
+
+    assertEquals(4, snap.getSize(), "size");
+    assertEquals(hash, snap.getHash(), "hash");
+    assertEquals(90, snap.balance("Alpha"), "Alpha");
+    assertEquals(7, snap.balance("Beta"), "Beta");
+    assertEquals(3, snap.balance("Gamma"), "Gamma");
+    assertEquals(0, snap.balance("Delta"), "Delta");
+    assertEquals(0, snap.balance("Epsilon"), "Epsilon");
+    assertEquals(3, snap.userCount(), "users");
+    Iterator<String> users = snap.users();
+    assertEquals("Alpha", users.next(), "first user");
+    assertEquals("Beta", users.next(), "second user");
+    assertEquals("Gamma", users.next(), "third user");
+    assertFalse(users.hasNext(), "no more users");
+    Iterator<Transaction> transactions = snap.iterator();
+    assertEquals(new Transaction("", "Alpha", 100), transactions.next(),
+        "t1");
+    assertEquals(new Transaction("Alpha", "Beta", 10), transactions.next(),
+        "t2");
+    assertEquals(new Transaction("Beta", "Gamma", 3), transactions.next(),
+        "t3");
+    assertFalse(transactions.hasNext(), "no more transactions");
+    assertThrows(IndexOutOfBoundsException.class, () -> snap.getBlock(4));
+    assertTrue(snap.isCorrect(), "correct");
+
+    // Meanwhile, the chain has moved on.
+    assertEquals(83, chain.balance("Alpha"), "Alpha in the chain");
+    assertEquals(10, chain.balance("Beta"), "Beta in the chain");
+    assertEquals(0, chain.balance("Gamma"), "Gamma in the chain");
+    assertEquals(7, chain.balance("Epsilon"), "Epsilon in the chain");
+    assertEquals(3, chain.userCount(), "users in the chain");
+  } // testStable()
+
+  /**
+   * Does a snapshot share its blocks with the chain?
+   */
+  @Test
+  public void testShared() throws Exception {
+    BlockChain chain = ChainFixtures.smallChain();
+    ChainSnapshot snap = chain.snapshot();
+    for (int height = 0; height < snap.getSize(); height++) {
+      assertSame(chain.getBlock(height), snap.getBlock(height),
+          "block " + height);
+    } // for
+    Iterator<Block> blocks = snap.blocks();
+    for (int height = 0; height < snap.getSize(); height++) {
+      assertSame(chain.getBlock(height), blocks.next(), "next " + height);
+    } // for
+    assertFalse(blocks.hasNext(), "no more blocks");
+  } // testShared()
+
+  /**
+   * Do several snapshots each keep their own state?
+   */
+  @Test
+  public void testSeveral() throws Exception {
+    BlockChain chain = ChainFixtures.smallChain();
+    ChainSnapshot[] snaps = new ChainSnapshot[5];
+    for (int i = 0; i < snaps.length; i++) {
+      snaps[i] = chain.snapshot();
+      chain.append(chain.mine(new Transaction("Alpha", "Beta", 1)));
+    } // for
+    for (int i = 0; i < snaps.length; i++) {
+      assertEquals(4 + i, snaps[i].getSize(), "size " + i);
+      assertEquals(90 - i, snaps[i].balance("Alpha"), "Alpha in " + i);
+      assertEquals(7 + i, snaps[i].balance("Beta"), "Beta in " + i);
+    } // for
+  } // testSeveral()
+
+  /**
+   * Does checking a snapshot find problems?
+   */
+  @Test
+  public void testCheck() throws Exception {
+    BlockChain chain = ChainFixtures.smallChain();
+    chain.getBlock(3).transaction = new Transaction("Beta", "Gamma", 1000);
+    ChainSnapshot snap = chain.snapshot();
+    assertFalse(snap.isCorrect(), "tampered");
+    chain.removeLast();
+    assertTrue(chain.snapshot().isCorrect(), "after removing");
+  } // testCheck()
+
+  /**
+   * Can we take a snapshot while a writer holds the chain?
+   */
+  @Test
+  public void testBusyChain() throws Exception {
+    BlockChain chain = ChainFixtures.smallChain();
+    CountDownLatch holding = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+      synchronized (chain) {
+        holding.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } // try/catch
+      } // synchronized
+    });
+    try {
+      holding.await();
+      ChainSnapshot snap = CompletableFuture.supplyAsync(chain::snapshot)
+          .get(10, TimeUnit.SECONDS);
+      assertEquals(4, snap.getSize(), "size");
+    } finally {
+      release.countDown();
+    } // try/finally
+    writer.get();
+  } // testBusyChain()
+} // class TestChainSnapshot
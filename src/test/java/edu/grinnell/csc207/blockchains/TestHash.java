@@ -1,5 +1,10 @@
 package edu.grinnell.csc207.blockchains;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.Random;
+
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -106,5 +111,44 @@ public class TestHash {
     assertFalse(h.equals(new Hash(bytes)), 
        "a hash does not equal a hash made from its modified bytes");
   } // testReturnBytes
-  
+
+  /**
+   * Make sure that 32-byte hashes, which we store as words, behave just
+   * like other hashes.
+   */
+  @Test
+  public void testCompact() {
+    Random rand = new Random(207);
+    for (int i = 0; i < 100; i++) {
+      byte[] bytes = new byte[32];
+      rand.nextBytes(bytes);
+      Hash h = new Hash(bytes);
+      assertEquals(32, h.length(), "length");
+      assertArrayEquals(bytes, h.getBytes(), "bytes");
+      StringBuilder hex = new StringBuilder();
+      for (int j = 0; j < 32; j++) {
+        assertEquals(bytes[j], h.get(j), "byte " + j);
+        hex.append(String.format("%02X", bytes[j]));
+      } // for
+      assertEquals(hex.toString(), h.toString(), "hex");
+
+      Hash same = new Hash(h.getBytes());
+      assertTrue(h.equals(same), "equal to a copy");
+      assertEquals(h.hashCode(), same.hashCode(), "same hash code");
+      bytes[rand.nextInt(32)] ^= 1 << rand.nextInt(8);
+      assertFalse(h.equals(new Hash(bytes)), "one bit differs");
+
+      ByteBuffer buffer =
+          ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put((byte) 7);
+      h.writeTo(buffer);
+      assertEquals(33, buffer.position(), "wrote 32 bytes");
+      assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order(), "same order");
+      for (int j = 0; j < 32; j++) {
+        assertEquals(h.get(j), buffer.get(j + 1), "written byte " + j);
+      } // for
+    } // for
+    assertFalse(new Hash(new byte[32]).equals(new Hash(new byte[31])),
+        "different lengths");
+  } // testCompact()
 } // class TestHash
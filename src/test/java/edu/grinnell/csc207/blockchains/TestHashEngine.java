@@ -0,0 +1,147 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.nio.ByteBuffer;
+
+import java.security.MessageDigest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Some simple tests of our hash engines.
+ *
+ * @author agent
+ */
+public class TestHashEngine {
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Compute the expected hash of a prefix and a nonce.
+   *
+   * @param prefix
+   *   The prefix.
+   * @param nonce
+   *   The nonce.
+   *
+   * @return the SHA-256 hash of the prefix followed by the nonce.
+   */
+  static byte[] expectedHash(byte[] prefix, long nonce) {
+    MessageDigest md = JcaHashEngine.newDigest();
+    md.update(prefix);
+    md.update(ByteBuffer.allocate(Long.BYTES).putLong(nonce).array());
+    return md.digest();
+  } // expectedHash(byte[], long)
+
+  /**
+   * Make sure that an engine gets the right hash for prefixes of every
+   * length through a few chunks, which exercises both one- and
+   * two-chunk tails.
+   *
+   * @param engine
+   *   The engine to check.
+   */
+  static void checkPrefixLengths(HashEngine engine) {
+    byte[] out = new byte[NonceHasher.DIGEST];
+    for (int len = 0; len < 3 * Sha256Hasher.CHUNK; len++) {
+      byte[] prefix = new byte[len];
+      for (int i = 0; i < len; i++) {
+        prefix[i] = (byte) (i * 31 + len);
+      } // for
+      NonceHasher hasher = engine.hasher(prefix);
+      byte[][] outs = new byte[hasher.lanes()][NonceHasher.DIGEST];
+      for (long nonce : new long[] {0, 1, -1, 0x0123456789ABCDEFL}) {
+        hasher.hash(nonce, out);
+        assertArrayEquals(expectedHash(prefix, nonce), out,
+            engine.name() + ": hash of " + len + "-byte prefix with nonce "
+            + nonce);
+        assertArrayEquals(expectedHash(prefix, nonce),
+            engine.hash(prefix, nonce),
+            engine.name() + ": single hash of " + len + "-byte prefix");
+        hasher.hashLanes(nonce, outs);
+        for (int i = 0; i < outs.length; i++) {
+          assertArrayEquals(expectedHash(prefix, nonce + i), outs[i],
+              engine.name() + ": lane " + i + " of " + len
+              + "-byte prefix with nonce " + nonce);
+        } // for
+      } // for
+    } // for
+  } // checkPrefixLengths(HashEngine)
+
+  // +-------+-------------------------------------------------------
+  // | Tests |
+  // +-------+
+
+  /**
+   * Check the pure-Java engine.
+   */
+  @Test
+  public void testSha256Engine() {
+    checkPrefixLengths(new Sha256HashEngine());
+  } // testSha256Engine()
+
+  /**
+   * Check the JCA engine.
+   */
+  @Test
+  public void testJcaEngine() {
+    checkPrefixLengths(new JcaHashEngine());
+  } // testJcaEngine()
+
+  /**
+   * Check the vector engine (or whatever we fall back to).
+   */
+  @Test
+  public void testVectorEngine() {
+    checkPrefixLengths(HashEngine.vectorized());
+  } // testVectorEngine()
+
+  /**
+   * Make sure that a chain that uses the vector engine mines and checks
+   * blocks.
+   */
+  @Test
+  public void testVectorChain() throws Exception {
+    HashValidator v = (h) -> (h.get(0) == 5) && (h.get(1) == 5);
+    BlockChain chain = new BlockChain(v, 2, HashEngine.vectorized());
+    chain.append(chain.mine(new Transaction("", "A", 10)));
+    chain.append(chain.mine(new Transaction("A", "B", 5)));
+    assertTrue(chain.isCorrect(), "vector chain is correct");
+    chain.check();
+  } // testVectorChain()
+
+  /**
+   * Make sure that the engines agree with the block's own hash.
+   */
+  @Test
+  public void testBlockHash() {
+    Block b = new Block(12, new Transaction("Alpha", "Beta", 99),
+        new Hash(new byte[] {1, 2, 3}), 8675309);
+    assertArrayEquals(b.getHash().getBytes(),
+        new Sha256HashEngine().hash(b.prefixBytes(), b.getNonce()),
+        "pure-Java hash of block");
+    assertArrayEquals(b.getHash().getBytes(),
+        new JcaHashEngine().hash(b.prefixBytes(), b.getNonce()),
+        "JCA hash of block");
+  } // testBlockHash()
+
+  /**
+   * Make sure that a chain that uses the JCA engine mines and checks
+   * blocks.
+   */
+  @Test
+  public void testJcaChain() throws Exception {
+    HashValidator v = (h) -> (h.get(0) == 3);
+    BlockChain chain = new BlockChain(v, 2, new JcaHashEngine());
+    chain.append(chain.mine(new Transaction("", "A", 10)));
+    chain.append(chain.mine(new Transaction("A", "B", 5)));
+    assertEquals(3, chain.getSize(), "size of JCA chain");
+    assertTrue(chain.isCorrect(), "JCA chain is correct");
+    chain.check();
+  } // testJcaChain()
+} // class TestHashEngine
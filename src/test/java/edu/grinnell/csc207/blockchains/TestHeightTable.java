@@ -0,0 +1,132 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the tables of heights by hash.
+ *
+ * @author agent
+ */
+public class TestHeightTable {
+  /**
+   * A place for the files.
+   */
+  @TempDir
+  Path dir;
+
+  /**
+   * Find the heights that a table should have for a key.
+   *
+   * @param keys
+   *   The key of each height in the table, or null for none.
+   * @param key
+   *   The key.
+   *
+   * @return the heights, in increasing order.
+   */
+  static int[] expected(ArrayList<Long> keys, long key) {
+    int[] result = new int[keys.size()];
+    int count = 0;
+    for (int height = 0; height < keys.size(); height++) {
+      if ((keys.get(height) != null) && (keys.get(height) == key)) {
+        result[count++] = height;
+      } // if
+    } // for
+    return Arrays.copyOf(result, count);
+  } // expected(ArrayList<Long>, long)
+
+  /**
+   * Find the heights that a table has for a key.
+   *
+   * @param table
+   *   The table.
+   * @param key
+   *   The key.
+   *
+   * @return the heights, in increasing order.
+   */
+  static int[] actual(HeightTable table, long key) {
+    int[] result = table.heights(key);
+    Arrays.sort(result);
+    return result;
+  } // actual(HeightTable, long)
+
+  /**
+   * Does the table keep the right heights as it grows and as we remove
+   * them, even when keys repeat?
+   */
+  @Test
+  public void testPutRemove() throws Exception {
+    Random random = new Random(207);
+    ArrayList<Long> keys = new ArrayList<Long>();
+    HeightTable table = new HeightTable(this.dir.resolve("table"));
+    try {
+      for (int height = 0; height < 3000; height++) {
+        long key = random.nextInt(1000);
+        table.reserve();
+        table.put(key, height);
+        keys.add(key);
+      } // for
+      assertEquals(3000, table.count, "count");
+      assertTrue(table.capacity >= 6000, "grown");
+      for (long key = 0; key < 1000; key++) {
+        assertArrayEquals(expected(keys, key), actual(table, key),
+            "key " + key);
+      } // for
+
+      // Remove the heights in no particular order.
+      for (int i = 0; i < 2000; i++) {
+        int height = random.nextInt(keys.size());
+        if (keys.get(height) != null) {
+          table.remove(keys.get(height), height);
+          keys.set(height, null);
+        } // if
+      } // for
+      for (long key = 0; key < 1000; key++) {
+        assertArrayEquals(expected(keys, key), actual(table, key),
+            "key " + key + " after removals");
+      } // for
+    } finally {
+      table.close();
+    } // try/finally
+  } // testPutRemove()
+
+  /**
+   * Does a table keep its heights from one run to the next?
+   */
+  @Test
+  public void testReopen() throws Exception {
+    Path file = this.dir.resolve("table");
+    HeightTable table = new HeightTable(file);
+    for (int height = 0; height < 1500; height++) {
+      table.reserve();
+      table.put(height % 700, height);
+    } // for
+    table.force();
+    table.close();
+
+    HeightTable again = new HeightTable(file);
+    try {
+      assertEquals(table.capacity, again.capacity, "capacity");
+      assertArrayEquals(new int[] {5, 705, 1405}, actual(again, 5), "5");
+      assertArrayEquals(new int[] {699, 1399}, actual(again, 699), "699");
+      assertArrayEquals(new int[0], actual(again, 700), "700");
+      again.clear();
+      assertEquals(HeightTable.MIN_CAPACITY, again.capacity, "cleared");
+      assertArrayEquals(new int[0], actual(again, 5), "5, cleared");
+    } finally {
+      again.close();
+    } // try/finally
+  } // testReopen()
+} // class TestHeightTable
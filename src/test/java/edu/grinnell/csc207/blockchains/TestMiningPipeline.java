@@ -0,0 +1,221 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * Some simple tests of the mining pipeline.
+ *
+ * @author agent
+ */
+public class TestMiningPipeline {
+  /**
+   * Make sure that the pipeline mines and appends blocks in order.
+   */
+  @Test
+  public void testInOrder() throws Exception {
+    HashValidator v = (h) -> h.get(0) == 0;
+    BlockChain chain = new BlockChain(v, 2);
+    ArrayList<CompletableFuture<Block>> futures =
+        new ArrayList<CompletableFuture<Block>>();
+    try (MiningPipeline pipeline = new MiningPipeline(chain)) {
+      futures.add(pipeline.submit(new Transaction("", "A", 300)));
+      for (int i = 1; i <= 20; i++) {
+        futures.add(pipeline.submit(new Transaction("A", "B", i)));
+      } // for
+      for (int i = 0; i < futures.size(); i++) {
+        Block block = futures.get(i).get();
+        assertEquals(i + 1, block.getNum(), "block number");
+      } // for
+    } // try
+    assertEquals(22, chain.getSize(), "all appended");
+    assertTrue(chain.isCorrect(), "chain is correct");
+    assertEquals(300 - 210, chain.balance("A"), "balance of A");
+    Iterator<Block> blocks = chain.blocks();
+    blocks.next();
+    for (CompletableFuture<Block> future : futures) {
+      assertSame(future.get(), blocks.next(), "same block");
+    } // for
+  } // testInOrder()
+
+  /**
+   * Make sure that closing the pipeline cancels what's left.
+   */
+  @Test
+  public void testClose() throws Exception {
+    BlockChain chain = new BlockChain((h) -> true, 2);
+    chain.validator = (h) -> false;
+    MiningPipeline pipeline = new MiningPipeline(chain);
+    CompletableFuture<Block> first =
+        pipeline.submit(new Transaction("", "A", 10));
+    CompletableFuture<Block> second =
+        pipeline.submit(new Transaction("", "B", 10));
+    Thread.sleep(100);
+    assertEquals(1, pipeline.pending(), "one waiting");
+    pipeline.close();
+    assertTrue(first.isCompletedExceptionally(), "first stopped");
+    assertTrue(second.isCancelled(), "second cancelled");
+    assertThrows(IllegalStateException.class,
+        () -> pipeline.submit(new Transaction("", "C", 10)));
+    assertEquals(1, chain.getSize(), "nothing appended");
+  } // testClose()
+
+  /**
+   * Make sure that closing the pipeline leaves the chain's log usable.
+   */
+  @Test
+  public void testCloseWithLog(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("chain.log");
+    BlockChain chain = new BlockChain((h) -> h.get(0) == 0, 2);
+    try (BlockLog log = new BlockLog(file, 1)) {
+      chain.attach(log);
+      MiningPipeline pipeline = new MiningPipeline(chain);
+      CompletableFuture<Block> first =
+          pipeline.submit(new Transaction("", "A", 100));
+      for (int i = 0; i < 50; i++) {
+        pipeline.submit(new Transaction("A", "B", 1));
+      } // for
+      first.get();
+      pipeline.close();
+      assertTrue(log.channel.isOpen(), "log still open");
+      assertEquals(chain.getSize(), log.size(), "log has every block");
+    } // try
+    try (BlockLog log = new BlockLog(file)) {
+      assertEquals(chain.getSize(), log.size(), "every block committed");
+    } // try
+  } // testCloseWithLog(Path)
+
+  /**
+   * Make sure that cancelling a waiting transaction skips it.
+   */
+  @Test
+  public void testCancel() throws Exception {
+    BlockChain chain = new BlockChain((h) -> true, 2);
+    AtomicBoolean open = new AtomicBoolean(false);
+    chain.validator = (h) -> open.get() && (h.get(0) == 0);
+    try (MiningPipeline pipeline = new MiningPipeline(chain)) {
+      CompletableFuture<Block> skipped =
+          pipeline.submit(new Transaction("", "A", 10));
+      skipped.cancel(false);
+      open.set(true);
+      CompletableFuture<Block> kept =
+          pipeline.submit(new Transaction("", "B", 10));
+      assertEquals(1, kept.get().getNum(), "skipped the first");
+      assertThrows(CancellationException.class, () -> skipped.get());
+    } // try
+    assertEquals(2, chain.getSize(), "one appended");
+  } // testCancel()
+
+  /**
+   * Make sure that a block future cannot be cancelled once its block is
+   * being appended, and vice versa.
+   */
+  @Test
+  public void testCommitOrCancel() throws Exception {
+    MiningPipeline.BlockFuture committed = new MiningPipeline.BlockFuture();
+    assertTrue(committed.commit(), "commit first");
+    assertFalse(committed.cancel(false), "then cancel");
+    assertFalse(committed.isCancelled(), "not cancelled");
+
+    MiningPipeline.BlockFuture cancelled = new MiningPipeline.BlockFuture();
+    assertTrue(cancelled.cancel(false), "cancel first");
+    assertFalse(cancelled.commit(), "then commit");
+    assertTrue(cancelled.cancel(false), "cancel again");
+  } // testCommitOrCancel()
+
+  /**
+   * Make sure that the pipeline mines the next block while it appends
+   * the last one.
+   */
+  @Test
+  public void testOverlap() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger miners = new AtomicInteger(0);
+    BlockChain chain = new BlockChain((h) -> true) {
+      public void append(Block block) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        } // try/catch
+        super.append(block);
+      } // append(Block)
+
+      Miner newMiner() {
+        miners.incrementAndGet();
+        return super.newMiner();
+      } // newMiner()
+    };
+    miners.set(0);
+    try (MiningPipeline pipeline = new MiningPipeline(chain)) {
+      CompletableFuture<Block> first =
+          pipeline.submit(new Transaction("", "A", 10));
+      CompletableFuture<Block> second =
+          pipeline.submit(new Transaction("A", "B", 5));
+      try {
+        for (int i = 0; (i < 500) && (miners.get() < 2); i++) {
+          Thread.sleep(10);
+        } // for
+        assertEquals(2, miners.get(), "mined the second during the first");
+        assertFalse(first.isDone(), "first still appending");
+      } finally {
+        release.countDown();
+      } // try/finally
+      assertEquals(2, second.get().getNum(), "second follows first");
+      assertEquals(1, first.get().getNum(), "first");
+    } // try
+    assertEquals(3, chain.getSize(), "both appended");
+    assertTrue(chain.isCorrect(), "correct");
+  } // testOverlap()
+
+  /**
+   * Make sure that, if an append fails, the pipeline mines the next block
+   * again so that it follows the chain.
+   */
+  @Test
+  public void testFailedAppend() throws Exception {
+    AtomicBoolean failed = new AtomicBoolean(false);
+    BlockChain chain = new BlockChain((h) -> true) {
+      public void append(Block block) {
+        if (failed.compareAndSet(false, true)) {
+          throw new UncheckedIOException(new IOException("Disk full"));
+        } // if
+        super.append(block);
+      } // append(Block)
+    };
+    try (MiningPipeline pipeline = new MiningPipeline(chain)) {
+      CompletableFuture<Block> lost =
+          pipeline.submit(new Transaction("", "A", 10));
+      CompletableFuture<Block> kept =
+          pipeline.submit(new Transaction("", "B", 10));
+      ExecutionException e =
+          assertThrows(ExecutionException.class, () -> lost.get());
+      assertTrue(e.getCause() instanceof UncheckedIOException, "cause");
+      assertEquals(1, kept.get().getNum(), "mined again after the failure");
+    } // try
+    assertEquals(2, chain.getSize(), "one appended");
+    assertEquals(10, chain.balance("B"), "B");
+    assertTrue(chain.isCorrect(), "correct");
+  } // testFailedAppend()
+} // class TestMiningPipeline
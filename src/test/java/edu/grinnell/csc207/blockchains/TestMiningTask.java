@@ -0,0 +1,116 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Some simple tests of mining in the background.
+ *
+ * @author agent
+ */
+public class TestMiningTask {
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Make sure that a finished task has stopped trying nonces.
+   *
+   * @param task
+   *   The task.
+   */
+  static void assertStopped(MiningTask task) throws InterruptedException {
+    // Give the threads a moment to notice and report their last attempts.
+    Thread.sleep(200);
+    long attempts = task.attempts();
+    Thread.sleep(200);
+    assertEquals(attempts, task.attempts(), "no attempts after stopping");
+  } // assertStopped(MiningTask)
+
+  // +-------+-------------------------------------------------------
+  // | Tests |
+  // +-------+
+
+  /**
+   * Make sure that we can mine a block in the background and append it.
+   */
+  @Test
+  public void testMineAsync() throws Exception {
+    HashValidator v = (h) -> (h.get(0) == 9) && (h.get(1) == 9);
+    BlockChain chain = new BlockChain(v, 2);
+    MiningTask task = chain.mineAsync(new Transaction("", "A", 10));
+    Block block = task.future().get();
+    assertTrue(task.isDone(), "task is done");
+    assertTrue(v.isValid(block.getHash()), "valid hash");
+    assertTrue(task.attempts() > 0, "some attempts");
+    assertEquals(0, task.estimatedRemainingMillis(), "nothing remains");
+    chain.append(block);
+    assertEquals(2, chain.getSize(), "appended");
+    assertTrue(chain.isCorrect(), "chain is correct");
+  } // testMineAsync()
+
+  /**
+   * Make sure that cancelling a task stops the mining.
+   */
+  @Test
+  public void testCancel() throws Exception {
+    BlockChain chain = new BlockChain((h) -> true, 2);
+    chain.validator = (h) -> false;
+    MiningTask task = chain.mineAsync(new Transaction("", "A", 10));
+    Thread.sleep(100);
+    assertFalse(task.isDone(), "impossible task is not done");
+    assertTrue(task.cancel(), "cancel");
+    assertTrue(task.isDone(), "cancelled task is done");
+    assertThrows(CancellationException.class, () -> task.future().get());
+    assertStopped(task);
+  } // testCancel()
+
+  /**
+   * Make sure that a deadline stops the mining.
+   */
+  @Test
+  public void testTimeout() throws Exception {
+    BlockChain chain = new BlockChain((h) -> true, 2);
+    chain.validator = (h) -> false;
+    MiningTask task = chain.mineAsync(new Transaction("", "A", 10), 100,
+        TimeUnit.MILLISECONDS);
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> task.future().get());
+    assertInstanceOf(TimeoutException.class, e.getCause(), "timed out");
+    assertStopped(task);
+  } // testTimeout()
+
+  /**
+   * Make sure that we can estimate the time left when the validator
+   * knows its difficulty.
+   */
+  @Test
+  public void testEstimate() throws Exception {
+    BlockChain chain = new BlockChain((h) -> true);
+    chain.validator = new HashValidator() {
+      public boolean isValid(Hash h) {
+        return false;
+      } // isValid(Hash)
+
+      public double expectedAttempts() {
+        return 1e12;
+      } // expectedAttempts()
+    };
+    MiningTask task = chain.mineAsync(new Transaction("", "A", 10));
+    Thread.sleep(300);
+    assertTrue(task.attempts() > 0, "some attempts");
+    assertTrue(task.estimatedRemainingMillis() > 0, "positive estimate");
+    task.cancel();
+  } // testEstimate()
+} // class TestMiningTask
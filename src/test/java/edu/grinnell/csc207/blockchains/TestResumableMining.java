@@ -0,0 +1,103 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ * Some simple tests of resumable mining.
+ *
+ * @author agent
+ */
+public class TestResumableMining {
+  /**
+   * A place for checkpoint files.
+   */
+  @TempDir
+  Path dir;
+
+  /**
+   * Make sure that a one-thread resumable search finds the smallest
+   * valid nonce and cleans up after itself.
+   */
+  @Test
+  public void testInOrder() throws Exception {
+    HashValidator v = (h) -> h.get(0) == 0;
+    BlockChain chain = new BlockChain(v, 1);
+    Transaction t = new Transaction("", "A", 10);
+    Path file = this.dir.resolve("nonce");
+    Block block = chain.mine(t, file);
+    assertFalse(Files.exists(file), "checkpoint removed");
+    byte[] prefix = block.prefixBytes();
+    for (long nonce = 0; nonce < block.getNonce(); nonce++) {
+      assertFalse(v.isValid(new Hash(Block.ENGINE.hash(prefix, nonce))),
+          "no smaller nonce");
+    } // for
+    chain.append(block);
+    assertTrue(chain.isCorrect(), "chain is correct");
+
+    // Several threads find a nonce in the first few chunks.
+    chain = new BlockChain(v, 4);
+    block = chain.mine(t, file);
+    assertTrue(block.getNonce() < 4 * Miner.CHUNK, "early nonce");
+    chain.append(block);
+    assertTrue(chain.isCorrect(), "chain is correct with threads");
+  } // testInOrder()
+
+  /**
+   * Make sure that a search continues from its checkpoint.
+   */
+  @Test
+  public void testResume() throws Exception {
+    HashValidator v = (h) -> h.get(0) == 0;
+    BlockChain chain = new BlockChain(v, 2);
+    Transaction t = new Transaction("", "A", 10);
+    Path file = this.dir.resolve("nonce");
+    Block unmined = new Block(1, t, chain.getHash());
+    new NonceCheckpoint(file, unmined.prefixBytes()).save(1000);
+    Block block = chain.mine(t, file);
+    assertTrue(block.getNonce() >= 1000 * Miner.CHUNK, "resumed");
+    assertFalse(Files.exists(file), "checkpoint removed");
+
+    // A checkpoint for some other block is ignored.
+    Block other = new Block(1, new Transaction("", "B", 10), chain.getHash());
+    new NonceCheckpoint(file, other.prefixBytes()).save(1000);
+    assertEquals(0, new NonceCheckpoint(file, unmined.prefixBytes()).load(),
+        "other block");
+    block = chain.mine(t, file);
+    assertTrue(block.getNonce() < 2 * Miner.CHUNK, "started over");
+  } // testResume()
+
+  /**
+   * Make sure that cancelling a search saves the checkpoint.
+   */
+  @Test
+  public void testCancel() throws Exception {
+    BlockChain chain = new BlockChain((h) -> true, 3);
+    chain.validator = (h) -> false;
+    Transaction t = new Transaction("", "A", 10);
+    Path file = this.dir.resolve("nonce");
+    MiningTask task = chain.mineAsync(t, file);
+    Thread.sleep(1500);
+    task.cancel();
+    assertThrows(CancellationException.class, () -> task.future().get());
+    // Wait for the miner to notice and save.
+    Thread.sleep(500);
+    NonceCheckpoint checkpoint =
+        new NonceCheckpoint(file, new Block(1, t, chain.getHash())
+            .prefixBytes());
+    long chunk = checkpoint.load();
+    assertTrue(chunk > 0, "some progress");
+    assertTrue(chunk * Miner.CHUNK <= task.attempts(), "no more than tried");
+  } // testCancel()
+} // class TestResumableMining
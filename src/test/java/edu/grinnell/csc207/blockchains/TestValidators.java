@@ -0,0 +1,155 @@
+package edu.grinnell.csc207.blockchains;
+
+import java.math.BigInteger;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * Some simple tests of our built-in validators.
+ *
+ * @author agent
+ */
+public class TestValidators {
+  // +---------+-----------------------------------------------------
+  // | Helpers |
+  // +---------+
+
+  /**
+   * Count the leading zero bits in an array, the slow way.
+   *
+   * @param bytes
+   *   The array.
+   *
+   * @return the number of leading zero bits.
+   */
+  static int leadingZeros(byte[] bytes) {
+    int count = 0;
+    for (byte b : bytes) {
+      if (b != 0) {
+        return count + Integer.numberOfLeadingZeros(b & 0xff) - 24;
+      } // if
+      count += 8;
+    } // for
+    return count;
+  } // leadingZeros(byte[])
+
+  /**
+   * Make a random digest with a particular number of leading zero bits.
+   *
+   * @param rand
+   *   Where to get random bits.
+   * @param length
+   *   The length of the digest.
+   * @param zeros
+   *   The number of leading zeros.
+   *
+   * @return the digest.
+   */
+  static byte[] digest(Random rand, int length, int zeros) {
+    byte[] bytes = new byte[length];
+    rand.nextBytes(bytes);
+    BigInteger n = new BigInteger(1, bytes);
+    n = n.shiftRight(zeros).setBit(8 * length - zeros - 1);
+    byte[] raw = n.toByteArray();
+    bytes = new byte[length];
+    int copy = Math.min(length, raw.length);
+    System.arraycopy(raw, raw.length - copy, bytes, length - copy, copy);
+    return bytes;
+  } // digest(Random, int, int)
+
+  // +-------+-------------------------------------------------------
+  // | Tests |
+  // +-------+
+
+  /**
+   * Make sure that the leading-zero validator agrees with a simple
+   * count of the leading zeros.
+   */
+  @Test
+  public void testLeadingZeros() {
+    Random rand = new Random(207);
+    for (int bits = 0; bits <= 256; bits++) {
+      LeadingZeroBitsValidator v = new LeadingZeroBitsValidator(bits);
+      for (int zeros = Math.max(0, bits - 2);
+          zeros <= Math.min(255, bits + 2); zeros++) {
+        byte[] bytes = digest(rand, 32, zeros);
+        assertEquals(zeros, leadingZeros(bytes), "digest helper");
+        assertEquals(zeros >= bits, v.isValid(bytes),
+            bits + " bits, " + zeros + " zeros");
+        assertEquals(zeros >= bits, v.isValid(new Hash(bytes)),
+            bits + " bits, " + zeros + " zeros, as hash");
+      } // for
+    } // for
+    assertTrue(new LeadingZeroBitsValidator(256).isValid(new byte[32]),
+        "all zeros");
+  } // testLeadingZeros()
+
+  /**
+   * Make sure that the leading-zero validator handles short hashes.
+   */
+  @Test
+  public void testShortHashes() {
+    LeadingZeroBitsValidator v = new LeadingZeroBitsValidator(20);
+    assertFalse(v.isValid(new byte[] {0, 0}), "too short");
+    assertTrue(v.isValid(new byte[] {0, 0, 0x0F}), "just long enough");
+    assertFalse(v.isValid(new byte[] {0, 0, 0x10}), "one bit too many");
+    assertTrue(v.isValid(new byte[] {0, 0, 0, 0, 0, 0, 0x0F, 0, 0}),
+        "a bit longer");
+    assertEquals(Math.pow(2, 20), v.expectedAttempts(), "difficulty");
+    assertThrows(IllegalArgumentException.class,
+        () -> new LeadingZeroBitsValidator(257));
+  } // testShortHashes()
+
+  /**
+   * Make sure that the target validator agrees with BigInteger.
+   */
+  @Test
+  public void testTarget() {
+    Random rand = new Random(151);
+    for (int i = 0; i < 1000; i++) {
+      BigInteger target = new BigInteger(1 + rand.nextInt(256), rand)
+          .add(BigInteger.ONE);
+      TargetValidator v = new TargetValidator(target);
+      for (BigInteger n : new BigInteger[] {
+          target.subtract(BigInteger.ONE), target, target.add(BigInteger.ONE),
+          new BigInteger(256, rand)}) {
+        if (n.bitLength() > 256) {
+          continue;
+        } // if
+        byte[] bytes = digest(rand, 32, 0);
+        byte[] raw = n.toByteArray();
+        java.util.Arrays.fill(bytes, (byte) 0);
+        int copy = Math.min(32, raw.length);
+        System.arraycopy(raw, raw.length - copy, bytes, 32 - copy, copy);
+        assertEquals(n.compareTo(target) < 0, v.isValid(bytes),
+            n + " below " + target);
+      } // for
+    } // for
+    TargetValidator v = new TargetValidator(BigInteger.ONE.shiftLeft(240));
+    assertEquals(Math.pow(2, 16), v.expectedAttempts(), 1e-6, "difficulty");
+    assertFalse(v.isValid(new byte[] {0}), "short hash");
+  } // testTarget()
+
+  /**
+   * Make sure that we can mine with the built-in validators.
+   */
+  @Test
+  public void testMining() throws Exception {
+    HashValidator v = new LeadingZeroBitsValidator(12);
+    BlockChain chain = new BlockChain(v, 2);
+    chain.append(chain.mine(new Transaction("", "A", 10)));
+    assertTrue(chain.isCorrect(), "leading zeros");
+    v = new TargetValidator(BigInteger.ONE.shiftLeft(245));
+    chain = new BlockChain(v, 2);
+    chain.append(chain.mine(new Transaction("", "A", 10)));
+    assertTrue(chain.isCorrect(), "target");
+  } // testMining()
+} // class TestValidators